@@ -0,0 +1,100 @@
+package com.jernejerin.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.jernejerin.EntryDigestIndex;
+
+/**
+ * Benchmark of the lookup of the entries of a feed among the known entries in
+ * method getNewEntries of RSSThreadWorker. The 100 entries of the feed, of
+ * which 10 are new, are looked up in the digest index and, for comparison, in
+ * a set of the hash ids as they are returned by the query of the saved
+ * entries.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DedupBenchmark {
+
+	/** Number of entries of the polled feed. */
+	private static final int FEED_ENTRIES = 100;
+
+	/** Number of new entries of the polled feed. */
+	private static final int NEW_ENTRIES = 10;
+
+	@Param({ "100", "10000", "100000" })
+	public int knownIds;
+
+	private File indexFile;
+	private EntryDigestIndex digestIndex;
+	private HashSet<String> idSet;
+	private byte[] feedDigest;
+	private String[] ids;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		indexFile = File.createTempFile("entries", ".idx");
+		indexFile.delete();
+		digestIndex = new EntryDigestIndex(indexFile.getPath(), knownIds * 2);
+		idSet = new HashSet<String>();
+		feedDigest = DigestUtils.sha1("feed");
+		for (int i = 0; i < knownIds; i++) {
+			byte[] idDigest = DigestUtils.sha1("http://example.com/?p=" + i);
+			digestIndex.add(EntryDigestIndex.entryDigest(idDigest, feedDigest));
+			idSet.add(Hex.encodeHexString(idDigest));
+		}
+
+		// the latest entries of the feed, the newest are not known yet
+		ids = new String[FEED_ENTRIES];
+		for (int i = 0; i < FEED_ENTRIES; i++)
+			ids[i] = "http://example.com/?p="
+					+ (knownIds - FEED_ENTRIES + NEW_ENTRIES + i);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		digestIndex.close();
+		indexFile.delete();
+	}
+
+	@Benchmark
+	public void digestIndex(Blackhole blackhole) {
+		for (String id : ids)
+			blackhole.consume(digestIndex.contains(EntryDigestIndex
+					.entryDigest(DigestUtils.sha1(id), feedDigest)));
+	}
+
+	@Benchmark
+	public void idSet(Blackhole blackhole) {
+		for (String id : ids)
+			blackhole.consume(idSet.contains(Hex.encodeHexString(DigestUtils
+					.sha1(id))));
+	}
+}
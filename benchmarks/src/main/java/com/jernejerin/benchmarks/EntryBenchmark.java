@@ -0,0 +1,86 @@
+package com.jernejerin.benchmarks;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.jernejerin.RSSThreadWorker;
+import com.mongodb.BasicDBObject;
+import com.sun.syndication.feed.synd.SyndEntry;
+import com.sun.syndication.io.SyndFeedInput;
+
+/**
+ * Benchmark of the work done for each entry of the feed in method
+ * getNewEntries of RSSThreadWorker, i.e. deriving the id of the entry, its
+ * SHA-1 hash and the conversion of the new entry to the document for DB.
+ * Each operation is measured for all the 100 entries of the feed.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntryBenchmark {
+
+	private List<SyndEntry> entries;
+	private List<String> ids;
+	private final ObjectId feedId = new ObjectId();
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setUp() throws Exception {
+		entries = new SyndFeedInput().build(new StringReader(Feeds.rss(100)))
+				.getEntries();
+		ids = new ArrayList<String>();
+		for (SyndEntry entry : entries)
+			ids.add(RSSThreadWorker.getEntryId(entry));
+	}
+
+	@Benchmark
+	public void entryId(Blackhole blackhole) {
+		for (SyndEntry entry : entries)
+			blackhole.consume(RSSThreadWorker.getEntryId(entry));
+	}
+
+	@Benchmark
+	public void sha1(Blackhole blackhole) {
+		for (String id : ids)
+			blackhole.consume(DigestUtils.sha1(id));
+	}
+
+	@Benchmark
+	public void sha1Hex(Blackhole blackhole) {
+		for (String id : ids)
+			blackhole.consume(Hex.encodeHexString(DigestUtils.sha1(id)));
+	}
+
+	@Benchmark
+	public void entryDB(Blackhole blackhole) {
+		for (int i = 0; i < entries.size(); i++) {
+			BasicDBObject entryDB = RSSThreadWorker.getEntryDB(feedId,
+					"idHash", ids.get(i), entries.get(i));
+			blackhole.consume(entryDB);
+		}
+	}
+}
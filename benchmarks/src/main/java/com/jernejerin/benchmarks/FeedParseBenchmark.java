@@ -0,0 +1,78 @@
+package com.jernejerin.benchmarks;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jernejerin.StreamingFeedParser;
+import com.sun.syndication.feed.synd.SyndFeed;
+import com.sun.syndication.io.SyndFeedInput;
+
+/**
+ * Benchmark of parsing the feeds of different sizes with ROME and with the
+ * streaming parser used by RSSThreadWorker, without a filter and with the
+ * filter that stops after the known entries.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeedParseBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int entries;
+
+	@Param({ "rss", "atom" })
+	public String format;
+
+	private String feed;
+
+	@Setup
+	public void setUp() {
+		feed = format.equals("rss") ? Feeds.rss(entries) : Feeds.atom(entries);
+	}
+
+	@Benchmark
+	public SyndFeed rome() throws Exception {
+		return createFeedInput().build(new StringReader(feed));
+	}
+
+	@Benchmark
+	public SyndFeed streaming() throws Exception {
+		return StreamingFeedParser.parse(new StringReader(feed),
+				createFeedInput(), null);
+	}
+
+	/**
+	 * The first 10 entries are new, the rest is known, as in the usual poll.
+	 */
+	@Benchmark
+	public SyndFeed streamingKnown() throws Exception {
+		final int[] seen = new int[1];
+		return StreamingFeedParser.parse(new StringReader(feed),
+				createFeedInput(), entry -> seen[0]++ < 10);
+	}
+
+	private static SyndFeedInput createFeedInput() {
+		SyndFeedInput input = new SyndFeedInput();
+		input.setPreserveWireFeed(true);
+		return input;
+	}
+}
@@ -0,0 +1,100 @@
+package com.jernejerin.benchmarks;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * This class represents synthetic feeds for the benchmarks. The feeds have
+ * the elements that the feeds of the 10K feeds list usually have, i.e. the
+ * title, link, guid, description with escaped HTML, publish date, categories
+ * and author of each entry.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class Feeds {
+
+	private static final String PARAGRAPH = "&lt;p&gt;The city council approved the new budget on Monday "
+			+ "after a long debate about the funding of public transport, schools and the renovation "
+			+ "of the old library. &lt;a href=\"http://example.com/budget\"&gt;Read more&lt;/a&gt;&lt;/p&gt;";
+
+	private Feeds() {
+	}
+
+	/**
+	 * Returns RSS 2.0 feed with the given number of entries, the newest
+	 * first.
+	 *
+	 * @param entries
+	 * @return
+	 */
+	public static String rss(int entries) {
+		SimpleDateFormat rfc822 = new SimpleDateFormat(
+				"EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+		rfc822.setTimeZone(TimeZone.getTimeZone("UTC"));
+		long now = 1400000000000L;
+
+		StringBuilder feed = new StringBuilder(entries * 800 + 512);
+		feed.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		feed.append("<rss version=\"2.0\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><channel>\n");
+		feed.append("<title>Example News</title><link>http://example.com/</link>");
+		feed.append("<description>News from the example city</description>");
+		feed.append("<language>en-us</language><ttl>60</ttl>\n");
+		for (int i = entries; i > 0; i--) {
+			feed.append("<item><title>Council approves budget ").append(i)
+					.append("</title>");
+			feed.append("<link>http://example.com/news/").append(i)
+					.append("?utm_source=rss&amp;utm_medium=feed</link>");
+			feed.append("<guid isPermaLink=\"false\">http://example.com/?p=")
+					.append(i).append("</guid>");
+			feed.append("<description>").append(PARAGRAPH)
+					.append("</description>");
+			feed.append("<pubDate>")
+					.append(rfc822.format(new Date(now - i * 60000L)))
+					.append("</pubDate>");
+			feed.append("<category>Politics</category><category>City</category>");
+			feed.append("<dc:creator>Jernej Jerin</dc:creator></item>\n");
+		}
+		feed.append("</channel></rss>\n");
+		return feed.toString();
+	}
+
+	/**
+	 * Returns Atom 1.0 feed with the given number of entries, the newest
+	 * first.
+	 *
+	 * @param entries
+	 * @return
+	 */
+	public static String atom(int entries) {
+		SimpleDateFormat rfc3339 = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+		rfc3339.setTimeZone(TimeZone.getTimeZone("UTC"));
+		long now = 1400000000000L;
+
+		StringBuilder feed = new StringBuilder(entries * 800 + 512);
+		feed.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		feed.append("<feed xmlns=\"http://www.w3.org/2005/Atom\">\n");
+		feed.append("<title>Example News</title><link href=\"http://example.com/\"/>");
+		feed.append("<id>urn:example:news</id><updated>")
+				.append(rfc3339.format(new Date(now))).append("</updated>\n");
+		for (int i = entries; i > 0; i--) {
+			feed.append("<entry><title>Council approves budget ").append(i)
+					.append("</title>");
+			feed.append("<link href=\"http://example.com/news/").append(i)
+					.append("\"/>");
+			feed.append("<id>urn:example:news:").append(i).append("</id>");
+			feed.append("<updated>")
+					.append(rfc3339.format(new Date(now - i * 60000L)))
+					.append("</updated>");
+			feed.append("<summary type=\"html\">").append(PARAGRAPH)
+					.append("</summary>");
+			feed.append("<category term=\"Politics\"/><author><name>Jernej Jerin</name></author></entry>\n");
+		}
+		feed.append("</feed>\n");
+		return feed.toString();
+	}
+}
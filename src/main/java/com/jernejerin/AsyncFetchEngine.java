@@ -0,0 +1,322 @@
+package com.jernejerin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+
+/**
+ * This class represents non-blocking fetch engine for feeds and web pages. It
+ * uses the HTTP client of the JDK, which multiplexes all connections on a few
+ * selector threads, so no thread waits for the response of a slow server.
+ * Thousands of requests can be in flight with a handful of threads, compared
+ * to one thread per request of the blocking HttpClientPool.
+ *
+ * The bodies are requested compressed with gzip or deflate. The JDK client
+ * does not decompress them, so the engine does it before it returns the body.
+ * The fetch fails if the body is not compressed as specified or if the feed
+ * is larger than the maximum number of bytes, before or after decompression.
+ *
+ * The returned futures are completed on the engine's threads. The callers
+ * should continue with the parsing and persistence on their own executor, so
+ * that the engine's threads only do the I/O.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class AsyncFetchEngine {
+
+	/** Encodings of the body accepted from the servers. */
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	/** Default maximum number of bytes of a feed, 10 MB. */
+	public static final int MAX_FEED_BYTES = 10 * 1024 * 1024;
+
+	private final ExecutorService executor;
+	private final HttpClient httpClient;
+	private final int maxFeedBytes;
+
+	/**
+	 * Creates fetch engine with the specified number of I/O threads.
+	 *
+	 * @param threads
+	 */
+	public AsyncFetchEngine(int threads) {
+		this(threads, MAX_FEED_BYTES);
+	}
+
+	/**
+	 * Creates fetch engine with the specified number of I/O threads, which
+	 * fails the fetches of the feeds larger than maxFeedBytes.
+	 *
+	 * @param threads
+	 * @param maxFeedBytes
+	 */
+	public AsyncFetchEngine(int threads, int maxFeedBytes) {
+		this.maxFeedBytes = maxFeedBytes;
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "AsyncFetchEngine-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// connections are kept alive and reused by the client
+		httpClient = HttpClient.newBuilder().executor(executor)
+				.version(HttpClient.Version.HTTP_1_1)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.connectTimeout(Duration.ofMillis(HttpClientPool.TIMEOUT))
+				.build();
+	}
+
+	/**
+	 * Fetch the resource with the given url and headers. The future completes
+	 * with the response of any status code or exceptionally on I/O error or
+	 * if the body is larger than maxFeedBytes. The body of the response is
+	 * decompressed.
+	 *
+	 * @param url
+	 * @param headers
+	 * @return
+	 */
+	public CompletableFuture<HttpResponse<byte[]>> fetch(String url,
+			Map<String, String> headers) {
+		HttpRequest.Builder request;
+		try {
+			request = HttpRequest.newBuilder(URI.create(url))
+					.timeout(Duration.ofMillis(HttpClientPool.TIMEOUT))
+					.header(HttpHeaders.USER_AGENT, RSSThreadWorker.USER_AGENT)
+					.header(HttpHeaders.ACCEPT_ENCODING, ACCEPT_ENCODING);
+			for (Map.Entry<String, String> header : headers.entrySet())
+				request.header(header.getKey(), header.getValue());
+		} catch (IllegalArgumentException e) {
+			CompletableFuture<HttpResponse<byte[]>> failed = new CompletableFuture<HttpResponse<byte[]>>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return httpClient.sendAsync(
+				request.GET().build(),
+				responseInfo -> HttpResponse.BodySubscribers.mapping(
+						new CappedBodySubscriber(maxFeedBytes, true),
+						body -> {
+							// one more byte tells if the feed is too large
+							byte[] feed = decompressBody(body,
+									getContentEncoding(responseInfo),
+									maxFeedBytes + 1);
+							if (feed.length > maxFeedBytes)
+								throw new UncheckedIOException(new IOException(
+										"Feed " + url + " is larger than "
+												+ maxFeedBytes + " bytes."));
+							return feed;
+						}));
+	}
+
+	/**
+	 * Fetch web page given the link and return it. At most maxPageBytes of the
+	 * page are received and at most maxPageBytes are decompressed. The future
+	 * completes with null if the response is not 200 (OK) and exceptionally
+	 * if the page is not compressed as specified.
+	 *
+	 * @param link
+	 * @param bodyReader
+	 * @return
+	 */
+	public CompletableFuture<String> fetchPage(String link,
+			final PageBodyReader bodyReader) {
+		HttpRequest request;
+		try {
+			request = HttpRequest.newBuilder(URI.create(link))
+					.timeout(Duration.ofMillis(HttpClientPool.TIMEOUT))
+					.header(HttpHeaders.USER_AGENT, RSSThreadWorker.USER_AGENT)
+					.header(HttpHeaders.ACCEPT_ENCODING, ACCEPT_ENCODING)
+					.GET().build();
+		} catch (IllegalArgumentException e) {
+			CompletableFuture<String> failed = new CompletableFuture<String>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return httpClient.sendAsync(
+				request,
+				responseInfo -> HttpResponse.BodySubscribers.mapping(
+						new CappedBodySubscriber(bodyReader.getMaxPageBytes(),
+								false),
+						body -> decompressBody(body,
+								getContentEncoding(responseInfo),
+								bodyReader.getMaxPageBytes()))).thenApply(
+				response -> {
+					if (response.statusCode() != HttpStatus.SC_OK)
+						return null;
+					return bodyReader.decode(response.body(), response
+							.headers().firstValue(HttpHeaders.CONTENT_TYPE)
+							.orElse(null));
+				});
+	}
+
+	/**
+	 * Returns the body decompressed according to the Content-Encoding header.
+	 * At most max bytes are decompressed. If the compressed body is truncated,
+	 * the bytes decompressed until then are returned. Throws IOException if
+	 * the body is not compressed as specified.
+	 *
+	 * @param body
+	 * @param encoding
+	 *            value of Content-Encoding header or null
+	 * @param max
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] decompress(byte[] body, String encoding, int max)
+			throws IOException {
+		if (encoding == null || body.length == 0)
+			return body;
+		encoding = encoding.trim().toLowerCase();
+		if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+			return inflate(new GZIPInputStream(new ByteArrayInputStream(body)),
+					body.length, max);
+		if (encoding.equals("deflate")) {
+			// deflate should be zlib format, but some servers send raw
+			// deflate data without the zlib header
+			boolean zlib = body.length >= 2 && (body[0] & 0x0f) == 8
+					&& ((body[0] & 0xff) << 8 | (body[1] & 0xff)) % 31 == 0;
+			return inflate(new InflaterInputStream(new ByteArrayInputStream(
+					body), new Inflater(!zlib)), body.length, max);
+		}
+		return body;
+	}
+
+	/**
+	 * Stops the I/O threads.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static String getContentEncoding(
+			HttpResponse.ResponseInfo responseInfo) {
+		return responseInfo.headers().firstValue(HttpHeaders.CONTENT_ENCODING)
+				.orElse(null);
+	}
+
+	/**
+	 * Returns the decompressed body for the mapping of the body subscriber,
+	 * which can only fail with unchecked exception.
+	 *
+	 * @param body
+	 * @param encoding
+	 * @param max
+	 * @return
+	 */
+	private static byte[] decompressBody(byte[] body, String encoding, int max) {
+		try {
+			return decompress(body, encoding, max);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static byte[] inflate(InputStream in, int length, int max)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(max,
+				length * 4));
+		byte[] buffer = new byte[8192];
+		try {
+			for (int n; bytes.size() < max
+					&& (n = in.read(buffer, 0,
+							Math.min(buffer.length, max - bytes.size()))) != -1;)
+				bytes.write(buffer, 0, n);
+		} catch (EOFException e) {
+			// truncated body, e.g. received only up to maxPageBytes
+		} finally {
+			in.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Subscriber that receives the body up to the maximum number of bytes and
+	 * cancels the rest of the body. The body is either truncated or failed
+	 * when it is larger.
+	 */
+	private static class CappedBodySubscriber implements
+			HttpResponse.BodySubscriber<byte[]> {
+		private final CompletableFuture<byte[]> body = new CompletableFuture<byte[]>();
+		private final int maxBytes;
+		private final boolean failLarger;
+		private byte[] bytes = new byte[PageBodyReader.BUFFER_SIZE];
+		private int length = 0;
+		private Flow.Subscription subscription;
+
+		public CappedBodySubscriber(int maxBytes, boolean failLarger) {
+			this.maxBytes = maxBytes;
+			this.failLarger = failLarger;
+		}
+
+		public CompletionStage<byte[]> getBody() {
+			return body;
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		public void onNext(List<ByteBuffer> buffers) {
+			for (ByteBuffer buffer : buffers) {
+				if (failLarger && buffer.remaining() > maxBytes - length) {
+					subscription.cancel();
+					body.completeExceptionally(new IOException(
+							"Body is larger than " + maxBytes + " bytes."));
+					return;
+				}
+				int n = Math.min(buffer.remaining(), maxBytes - length);
+				if (length + n > bytes.length)
+					bytes = Arrays.copyOf(bytes,
+							Math.min(maxBytes, Math.max(length + n, bytes.length * 2)));
+				buffer.get(bytes, length, n);
+				length += n;
+			}
+			if (length >= maxBytes && !failLarger) {
+				subscription.cancel();
+				onComplete();
+			} else
+				subscription.request(1);
+		}
+
+		public void onError(Throwable throwable) {
+			body.completeExceptionally(throwable);
+		}
+
+		public void onComplete() {
+			body.complete(Arrays.copyOf(bytes, length));
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.jernejerin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class represents BK-tree of strings with the Levenshtein distance as
+ * the metric. The children of each node are kept by their distance from the
+ * node, so the search only visits the children whose distance can be within
+ * the given distance of the searched string by the triangle inequality,
+ * instead of comparing the string with all the strings in the tree.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class BKTree {
+
+	private Node root;
+	private int size = 0;
+
+	/**
+	 * Adds the string to the tree. The string that is already in the tree is
+	 * not added again.
+	 *
+	 * @param value
+	 */
+	public void add(String value) {
+		if (root == null) {
+			root = new Node(value);
+			size++;
+			return;
+		}
+		Node node = root;
+		while (true) {
+			int distance = distance(node.value, value, Integer.MAX_VALUE);
+			if (distance == 0)
+				return;
+			Node child = node.children.get(distance);
+			if (child == null) {
+				node.children.put(distance, new Node(value));
+				size++;
+				return;
+			}
+			node = child;
+		}
+	}
+
+	/**
+	 * Returns the strings of the tree within the given distance of the value.
+	 *
+	 * @param value
+	 * @param maxDistance
+	 * @return
+	 */
+	public List<String> search(String value, int maxDistance) {
+		ArrayList<String> found = new ArrayList<String>();
+		if (root == null)
+			return found;
+
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		nodes.add(root);
+		while (!nodes.isEmpty()) {
+			Node node = nodes.remove(nodes.size() - 1);
+			int distance = distance(node.value, value, Integer.MAX_VALUE);
+			if (distance <= maxDistance)
+				found.add(node.value);
+			// only these children can have strings within the distance
+			for (int d = Math.max(1, distance - maxDistance); d <= distance
+					+ maxDistance; d++) {
+				Node child = node.children.get(d);
+				if (child != null)
+					nodes.add(child);
+			}
+		}
+		return found;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the Levenshtein distance of the strings or a value bigger than
+	 * the limit if the distance is bigger than the limit.
+	 *
+	 * @param a
+	 * @param b
+	 * @param limit
+	 * @return
+	 */
+	public static int distance(String a, String b, int limit) {
+		if (Math.abs(a.length() - b.length()) > limit)
+			return limit == Integer.MAX_VALUE ? limit : limit + 1;
+
+		int[] previous = new int[b.length() + 1];
+		int[] current = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); j++)
+			previous[j] = j;
+		for (int i = 1; i <= a.length(); i++) {
+			current[0] = i;
+			int rowMin = current[0];
+			for (int j = 1; j <= b.length(); j++) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				current[j] = Math.min(Math.min(current[j - 1] + 1,
+						previous[j] + 1), previous[j - 1] + cost);
+				rowMin = Math.min(rowMin, current[j]);
+			}
+			if (rowMin > limit)
+				return limit + 1;
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[b.length()];
+	}
+
+	private static class Node {
+		private final String value;
+		private final HashMap<Integer, Node> children = new HashMap<Integer, Node>();
+
+		private Node(String value) {
+			this.value = value;
+		}
+	}
+}
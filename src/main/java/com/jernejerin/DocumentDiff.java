@@ -0,0 +1,78 @@
+package com.jernejerin;
+
+import java.util.Arrays;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * This class represents the difference between the document as it was loaded
+ * from DB and the changed document, as an update with $set of the changed and
+ * added fields and $unset of the removed fields. Only the fields that changed
+ * are written, so e.g. the poll of a feed that only changed the access time
+ * does not rewrite the authors, categories and image of the feed.
+ *
+ * The fields are compared at the top level, a changed embedded document or
+ * array is set as a whole.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class DocumentDiff {
+
+	private DocumentDiff() {
+	}
+
+	/**
+	 * Returns a copy of the loaded document to compare with after it is
+	 * changed. The values are not copied, so the changes have to put new
+	 * values into the document and not change the values in place.
+	 *
+	 * @param loaded
+	 * @return
+	 */
+	public static DBObject snapshot(DBObject loaded) {
+		BasicDBObject snapshot = new BasicDBObject();
+		snapshot.putAll(loaded);
+		return snapshot;
+	}
+
+	/**
+	 * Returns the update that changes the saved document into the changed
+	 * document or an empty document if they are the same. The _id is never
+	 * part of the update.
+	 *
+	 * @param saved
+	 * @param changed
+	 * @return
+	 */
+	public static BasicDBObject diff(DBObject saved, DBObject changed) {
+		BasicDBObject set = new BasicDBObject();
+		BasicDBObject unset = new BasicDBObject();
+		for (String field : changed.keySet()) {
+			if (field.equals("_id"))
+				continue;
+			Object value = changed.get(field);
+			if (!saved.containsField(field)
+					|| !isEqual(saved.get(field), value))
+				set.put(field, value);
+		}
+		for (String field : saved.keySet())
+			if (!field.equals("_id") && !changed.containsField(field))
+				unset.put(field, "");
+
+		BasicDBObject update = new BasicDBObject();
+		if (!set.isEmpty())
+			update.put("$set", set);
+		if (!unset.isEmpty())
+			update.put("$unset", unset);
+		return update;
+	}
+
+	private static boolean isEqual(Object saved, Object changed) {
+		if (saved instanceof byte[] && changed instanceof byte[])
+			return Arrays.equals((byte[]) saved, (byte[]) changed);
+		return saved == null ? changed == null : saved.equals(changed);
+	}
+}
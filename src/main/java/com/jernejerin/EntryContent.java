@@ -0,0 +1,289 @@
+package com.jernejerin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * This class represents the whole content of the entry (HTML page) as it is
+ * saved in the field fullContent of the entry. The content is saved either as
+ * string or compressed with gzip as binary data. If a page store is used, the
+ * content is saved in the store and the entry only keeps its hash in the field
+ * pageHash and the id of the store in the field pageStore. The page store is
+ * local to the worker, so each page is also saved once in the collection
+ * pages with its hash as _id. The entry with the same page as an entry of
+ * another feed is linked to it with the field canonicalId and has no content.
+ * The readers of the entries should get the content with method
+ * getFullContent, which handles all of these.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class EntryContent {
+
+	/** The name of the collection of the pages, in the DB of the entries. */
+	public static final String PAGES_COLLECTION = "pages";
+
+	// logger for this class
+	private static final Logger LOG = Logger.getLogger(EntryContent.class);
+
+	private final boolean compress;
+	private final PageStore pageStore;
+	private final WriteBehindWriter writer;
+	private final DBCollection pagesColl;
+
+	/**
+	 * Creates content that is saved compressed or as string.
+	 *
+	 * @param compress
+	 */
+	public EntryContent(boolean compress) {
+		this(compress, null);
+	}
+
+	/**
+	 * Creates content that is saved compressed or as string in the page store
+	 * or in the entry if the page store is null. The pages are not saved in
+	 * DB, so only the readers with the same page store can read them.
+	 *
+	 * @param compress
+	 * @param pageStore
+	 */
+	public EntryContent(boolean compress, PageStore pageStore) {
+		this(compress, pageStore, null, null);
+	}
+
+	/**
+	 * Creates content that is saved the same way as with the constructor
+	 * above and the pages of the store are also saved in the pages
+	 * collection with the writer.
+	 *
+	 * @param compress
+	 * @param pageStore
+	 * @param writer
+	 * @param pagesColl
+	 */
+	public EntryContent(boolean compress, PageStore pageStore,
+			WriteBehindWriter writer, DBCollection pagesColl) {
+		this.compress = compress;
+		this.pageStore = pageStore;
+		this.writer = writer;
+		this.pagesColl = pagesColl;
+	}
+
+	/**
+	 * Put the web page into the page store and its hash into the field
+	 * pageHash of the entry and the id of the store into the field
+	 * pageStore. The page that is new in the store is also saved in the pages
+	 * collection. Without page store or if the page could not be stored, it
+	 * is put into the field fullContent.
+	 *
+	 * @param entryDB
+	 * @param webPage
+	 */
+	public void put(DBObject entryDB, String webPage) {
+		if (pageStore != null && webPage != null) {
+			byte[] content = compress ? gzip(webPage) : webPage
+					.getBytes(StandardCharsets.UTF_8);
+			boolean stored = pageStore.contains(PageStore.hash(content));
+			String pageHash = pageStore.put(content);
+			if (pageHash != null) {
+				// the page is accepted by the writer before the entry, so it
+				// is in DB when the write of the entry completes
+				if (!stored && writer != null)
+					writer.insert(pagesColl, new BasicDBObject("_id",
+							pageHash).append("content", content));
+				entryDB.put("pageHash", pageHash);
+				entryDB.put("pageStore", pageStore.getId());
+				return;
+			}
+		}
+		if (compress && webPage != null)
+			entryDB.put("fullContent", gzip(webPage));
+		else
+			entryDB.put("fullContent", webPage);
+	}
+
+	/**
+	 * Returns true if the whole content of the entry can be read wherever
+	 * the content of this instance is read, i.e. the content is in the entry,
+	 * in the same page store or this instance saves the pages in DB.
+	 *
+	 * @param entryDB
+	 * @return
+	 */
+	public boolean isReadable(DBObject entryDB) {
+		if (entryDB.get("pageHash") == null)
+			return true;
+		if (pageStore != null
+				&& pageStore.getId().equals(entryDB.get("pageStore")))
+			return true;
+		return pagesColl != null && entryDB.get("pageStore") != null;
+	}
+
+	/**
+	 * Returns the whole content of the entry or null if it has none.
+	 *
+	 * @param entryDB
+	 * @return
+	 */
+	public static String getFullContent(DBObject entryDB) {
+		Object fullContent = entryDB.get("fullContent");
+		if (fullContent instanceof byte[])
+			return gunzip((byte[]) fullContent);
+		return (String) fullContent;
+	}
+
+	/**
+	 * Returns the whole content of the entry from the entry or from the page
+	 * store or null if it has none. The page is read from the given store if
+	 * the entry is saved in it or from the store of the entry if it is open
+	 * in this VM. The readers without the page store of the entry have to use
+	 * method getFullContent(entryDB, entriesColl, pageStore), which reads the
+	 * page from DB.
+	 *
+	 * @param entryDB
+	 * @param pageStore
+	 * @return
+	 */
+	public static String getFullContent(DBObject entryDB, PageStore pageStore) {
+		String pageHash = (String) entryDB.get("pageHash");
+		if (pageHash == null)
+			return getFullContent(entryDB);
+		ByteBuffer page = getLocalPage(entryDB, pageStore);
+		if (page == null) {
+			LOG.warn("Page " + pageHash + " of store "
+					+ entryDB.get("pageStore") + " is not in this VM.");
+			return null;
+		}
+		return decode(page);
+	}
+
+	/**
+	 * Returns the whole content of the entry or of the canonical entry the
+	 * entry is linked to, because it has the same page. The page that is not
+	 * in the page store is read from the pages collection in the DB of the
+	 * entries.
+	 *
+	 * @param entryDB
+	 * @param entriesColl
+	 * @param pageStore
+	 * @return
+	 */
+	public static String getFullContent(DBObject entryDB,
+			DBCollection entriesColl, PageStore pageStore) {
+		Object canonicalId = entryDB.get("canonicalId");
+		if (canonicalId != null) {
+			DBObject canonicalDB = entriesColl.findOne(new BasicDBObject(
+					"_id", canonicalId), new BasicDBObject("fullContent", 1)
+					.append("pageHash", 1).append("pageStore", 1));
+			if (canonicalDB != null)
+				entryDB = canonicalDB;
+		}
+		String pageHash = (String) entryDB.get("pageHash");
+		if (pageHash == null)
+			return getFullContent(entryDB);
+		ByteBuffer page = getLocalPage(entryDB, pageStore);
+		if (page != null)
+			return decode(page);
+
+		DBObject pageDB = entriesColl.getDB().getCollection(PAGES_COLLECTION)
+				.findOne(new BasicDBObject("_id", pageHash));
+		if (pageDB == null) {
+			LOG.warn("Page " + pageHash + " is neither in the page store nor in DB.");
+			return null;
+		}
+		return decode(ByteBuffer.wrap((byte[]) pageDB.get("content")));
+	}
+
+	/**
+	 * Returns the page of the entry from the given page store if the entry
+	 * is saved in it or from the store of the entry if it is open in this VM.
+	 *
+	 * @param entryDB
+	 * @param pageStore
+	 * @return
+	 */
+	private static ByteBuffer getLocalPage(DBObject entryDB,
+			PageStore pageStore) {
+		String storeId = (String) entryDB.get("pageStore");
+		if (storeId != null
+				&& (pageStore == null || !storeId.equals(pageStore.getId())))
+			pageStore = PageStore.getOpen(storeId);
+		if (pageStore == null)
+			return null;
+		return pageStore.get((String) entryDB.get("pageHash"));
+	}
+
+	/**
+	 * Returns the text of the page that is either compressed with gzip or
+	 * UTF-8 text.
+	 *
+	 * @param page
+	 * @return
+	 */
+	private static String decode(ByteBuffer page) {
+		if (page.remaining() >= 2 && (page.get(page.position()) & 0xff) == 0x1f
+				&& (page.get(page.position() + 1) & 0xff) == 0x8b) {
+			// gzip compressed, UTF-8 text cannot start with these bytes
+			byte[] data = new byte[page.remaining()];
+			page.get(data);
+			return gunzip(data);
+		}
+		return StandardCharsets.UTF_8.decode(page).toString();
+	}
+
+	/**
+	 * Returns the text compressed with gzip.
+	 *
+	 * @param text
+	 * @return
+	 */
+	public static byte[] gzip(String text) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					text.length() / 4 + 64);
+			GZIPOutputStream out = new GZIPOutputStream(bytes);
+			out.write(text.getBytes(StandardCharsets.UTF_8));
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// cannot happen when writing to memory
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the text decompressed from gzip data or null if the data is
+	 * corrupted.
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static String gunzip(byte[] data) {
+		try {
+			InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					data.length * 4);
+			byte[] buffer = new byte[8192];
+			for (int n; (n = in.read(buffer)) != -1;)
+				bytes.write(buffer, 0, n);
+			return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			LOG.error(e.getMessage());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package com.jernejerin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class represents worker local set of the SHA-1 digests of the saved
+ * entries. The digests are kept as raw 20 bytes in an open addressing hash
+ * table in a memory mapped file, i.e. off the heap, and are warm after restart
+ * of the worker. A Bloom filter on the heap is checked first, so for most new
+ * entries the table is not even read. Checking for a digest is lock free,
+ * only adding is synchronized.
+ *
+ * The set is only a cache of the entries collection. If a digest is not found
+ * the entry still has to be checked in the DB. Each worker on the same
+ * machine has to use its own file.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class EntryDigestIndex {
+
+	/** Length of SHA-1 digest in bytes. */
+	public static final int DIGEST_LENGTH = 20;
+
+	/** Maximal fraction of used slots. */
+	public static final double MAX_LOAD = 0.75;
+
+	/** Maximal number of slots, so that the table can be mapped at once. */
+	public static final int MAX_SLOTS = 1 << 26;
+
+	/** Bits of Bloom filter per slot. */
+	private static final int BLOOM_BITS = 10;
+
+	/** Number of Bloom filter hash functions. */
+	private static final int BLOOM_HASHES = 7;
+
+	private static final int MAGIC = 0x52535349;
+	private static final int HEADER_LENGTH = 16;
+
+	// logger for this class
+	private static final Logger LOG = Logger.getLogger(EntryDigestIndex.class);
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer table;
+	private final int slots;
+	private final int mask;
+	private final AtomicLongArray bloom;
+	private final long bloomBits;
+	private int count;
+
+	/**
+	 * Opens the index in the given file or creates a new one if the file does
+	 * not exist or was created with different number of slots.
+	 *
+	 * @param path
+	 * @param slots
+	 *            number of slots, rounded up to power of two
+	 * @throws IOException
+	 */
+	public EntryDigestIndex(String path, int slots) throws IOException {
+		this.slots = Integer.highestOneBit(Math.min(Math.max(slots - 1, 1),
+				MAX_SLOTS - 1)) << 1;
+		this.mask = this.slots - 1;
+		this.bloomBits = (long) this.slots * BLOOM_BITS;
+		this.bloom = new AtomicLongArray((int) ((bloomBits + 63) / 64));
+
+		boolean exists = new File(path).exists();
+		file = new RandomAccessFile(path, "rw");
+		long length = HEADER_LENGTH + (long) this.slots * DIGEST_LENGTH;
+		if (exists && (file.length() != length || file.readInt() != MAGIC
+				|| file.readInt() != this.slots)) {
+			LOG.info("Digest index " + path + " does not match, creating new.");
+			file.setLength(0);
+			exists = false;
+		}
+		file.setLength(length);
+		table = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				length);
+		table.putInt(0, MAGIC);
+		table.putInt(4, this.slots);
+
+		// warm start, fill the Bloom filter with digests from disk
+		if (exists) {
+			byte[] digest = new byte[DIGEST_LENGTH];
+			for (int slot = 0; slot < this.slots; slot++) {
+				if (!isEmpty(slot)) {
+					read(slot, digest);
+					bloomAdd(digest);
+					count++;
+				}
+			}
+			LOG.info("Loaded " + count + " digests from " + path);
+		}
+		table.putInt(8, count);
+	}
+
+	/**
+	 * Returns true if the digest is in the set.
+	 *
+	 * @param digest
+	 * @return
+	 */
+	public boolean contains(byte[] digest) {
+		if (!bloomContains(digest))
+			return false;
+		for (int slot = slot(digest), i = 0; i < slots; slot = (slot + 1)
+				& mask, i++) {
+			if (isEmpty(slot))
+				return false;
+			if (matches(slot, digest))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the digest to the set. Returns false if the set is full.
+	 *
+	 * @param digest
+	 * @return
+	 */
+	public synchronized boolean add(byte[] digest) {
+		if (count >= slots * MAX_LOAD) {
+			LOG.warn("Digest index is full.");
+			return false;
+		}
+		int slot = slot(digest);
+		while (!isEmpty(slot)) {
+			if (matches(slot, digest))
+				return true;
+			slot = (slot + 1) & mask;
+		}
+
+		// the first 8 bytes are written last, until then readers see the
+		// slot as empty or not matching
+		int offset = offset(slot);
+		for (int i = 8; i < DIGEST_LENGTH; i++)
+			table.put(offset + i, digest[i]);
+		for (int i = 0; i < 8; i++)
+			table.put(offset + i, digest[i]);
+		bloomAdd(digest);
+		table.putInt(8, ++count);
+		return true;
+	}
+
+	/**
+	 * Returns the number of digests in the set.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Writes changes to disk and closes the file.
+	 */
+	public synchronized void close() {
+		table.force();
+		try {
+			file.close();
+		} catch (IOException e) {
+			LOG.error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the digest of entry id for this index. The SHA-1 digest of the
+	 * id, which is also the hash id of the entry, is combined with digest of
+	 * the feed, so that the same entry of two feeds has two digests.
+	 *
+	 * @param idDigest
+	 * @param feedDigest
+	 * @return
+	 */
+	public static byte[] entryDigest(byte[] idDigest, byte[] feedDigest) {
+		byte[] digest = new byte[DIGEST_LENGTH];
+		for (int i = 0; i < DIGEST_LENGTH; i++)
+			digest[i] = (byte) (idDigest[i] ^ feedDigest[i]);
+		return digest;
+	}
+
+	private int offset(int slot) {
+		return HEADER_LENGTH + slot * DIGEST_LENGTH;
+	}
+
+	private int slot(byte[] digest) {
+		// digest is uniformly distributed, so any bytes will do
+		return getInt(digest, 0) & mask;
+	}
+
+	private boolean isEmpty(int slot) {
+		int offset = offset(slot);
+		return table.getLong(offset) == 0 && table.getLong(offset + 8) == 0
+				&& table.getInt(offset + 16) == 0;
+	}
+
+	private boolean matches(int slot, byte[] digest) {
+		int offset = offset(slot);
+		for (int i = 0; i < DIGEST_LENGTH; i++)
+			if (table.get(offset + i) != digest[i])
+				return false;
+		return true;
+	}
+
+	private void read(int slot, byte[] digest) {
+		int offset = offset(slot);
+		for (int i = 0; i < DIGEST_LENGTH; i++)
+			digest[i] = table.get(offset + i);
+	}
+
+	private void bloomAdd(byte[] digest) {
+		long h1 = getInt(digest, 4) & 0xffffffffL;
+		long h2 = getInt(digest, 8) & 0xffffffffL;
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			long bit = (h1 + i * h2) % bloomBits;
+			int word = (int) (bit >>> 6);
+			long value = 1L << (bit & 63);
+			long old;
+			do {
+				old = bloom.get(word);
+				if ((old & value) != 0)
+					break;
+			} while (!bloom.compareAndSet(word, old, old | value));
+		}
+	}
+
+	private boolean bloomContains(byte[] digest) {
+		long h1 = getInt(digest, 4) & 0xffffffffL;
+		long h2 = getInt(digest, 8) & 0xffffffffL;
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			long bit = (h1 + i * h2) % bloomBits;
+			if ((bloom.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static int getInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+				| (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+	}
+}
@@ -0,0 +1,270 @@
+package com.jernejerin;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * This class represents the index of the normalized raw ids (idRaw) of the
+ * latest entries of the feeds, used to find the new entries whose id is
+ * nearly the same as the id of a saved entry, e.g. because the feed added
+ * tracking parameters to the links. The ids of each
+ * feed are kept in a BK-tree, which is loaded from DB when the feed is first
+ * polled by the worker and then updated with the new entries. Only the trees
+ * of the recently polled feeds are kept in memory.
+ *
+ * The ids are similar if their Levenshtein distance is at most the maximum
+ * distance and they have the same numbers, as the ids that only differ in a
+ * number are usually different entries, e.g. ?p=123 and ?p=124. The URLs
+ * must also have the same path, so only their query may differ, as the
+ * slugs that differ in a letter are usually different entries too, e.g.
+ * /posts/cats and /posts/bats. Other ids, e.g. the GUIDs, must be the same
+ * after normalization, as an edit anywhere in them may be a new entry.
+ *
+ * One instance is created in class RSSMainWorker and is shared by all thread
+ * workers.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class EntryIdIndex {
+
+	private final DBCollection entriesColl;
+	private final int maxDistance;
+	private final int maxIds;
+	private final LinkedHashMap<Object, FeedIds> feeds;
+
+	/**
+	 * Creates the index.
+	 *
+	 * @param entriesColl
+	 * @param maxDistance
+	 *            maximum Levenshtein distance of the similar ids
+	 * @param maxFeeds
+	 *            number of feeds whose ids are kept in memory
+	 * @param maxIds
+	 *            number of the latest ids kept for each feed
+	 */
+	public EntryIdIndex(DBCollection entriesColl, int maxDistance,
+			final int maxFeeds, int maxIds) {
+		this.entriesColl = entriesColl;
+		this.maxDistance = maxDistance;
+		this.maxIds = maxIds;
+		feeds = new LinkedHashMap<Object, FeedIds>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, FeedIds> eldest) {
+				return size() > maxFeeds;
+			}
+		};
+	}
+
+	/**
+	 * Returns the saved id of the feed that is similar to the given id or
+	 * null if there is none.
+	 *
+	 * @param feedId
+	 * @param idRaw
+	 * @return
+	 */
+	public String findSimilar(Object feedId, String idRaw) {
+		String id = normalizeId(idRaw);
+		FeedIds feedIds = getFeedIds(feedId);
+		synchronized (feedIds) {
+			for (String similar : feedIds.tree.search(id,
+					getMaxDistance(id, maxDistance)))
+				if (isSimilar(id, similar, maxDistance))
+					return similar;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if the normalized id of the new entry is similar to the
+	 * normalized id of the saved entry.
+	 *
+	 * @param id
+	 * @param savedId
+	 * @param maxDistance
+	 *            maximum Levenshtein distance of the similar ids
+	 * @return
+	 */
+	public static boolean isSimilar(String id, String savedId, int maxDistance) {
+		if (id.equals(savedId))
+			return true;
+		int distance = getMaxDistance(id, maxDistance);
+		if (distance == 0)
+			return false;
+		if (isUrl(id) && !getPath(id).equals(getPath(savedId)))
+			return false;
+		return BKTree.distance(id, savedId, distance) <= distance
+				&& getNumbers(id).equals(getNumbers(savedId));
+	}
+
+	/**
+	 * Returns the maximum distance of the ids similar to the id. The URLs
+	 * only differ in the query, so they are allowed the whole maximum
+	 * distance, the other ids none.
+	 *
+	 * @param id
+	 * @param maxDistance
+	 * @return
+	 */
+	private static int getMaxDistance(String id, int maxDistance) {
+		return isUrl(id) ? maxDistance : 0;
+	}
+
+	private static boolean isUrl(String id) {
+		return id.indexOf("://") > 0;
+	}
+
+	/**
+	 * Returns the URL without the query.
+	 *
+	 * @param id
+	 * @return
+	 */
+	private static String getPath(String id) {
+		int query = id.indexOf('?');
+		return query == -1 ? id : id.substring(0, query);
+	}
+
+	/**
+	 * Adds the id of the new entry of the feed.
+	 *
+	 * @param feedId
+	 * @param idRaw
+	 */
+	public void add(Object feedId, String idRaw) {
+		FeedIds feedIds = getFeedIds(feedId);
+		synchronized (feedIds) {
+			feedIds.add(normalizeId(idRaw), maxIds);
+		}
+	}
+
+	/**
+	 * Returns the id without the tracking parameters (utm_*) and the fragment
+	 * and with lower case scheme and host if it is a URL.
+	 *
+	 * @param idRaw
+	 * @return
+	 */
+	public static String normalizeId(String idRaw) {
+		String id = idRaw.trim();
+		try {
+			URI uri = new URI(id);
+			if (uri.getScheme() == null || uri.getHost() == null)
+				return id;
+
+			StringBuilder query = new StringBuilder();
+			if (uri.getRawQuery() != null)
+				for (String param : uri.getRawQuery().split("&"))
+					if (!param.isEmpty()
+							&& !param.toLowerCase(Locale.ROOT).startsWith(
+									"utm_")) {
+						if (query.length() > 0)
+							query.append('&');
+						query.append(param);
+					}
+
+			StringBuilder normalized = new StringBuilder(uri.getScheme()
+					.toLowerCase(Locale.ROOT)).append("://");
+			normalized.append(uri.getHost().toLowerCase(Locale.ROOT));
+			if (uri.getPort() != -1)
+				normalized.append(':').append(uri.getPort());
+			if (uri.getRawPath() != null)
+				normalized.append(uri.getRawPath());
+			if (query.length() > 0)
+				normalized.append('?').append(query);
+			return normalized.toString();
+		} catch (URISyntaxException e) {
+			return id;
+		}
+	}
+
+	/**
+	 * Returns the ids of the feed, loaded from DB if they are not in memory.
+	 *
+	 * @param feedId
+	 * @return
+	 */
+	private FeedIds getFeedIds(Object feedId) {
+		FeedIds feedIds;
+		synchronized (feeds) {
+			feedIds = feeds.get(feedId);
+			if (feedIds == null) {
+				feedIds = new FeedIds();
+				feeds.put(feedId, feedIds);
+			}
+		}
+		synchronized (feedIds) {
+			if (!feedIds.loaded) {
+				// the latest entries first
+				DBCursor cursor = entriesColl
+						.find(new BasicDBObject("feedId", feedId),
+								new BasicDBObject("idRaw", 1).append("_id", 0))
+						.sort(new BasicDBObject("_id", -1)).limit(maxIds);
+				try {
+					ArrayDeque<String> ids = new ArrayDeque<String>();
+					while (cursor.hasNext()) {
+						DBObject entryDB = cursor.next();
+						if (entryDB.get("idRaw") != null)
+							ids.addFirst(normalizeId((String) entryDB
+									.get("idRaw")));
+					}
+					for (String id : ids)
+						feedIds.add(id, maxIds);
+				} finally {
+					cursor.close();
+				}
+				feedIds.loaded = true;
+			}
+		}
+		return feedIds;
+	}
+
+	private static String getNumbers(String id) {
+		StringBuilder numbers = new StringBuilder();
+		for (int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if (Character.isDigit(c))
+				numbers.append(c);
+			else if (numbers.length() > 0
+					&& numbers.charAt(numbers.length() - 1) != ' ')
+				numbers.append(' ');
+		}
+		return numbers.toString().trim();
+	}
+
+	/**
+	 * The latest ids of a feed. The BK-tree has no removal, so it is rebuilt
+	 * from the latest ids when it has twice as many ids.
+	 */
+	private static class FeedIds {
+		private final ArrayDeque<String> latest = new ArrayDeque<String>();
+		private BKTree tree = new BKTree();
+		private boolean loaded = false;
+
+		private void add(String id, int maxIds) {
+			latest.addLast(id);
+			if (latest.size() > maxIds)
+				latest.removeFirst();
+			tree.add(id);
+			if (tree.size() > 2 * maxIds) {
+				tree = new BKTree();
+				for (String latestId : latest)
+					tree.add(latestId);
+			}
+		}
+	}
+}
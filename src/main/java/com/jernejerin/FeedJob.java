@@ -0,0 +1,186 @@
+package com.jernejerin;
+
+import java.util.Date;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * This class represents the job of polling one feed as it is sent from
+ * RSSDelegateWorker to RSSMainWorker. The message only carries what the
+ * worker needs for the request, i.e. the id and the URL of the feed and the
+ * validators from the previous poll, and a few scheduling hints. The rest of
+ * the feed is loaded from DB by the thread worker when it is needed.
+ *
+ * The job is written as binary data into a BytesMessage, so the message is a
+ * few hundred bytes regardless of the size of the feed document.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class FeedJob {
+
+	/** Version of the binary format. */
+	private static final byte VERSION = 1;
+
+	private static final byte ID_OBJECT_ID = 0;
+	private static final byte ID_STRING = 1;
+
+	private final Object feedId;
+	private final String feedUrl;
+	private final String etag;
+	private final String lastModified;
+	private final Date queuedAt;
+	private final int pollInterval;
+
+	public FeedJob(Object feedId, String feedUrl, String etag,
+			String lastModified, Date queuedAt, int pollInterval) {
+		this.feedId = feedId;
+		this.feedUrl = feedUrl;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.queuedAt = queuedAt;
+		this.pollInterval = pollInterval;
+	}
+
+	/**
+	 * Creates job for polling the feed.
+	 *
+	 * @param feedDB
+	 * @return
+	 */
+	public static FeedJob fromFeed(DBObject feedDB) {
+		Number pollInterval = (Number) feedDB.get("pollInterval");
+		return new FeedJob(feedDB.get("_id"), (String) feedDB.get("feedUrl"),
+				(String) feedDB.get("etag"),
+				(String) feedDB.get("lastModified"),
+				(Date) feedDB.get("queuedAt"),
+				pollInterval != null ? pollInterval.intValue() : 0);
+	}
+
+	/**
+	 * Returns the feed with the fields of the job, i.e. the id, the URL and
+	 * the validators.
+	 *
+	 * @return
+	 */
+	public DBObject toFeed() {
+		BasicDBObject feedDB = new BasicDBObject("_id", feedId).append(
+				"feedUrl", feedUrl);
+		if (etag != null)
+			feedDB.append("etag", etag);
+		if (lastModified != null)
+			feedDB.append("lastModified", lastModified);
+		if (queuedAt != null)
+			feedDB.append("queuedAt", queuedAt);
+		return feedDB;
+	}
+
+	/**
+	 * Returns the message with the job.
+	 *
+	 * @param sess
+	 * @return
+	 * @throws JMSException
+	 */
+	public BytesMessage toMessage(Session sess) throws JMSException {
+		BytesMessage msg = sess.createBytesMessage();
+		msg.writeByte(VERSION);
+		if (feedId instanceof ObjectId) {
+			msg.writeByte(ID_OBJECT_ID);
+			msg.writeBytes(((ObjectId) feedId).toByteArray());
+		} else {
+			msg.writeByte(ID_STRING);
+			msg.writeUTF(feedId.toString());
+		}
+		msg.writeUTF(feedUrl);
+		writeString(msg, etag);
+		writeString(msg, lastModified);
+		msg.writeLong(queuedAt != null ? queuedAt.getTime() : 0);
+		msg.writeInt(pollInterval);
+		return msg;
+	}
+
+	/**
+	 * Returns the job read from the message.
+	 *
+	 * @param msg
+	 * @return
+	 * @throws JMSException
+	 *             if the message is not a job of this version
+	 */
+	public static FeedJob fromMessage(BytesMessage msg) throws JMSException {
+		byte version = msg.readByte();
+		if (version != VERSION)
+			throw new JMSException("Unknown version " + version + " of job.");
+
+		Object feedId;
+		if (msg.readByte() == ID_OBJECT_ID) {
+			byte[] id = new byte[12];
+			msg.readBytes(id);
+			feedId = new ObjectId(id);
+		} else
+			feedId = msg.readUTF();
+		String feedUrl = msg.readUTF();
+		String etag = readString(msg);
+		String lastModified = readString(msg);
+		long queuedAt = msg.readLong();
+		int pollInterval = msg.readInt();
+		return new FeedJob(feedId, feedUrl, etag, lastModified,
+				queuedAt != 0 ? new Date(queuedAt) : null, pollInterval);
+	}
+
+	public Object getFeedId() {
+		return feedId;
+	}
+
+	public String getFeedUrl() {
+		return feedUrl;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	public Date getQueuedAt() {
+		return queuedAt;
+	}
+
+	/**
+	 * Returns the current poll interval of the feed in seconds or 0 if the
+	 * feed was not polled yet.
+	 *
+	 * @return
+	 */
+	public int getPollInterval() {
+		return pollInterval;
+	}
+
+	@Override
+	public String toString() {
+		return "FeedJob [feedId=" + feedId + ", feedUrl=" + feedUrl
+				+ ", pollInterval=" + pollInterval + "]";
+	}
+
+	private static void writeString(BytesMessage msg, String value)
+			throws JMSException {
+		msg.writeBoolean(value != null);
+		if (value != null)
+			msg.writeUTF(value);
+	}
+
+	private static String readString(BytesMessage msg) throws JMSException {
+		return msg.readBoolean() ? msg.readUTF() : null;
+	}
+}
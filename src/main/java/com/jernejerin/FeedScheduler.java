@@ -0,0 +1,221 @@
+package com.jernejerin;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * This class represents scheduler of feed polls that is owned by
+ * RSSDelegateWorker. Each feed is kept in a time ordered priority queue by the
+ * time it is due for the next poll. The poll interval of the feed adapts to
+ * the observed rate of new entries, so the feeds which rarely publish are
+ * polled rarely and busy feeds are polled often. The interval is also bounded
+ * by the ttl of the channel and the date of the latest entry.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class FeedScheduler {
+
+	/**
+	 * The expected number of new entries per poll we are aiming for. With one
+	 * new entry per poll we do not miss any entry even if feed only contains
+	 * the latest few and we do not poll in vain.
+	 */
+	public static final double TARGET_NEW_ENTRIES = 1.0;
+
+	/** Weight of the newest observation of entry rate in moving average. */
+	public static final double RATE_WEIGHT = 0.3;
+
+	/**
+	 * The fraction of the time since the latest entry that we wait before
+	 * polling again a feed that did not have new entries.
+	 */
+	public static final int IDLE_DIVISOR = 4;
+
+	/** Minimal time in seconds between two polls of the same feed. */
+	private final int minInterval;
+
+	/** Maximal time in seconds between two polls of the same feed. */
+	private final int maxInterval;
+
+	private final PriorityQueue<ScheduledFeed> queue = new PriorityQueue<ScheduledFeed>();
+
+	/**
+	 * Currently valid schedule of each feed. Older schedules that are still in
+	 * the queue are skipped when they come to the head of the queue.
+	 */
+	private final HashMap<Object, ScheduledFeed> scheduled = new HashMap<Object, ScheduledFeed>();
+
+	public FeedScheduler(int minInterval, int maxInterval) {
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+	}
+
+	/**
+	 * Schedule the feed with the given id to be due at given time in ms. If
+	 * the feed is already scheduled then the previous schedule is replaced.
+	 *
+	 * @param feedId
+	 * @param dueAt
+	 */
+	public synchronized void schedule(Object feedId, long dueAt) {
+		ScheduledFeed scheduledFeed = new ScheduledFeed(feedId, dueAt);
+		scheduled.put(feedId, scheduledFeed);
+		queue.add(scheduledFeed);
+		notifyAll();
+	}
+
+	/**
+	 * Returns the id of the next due feed. Waits at most timeout ms for the
+	 * feed to become due and returns null if none is due in that time.
+	 *
+	 * @param timeout
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public synchronized Object take(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			ScheduledFeed head = queue.peek();
+
+			// skip the schedules that were replaced
+			if (head != null && scheduled.get(head.feedId) != head) {
+				queue.poll();
+				continue;
+			}
+
+			long now = System.currentTimeMillis();
+			if (head != null && head.dueAt <= now) {
+				queue.poll();
+				scheduled.remove(head.feedId);
+				return head.feedId;
+			}
+			if (now >= deadline)
+				return null;
+
+			long wait = deadline - now;
+			if (head != null)
+				wait = Math.min(wait, head.dueAt - now);
+			wait(wait);
+		}
+	}
+
+	/**
+	 * Returns the ids of at most max due feeds. Waits at most timeout ms for
+	 * the first feed to become due and returns empty list if none is due in
+	 * that time.
+	 *
+	 * @param max
+	 * @param timeout
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public synchronized List<Object> takeDue(int max, long timeout)
+			throws InterruptedException {
+		List<Object> due = new ArrayList<Object>();
+		Object feedId = take(timeout);
+		while (feedId != null) {
+			due.add(feedId);
+			feedId = due.size() < max ? take(0) : null;
+		}
+		return due;
+	}
+
+	/**
+	 * Returns the number of scheduled feeds.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return scheduled.size();
+	}
+
+	/**
+	 * Computes the next poll of the feed after it was polled at the given
+	 * time. The rate of new entries is a moving average of the new entries per
+	 * second since the previous poll. Returns the fields of the feed document
+	 * that need to be set: pollInterval, entryRate, polledAt and nextPollAt.
+	 *
+	 * @param feedDB
+	 *            the feed document with the scheduling fields of previous
+	 *            poll
+	 * @param newEntries
+	 *            number of new entries found in this poll
+	 * @param latestEntryAt
+	 *            publish date of the latest entry or null
+	 * @param now
+	 *            time of this poll in ms
+	 * @return
+	 */
+	public BasicDBObject nextPoll(DBObject feedDB, int newEntries,
+			Date latestEntryAt, long now) {
+		int prevInterval = minInterval;
+		if (feedDB.get("pollInterval") != null)
+			prevInterval = ((Number) feedDB.get("pollInterval")).intValue();
+
+		// seconds since the previous poll
+		double elapsed = prevInterval;
+		if (feedDB.get("polledAt") != null)
+			elapsed = Math.max(1,
+					(now - ((Date) feedDB.get("polledAt")).getTime()) / 1000.0);
+
+		double rate = newEntries / elapsed;
+		if (feedDB.get("entryRate") != null)
+			rate = RATE_WEIGHT * rate + (1 - RATE_WEIGHT)
+					* ((Number) feedDB.get("entryRate")).doubleValue();
+
+		double interval;
+		if (newEntries > 0 && rate > 0)
+			interval = TARGET_NEW_ENTRIES / rate;
+		else {
+			// nothing new, back off
+			interval = prevInterval * 2.0;
+			if (rate > 0)
+				interval = Math.min(interval, TARGET_NEW_ENTRIES / rate);
+
+			// feed that has not published for a long time will probably not
+			// publish soon
+			if (latestEntryAt == null)
+				latestEntryAt = (Date) feedDB.get("pubDate");
+			if (latestEntryAt != null)
+				interval = Math.max(interval,
+						(now - latestEntryAt.getTime()) / 1000.0 / IDLE_DIVISOR);
+		}
+
+		// ttl in minutes tells how long the channel can be cached
+		if (feedDB.get("ttl") != null)
+			interval = Math.max(interval,
+					((Number) feedDB.get("ttl")).intValue() * 60);
+
+		int pollInterval = (int) Math.max(minInterval,
+				Math.min(maxInterval, interval));
+
+		return new BasicDBObject("pollInterval", pollInterval)
+				.append("entryRate", rate).append("polledAt", new Date(now))
+				.append("nextPollAt", new Date(now + pollInterval * 1000L));
+	}
+
+	/**
+	 * Feed in the queue with the time it is due.
+	 */
+	private static class ScheduledFeed implements Comparable<ScheduledFeed> {
+		private final Object feedId;
+		private final long dueAt;
+
+		public ScheduledFeed(Object feedId, long dueAt) {
+			this.feedId = feedId;
+			this.dueAt = dueAt;
+		}
+
+		public int compareTo(ScheduledFeed o) {
+			return dueAt < o.dueAt ? -1 : (dueAt == o.dueAt ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package com.jernejerin;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class represents politeness scheduler of the requests to the remote
+ * hosts. The requests of each host wait in the host's queue. A request is only
+ * started when the host has a token in its token bucket, which is refilled at
+ * the given rate up to the burst, and when less than the maximum number of
+ * requests of the host are running. Of all the hosts with waiting requests the
+ * scheduler starts the request of the host that is ready soonest, so the
+ * requests of throttled hosts do not hold back the others.
+ *
+ * One instance is created in class RSSMainWorker and is shared by the polls of
+ * the feeds and the fetches of the web pages. The requests are started on the
+ * scheduler's thread and must not block, they return a future that completes
+ * when the request is done.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class HostScheduler {
+
+	/** Number of hosts above which the idle hosts are removed. */
+	private static final int MAX_IDLE_HOSTS = 10000;
+
+	// logger for this class
+	private static final Logger LOG = Logger.getLogger(HostScheduler.class);
+
+	private final int maxPerHost;
+	private final double rate;
+	private final double burst;
+
+	/** State of the hosts by host name. */
+	private final HashMap<String, Host> hosts = new HashMap<String, Host>();
+
+	/** Hosts that have waiting requests and can start one, by ready time. */
+	private final PriorityQueue<Host> ready = new PriorityQueue<Host>(11,
+			(a, b) -> Long.compare(a.readyAt, b.readyAt));
+
+	private final Thread dispatcher;
+	private boolean closed = false;
+
+	/**
+	 * Creates scheduler and starts its thread.
+	 *
+	 * @param maxPerHost
+	 *            maximum number of running requests of the same host
+	 * @param rate
+	 *            number of requests per second started for the same host
+	 * @param burst
+	 *            number of requests of the same host that can be started at
+	 *            once after the host was idle
+	 */
+	public HostScheduler(int maxPerHost, double rate, int burst) {
+		this.maxPerHost = maxPerHost;
+		this.rate = rate;
+		this.burst = Math.max(burst, 1);
+		dispatcher = new Thread(this::dispatch, "HostScheduler");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Schedules the request to the host of the url. The request is started
+	 * when the host is ready and the returned future completes with the
+	 * result of the request.
+	 *
+	 * @param url
+	 * @param request
+	 *            starts the request without blocking
+	 * @return
+	 */
+	public <T> CompletableFuture<T> submit(String url,
+			final Supplier<CompletableFuture<T>> request) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final String name = getHost(url);
+		synchronized (this) {
+			Host host = hosts.get(name);
+			if (host == null) {
+				if (hosts.size() >= MAX_IDLE_HOSTS)
+					removeIdle();
+				host = new Host(name, burst, System.nanoTime());
+				hosts.put(name, host);
+			}
+			final Host requestHost = host;
+			host.waiting.add(() -> {
+				CompletableFuture<T> started;
+				try {
+					started = request.get();
+				} catch (RuntimeException e) {
+					started = new CompletableFuture<T>();
+					started.completeExceptionally(e);
+				}
+				started.whenComplete((value, e) -> {
+					done(requestHost);
+					if (e != null)
+						result.completeExceptionally(e);
+					else
+						result.complete(value);
+				});
+			});
+			enqueue(host);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of requests waiting for the host of the url.
+	 *
+	 * @param url
+	 * @return
+	 */
+	public synchronized int getWaiting(String url) {
+		Host host = hosts.get(getHost(url));
+		return host != null ? host.waiting.size() : 0;
+	}
+
+	/**
+	 * Returns the number of hosts with waiting or running requests.
+	 *
+	 * @return
+	 */
+	public synchronized int getActiveHosts() {
+		int active = 0;
+		for (Host host : hosts.values())
+			if (host.running > 0 || !host.waiting.isEmpty())
+				active++;
+		return active;
+	}
+
+	/**
+	 * Stops the scheduler's thread. The waiting requests are not started.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		dispatcher.interrupt();
+	}
+
+	/**
+	 * Returns host of the url in lower case or the url itself if it is not a
+	 * valid URI.
+	 *
+	 * @param url
+	 * @return
+	 */
+	public static String getHost(String url) {
+		if (url == null)
+			return "";
+		try {
+			String host = new URI(url).getHost();
+			return host != null ? host.toLowerCase() : url;
+		} catch (URISyntaxException e) {
+			return url;
+		}
+	}
+
+	/**
+	 * Returns the site of the url, i.e. the last two labels of its host or
+	 * the last three if the host ends with a country code second level
+	 * domain such as co.uk, so www.example.com and news.example.com have the
+	 * same site.
+	 *
+	 * @param url
+	 * @return
+	 */
+	public static String getSite(String url) {
+		String host = getHost(url);
+		String[] labels = host.split("\\.");
+		int n = labels.length;
+		if (n <= 2)
+			return host;
+		int keep = labels[n - 1].length() == 2 && labels[n - 2].length() <= 3 ? 3
+				: 2;
+		if (n <= keep)
+			return host;
+		StringBuilder site = new StringBuilder(labels[n - keep]);
+		for (int i = n - keep + 1; i < n; i++)
+			site.append('.').append(labels[i]);
+		return site.toString();
+	}
+
+	/**
+	 * Starts the requests of the hosts as they get ready until the scheduler
+	 * is closed.
+	 */
+	private void dispatch() {
+		while (true) {
+			Runnable request;
+			try {
+				request = take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (request == null)
+				return;
+			try {
+				request.run();
+			} catch (RuntimeException e) {
+				LOG.error(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Waits for the host that is ready soonest and takes its next request.
+	 * Returns null if the scheduler is closed.
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	private synchronized Runnable take() throws InterruptedException {
+		while (!closed) {
+			Host host = ready.peek();
+			if (host == null) {
+				wait();
+				continue;
+			}
+			long now = System.nanoTime();
+			long delay = host.readyAt - now;
+			if (delay > 0) {
+				wait(delay / 1000000 + 1);
+				continue;
+			}
+
+			ready.poll();
+			host.queued = false;
+			refill(host, now);
+			host.tokens -= 1;
+			host.running++;
+			Runnable request = host.waiting.poll();
+			enqueue(host);
+			return request;
+		}
+		return null;
+	}
+
+	/**
+	 * Called when the request of the host is done.
+	 *
+	 * @param host
+	 */
+	private synchronized void done(Host host) {
+		host.running--;
+		enqueue(host);
+	}
+
+	/**
+	 * Puts the host into the queue of ready hosts if it has waiting requests
+	 * and can start one. The ready time is when the bucket has a token.
+	 *
+	 * @param host
+	 */
+	private void enqueue(Host host) {
+		if (host.queued || host.waiting.isEmpty()
+				|| host.running >= maxPerHost)
+			return;
+		long now = System.nanoTime();
+		refill(host, now);
+		host.readyAt = host.tokens >= 1 ? now : now
+				+ (long) ((1 - host.tokens) / rate * 1e9);
+		host.queued = true;
+		ready.add(host);
+		notifyAll();
+	}
+
+	/**
+	 * Adds the tokens for the time since the last refill.
+	 *
+	 * @param host
+	 * @param now
+	 */
+	private void refill(Host host, long now) {
+		host.tokens = Math.min(burst, host.tokens + (now - host.refilledAt)
+				/ 1e9 * rate);
+		host.refilledAt = now;
+	}
+
+	/**
+	 * Removes the hosts without requests and with full bucket, i.e. the hosts
+	 * that would start the same as new ones.
+	 */
+	private void removeIdle() {
+		long now = System.nanoTime();
+		Iterator<Host> it = hosts.values().iterator();
+		while (it.hasNext()) {
+			Host host = it.next();
+			if (host.running == 0 && host.waiting.isEmpty()) {
+				refill(host, now);
+				if (host.tokens >= burst)
+					it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Token bucket and requests of a host.
+	 */
+	private static class Host {
+		private final String name;
+		private final ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+		private double tokens;
+		private long refilledAt;
+		private int running;
+		private long readyAt;
+		private boolean queued;
+
+		private Host(String name, double tokens, long refilledAt) {
+			this.name = name;
+			this.tokens = tokens;
+			this.refilledAt = refilledAt;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.jernejerin;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+/**
+ * This class represents a process wide HTTP client with pooled connection
+ * manager. One instance is created in class RSSMainWorker and is shared by all
+ * thread workers, so connections (and TLS sessions) to the same host are
+ * reused between feed polls and web page fetches. The pool is bounded with
+ * total and per host (route) limits and a monitor thread evicts expired and
+ * idle connections.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class HttpClientPool {
+
+	/** Timeout for connect, connection request and socket in ms. */
+	public static final int TIMEOUT = 30 * 1000;
+
+	/**
+	 * Keep alive duration in ms if server does not specify it in Keep-Alive
+	 * header.
+	 */
+	public static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+
+	/** Time in s after which idle connection is closed. */
+	public static final long IDLE_TIMEOUT = 60;
+
+	// logger for this class
+	private static final Logger LOG = Logger.getLogger(HttpClientPool.class);
+
+	private final PoolingHttpClientConnectionManager connManager;
+	private final CloseableHttpClient httpClient;
+	private final IdleConnectionMonitor monitor;
+
+	/**
+	 * Creates pooled HTTP client with the specified limits.
+	 *
+	 * @param maxConnTotal
+	 *            maximum number of connections in the pool
+	 * @param maxConnPerRoute
+	 *            maximum number of connections per host
+	 */
+	public HttpClientPool(int maxConnTotal, int maxConnPerRoute) {
+		this(maxConnTotal, maxConnPerRoute, new WorkerMetrics());
+	}
+
+	/**
+	 * Creates pooled HTTP client with the specified limits, which records the
+	 * time of opening each new connection in the metrics.
+	 *
+	 * @param maxConnTotal
+	 *            maximum number of connections in the pool
+	 * @param maxConnPerRoute
+	 *            maximum number of connections per host
+	 * @param metrics
+	 */
+	public HttpClientPool(int maxConnTotal, int maxConnPerRoute,
+			final WorkerMetrics metrics) {
+		connManager = new PoolingHttpClientConnectionManager() {
+			@Override
+			public void connect(HttpClientConnection managedConn,
+					HttpRoute route, int connectTimeout, HttpContext context)
+					throws IOException {
+				long start = System.nanoTime();
+				super.connect(managedConn, route, connectTimeout, context);
+				metrics.timeSince(WorkerMetrics.CONNECT, start);
+			}
+		};
+		connManager.setMaxTotal(maxConnTotal);
+		connManager.setDefaultMaxPerRoute(maxConnPerRoute);
+
+		// set various timeout to 30s
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(TIMEOUT)
+				.setConnectionRequestTimeout(TIMEOUT)
+				.setSocketTimeout(TIMEOUT).build();
+
+		// use the Keep-Alive header if server sends it, otherwise keep the
+		// connection for a default amount of time
+		ConnectionKeepAliveStrategy keepAlive = new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response,
+					HttpContext context) {
+				long duration = super.getKeepAliveDuration(response, context);
+				return duration > 0 ? duration : DEFAULT_KEEP_ALIVE;
+			}
+		};
+
+		httpClient = HttpClientBuilder.create()
+				.setConnectionManager(connManager)
+				.setKeepAliveStrategy(keepAlive)
+				.setDefaultRequestConfig(requestConfig).build();
+
+		monitor = new IdleConnectionMonitor(connManager);
+		monitor.start();
+	}
+
+	/**
+	 * Returns the shared HTTP client. The client must not be closed by the
+	 * callers, only the responses.
+	 *
+	 * @return
+	 */
+	public CloseableHttpClient getClient() {
+		return httpClient;
+	}
+
+	/**
+	 * Stops the monitor thread and closes all connections in the pool.
+	 */
+	public void close() {
+		monitor.shutdown();
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			LOG.error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Thread for periodically closing expired connections (keep alive time
+	 * passed) and connections that have been idle for too long. The pool does
+	 * not check this on its own, so stale connections would otherwise stay in
+	 * the pool until they are leased.
+	 */
+	private static class IdleConnectionMonitor extends Thread {
+		private final PoolingHttpClientConnectionManager connManager;
+		private volatile boolean shutdown;
+
+		public IdleConnectionMonitor(
+				PoolingHttpClientConnectionManager connManager) {
+			super("IdleConnectionMonitor");
+			this.connManager = connManager;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!shutdown) {
+					synchronized (this) {
+						wait(5 * 1000);
+						connManager.closeExpiredConnections();
+						connManager.closeIdleConnections(IDLE_TIMEOUT,
+								TimeUnit.SECONDS);
+					}
+				}
+			} catch (InterruptedException e) {
+				LOG.info("Idle connection monitor interrupted.");
+			}
+		}
+
+		public void shutdown() {
+			shutdown = true;
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+}
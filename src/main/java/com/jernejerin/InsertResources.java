@@ -3,10 +3,29 @@ package com.jernejerin;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -20,13 +39,21 @@ import org.apache.log4j.PropertyConfigurator;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
 
 /**
- * The InsertResources program writes all RSS sources i.e. feeds from csv file
- * to MongoDB. The user can specify command line arguments for setting host,
- * port, dbName, collName and filePath.
+ * The InsertResources program writes all RSS sources i.e. feeds from csv or
+ * OPML file to MongoDB. The user can specify command line arguments for
+ * setting host, port, dbName, collName, filePath, threads and batchSize.
+ * 
+ * The file is read as a stream and the feeds are inserted in batches by
+ * several threads. The URLs of the feeds are normalized and the feeds that
+ * are already in the collection are skipped by the unique index on feedUrl,
+ * so the same or a bigger file can be imported again. The other indexes are
+ * built after the feeds are inserted.
  * 
  * @author Jernej Jerin
  * @version 1.0
@@ -49,6 +76,25 @@ public class InsertResources {
 	/** The path to the file with RSS feeds. */
 	private static String filePath = "./10K-RSS-feeds.csv";
 
+	/** Number of threads inserting the feeds. */
+	private static int threads = 4;
+
+	/** Number of feeds inserted at once. */
+	private static int batchSize = 1000;
+
+	/** Number of inserted batches after which the progress is logged. */
+	private static final int LOG_BATCHES = 100;
+
+	/**
+	 * Write concern for inserting feeds that continues with the rest of the
+	 * feeds if one of them is already in the collection.
+	 */
+	private static final WriteConcern INSERT_IGNORE = WriteConcern.ACKNOWLEDGED
+			.continueOnErrorForInsert(true);
+
+	/** Batch that tells the inserting threads that the file was read. */
+	private static final List<DBObject> END = new ArrayList<DBObject>();
+
 	// logger for this class
 	private static final Logger LOG = Logger.getLogger(InsertResources.class);
 
@@ -57,8 +103,8 @@ public class InsertResources {
 	 */
 	public static void main(String[] args) {
 		Properties props = new Properties();
-		BufferedReader br = null;
 		MongoClient mongoClient = null;
+		ExecutorService inserters = null;
 		try {
 			// configure logger
 			props.load(new FileInputStream("log4j.properties"));
@@ -75,7 +121,11 @@ public class InsertResources {
 			options.addOption("dbName", true, "the name of the database to use");
 			options.addOption("collName", true, "the name of collection to use");
 			options.addOption("filePath", true,
-					"the path of the file with RSS feeds");
+					"the path of the csv or OPML file with RSS feeds");
+			options.addOption("threads", true,
+					"number of threads inserting the feeds");
+			options.addOption("batchSize", true,
+					"number of feeds inserted at once");
 
 			// parser for command line arguments
 			CommandLineParser parser = new GnuParser();
@@ -96,29 +146,47 @@ public class InsertResources {
 				collName = cmd.getOptionValue("collName");
 			if (cmd.getOptionValue("filePath") != null)
 				filePath = cmd.getOptionValue("filePath");
+			if (cmd.getOptionValue("threads") != null)
+				threads = Integer.parseInt(cmd.getOptionValue("threads"));
+			if (cmd.getOptionValue("batchSize") != null)
+				batchSize = Integer.parseInt(cmd.getOptionValue("batchSize"));
 
 			mongoClient = new MongoClient(host, port);
 			DB rssDB = mongoClient.getDB(dbName);
 			DBCollection rssColl = rssDB.getCollection(collName);
 			LOG.info("Opened connection to MongoDB");
 
-			// purge DB
-			rssColl.remove(new BasicDBObject());
-
-			br = new BufferedReader(new FileReader(filePath));
+			// the feeds already in the collection or earlier in the file are
+			// skipped by the unique index, so it is built before the load
+			long countBefore = rssColl.count();
+			rssColl.ensureIndex(new BasicDBObject("feedUrl", 1),
+					new BasicDBObject("unique", true));
 
-			String line;
-			while ((line = br.readLine()) != null) {
-				// save each feed into DB
-				BasicDBObject feedNew = new BasicDBObject("feedUrl", line);
-				rssColl.insert(feedNew);
-				LOG.info("Inserted new feed into DB.");
-			}
+			// the file is read in this thread and the batches of feeds are
+			// inserted by the inserting threads
+			final BlockingQueue<List<DBObject>> batches = new ArrayBlockingQueue<List<DBObject>>(
+					threads * 2);
+			final AtomicLong batchesNum = new AtomicLong();
+			final DBCollection coll = rssColl;
+			inserters = Executors.newFixedThreadPool(threads);
+			List<Future<?>> inserted = new ArrayList<Future<?>>();
+			for (int i = 0; i < threads; i++)
+				inserted.add(inserters.submit(() -> {
+					insertBatches(coll, batches, batchesNum);
+					return null;
+				}));
 
-			// create index on "accessedAt", ascending
-			rssColl.createIndex(new BasicDBObject("accessedAt", 1));
+			long start = System.currentTimeMillis();
+			long feedsNum = readFeeds(filePath, batches);
+			for (int i = 0; i < threads; i++)
+				batches.put(END);
+			for (Future<?> future : inserted)
+				future.get();
 
-			br.close();
+			ensureIndexes(rssColl);
+			LOG.info("Read " + feedsNum + " feeds and inserted "
+					+ (rssColl.count() - countBefore) + " new feeds in "
+					+ (System.currentTimeMillis() - start) + " ms.");
 		} catch (UnknownHostException e) {
 			LOG.fatal(e.getMessage());
 		} catch (MongoException e) {
@@ -129,9 +197,218 @@ public class InsertResources {
 			LOG.fatal(e.getMessage());
 		} catch (ParseException e) {
 			LOG.fatal(e.getMessage());
+		} catch (XMLStreamException e) {
+			LOG.fatal(e.getMessage());
+		} catch (InterruptedException e) {
+			LOG.fatal(e.getMessage());
+		} catch (ExecutionException e) {
+			LOG.fatal(e.getCause().getMessage());
 		} finally {
-			mongoClient.close();
+			if (inserters != null)
+				inserters.shutdownNow();
+			if (mongoClient != null)
+				mongoClient.close();
 			LOG.info("Closed connection to MongoDB");
 		}
 	}
+
+	/**
+	 * Reads the feeds from the csv or OPML file and puts them in batches
+	 * into the queue. The feeds that are more than once in the file are
+	 * skipped by the unique index on insert. Returns the number of feeds
+	 * read.
+	 * 
+	 * @param filePath
+	 * @param batches
+	 * @return
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 * @throws InterruptedException
+	 */
+	private static long readFeeds(String filePath,
+			final BlockingQueue<List<DBObject>> batches) throws IOException,
+			XMLStreamException, InterruptedException {
+		final AtomicLong feedsNum = new AtomicLong();
+		Consumer<String> feeds = new Consumer<String>() {
+			private List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+
+			@Override
+			public void accept(String feedUrl) {
+				if (feedUrl == null) {
+					// end of the file
+					if (!batch.isEmpty())
+						putBatch(batches, batch);
+					return;
+				}
+				feedsNum.incrementAndGet();
+				batch.add(new BasicDBObject("feedUrl", feedUrl));
+				if (batch.size() == batchSize) {
+					putBatch(batches, batch);
+					batch = new ArrayList<DBObject>(batchSize);
+				}
+			}
+		};
+
+		InputStream in = new FileInputStream(filePath);
+		try {
+			String lower = filePath.toLowerCase();
+			if (lower.endsWith(".opml") || lower.endsWith(".xml"))
+				readOpml(in, feeds);
+			else
+				readCsv(new BufferedReader(new InputStreamReader(in,
+						StandardCharsets.UTF_8)), feeds);
+		} finally {
+			in.close();
+		}
+		feeds.accept(null);
+		return feedsNum.get();
+	}
+
+	private static void putBatch(BlockingQueue<List<DBObject>> batches,
+			List<DBObject> batch) {
+		try {
+			batches.put(batch);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Reading of feeds interrupted.");
+		}
+	}
+
+	/**
+	 * Inserts the batches of feeds from the queue until the end of the file.
+	 * The feeds that are already in the collection are skipped. A failed
+	 * batch is logged and the thread goes on, so the reader is never blocked
+	 * on the full queue.
+	 * 
+	 * @param rssColl
+	 * @param batches
+	 * @param batchesNum
+	 * @throws InterruptedException
+	 */
+	private static void insertBatches(DBCollection rssColl,
+			BlockingQueue<List<DBObject>> batches, AtomicLong batchesNum)
+			throws InterruptedException {
+		while (true) {
+			List<DBObject> batch = batches.take();
+			if (batch == END)
+				return;
+			try {
+				rssColl.insert(batch, INSERT_IGNORE);
+			} catch (MongoException.DuplicateKey e) {
+				// the rest of the batch is inserted
+			} catch (RuntimeException e) {
+				LOG.error("Insert of " + batch.size() + " feeds failed: "
+						+ e.getMessage());
+			}
+			if (batchesNum.incrementAndGet() % LOG_BATCHES == 0)
+				LOG.info("Inserted " + batchesNum.get() + " batches of feeds.");
+		}
+	}
+
+	/**
+	 * Builds the indexes of the feeds collection if they do not exist yet.
+	 * 
+	 * @param rssColl
+	 */
+	private static void ensureIndexes(DBCollection rssColl) {
+		rssColl.ensureIndex(new BasicDBObject("feedUrl", 1),
+				new BasicDBObject("unique", true));
+		rssColl.ensureIndex(new BasicDBObject("accessedAt", 1));
+	}
+
+	/**
+	 * Reads the URLs of the feeds from the csv file. The URL is the first
+	 * column of each line, the lines that are not URLs (e.g. the header or
+	 * comments) are skipped.
+	 * 
+	 * @param br
+	 * @param feeds
+	 * @throws IOException
+	 */
+	public static void readCsv(BufferedReader br, Consumer<String> feeds)
+			throws IOException {
+		String line;
+		while ((line = br.readLine()) != null) {
+			int end = line.indexOf(',');
+			String feedUrl = normalizeFeedUrl(stripQuotes(end < 0 ? line
+					: line.substring(0, end)));
+			if (feedUrl != null)
+				feeds.accept(feedUrl);
+		}
+	}
+
+	/**
+	 * Reads the URLs of the feeds from the xmlUrl attributes of the outline
+	 * elements of the OPML file.
+	 * 
+	 * @param in
+	 * @param feeds
+	 * @throws XMLStreamException
+	 */
+	public static void readOpml(InputStream in, Consumer<String> feeds)
+			throws XMLStreamException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+		try {
+			while (reader.hasNext())
+				if (reader.next() == XMLStreamConstants.START_ELEMENT
+						&& reader.getLocalName().equalsIgnoreCase("outline")) {
+					String feedUrl = normalizeFeedUrl(reader
+							.getAttributeValue(null, "xmlUrl"));
+					if (feedUrl != null)
+						feeds.accept(feedUrl);
+				}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Returns the URL of the feed in the form in which it is saved, i.e. with
+	 * lower case scheme and host, without the default port and the fragment
+	 * and with at least the root path. Returns null if the value is not an
+	 * absolute HTTP(S) URL.
+	 * 
+	 * @param feedUrl
+	 * @return
+	 */
+	public static String normalizeFeedUrl(String feedUrl) {
+		if (feedUrl == null)
+			return null;
+		try {
+			URI uri = new URI(feedUrl.trim());
+			String scheme = uri.getScheme();
+			if (scheme == null || uri.getHost() == null)
+				return null;
+			scheme = scheme.toLowerCase();
+			if (!scheme.equals("http") && !scheme.equals("https"))
+				return null;
+			int port = uri.getPort();
+			if (scheme.equals("http") && port == 80 || scheme.equals("https")
+					&& port == 443)
+				port = -1;
+			String path = uri.getRawPath();
+			StringBuilder normalized = new StringBuilder(scheme).append("://");
+			if (uri.getRawUserInfo() != null)
+				normalized.append(uri.getRawUserInfo()).append('@');
+			normalized.append(uri.getHost().toLowerCase());
+			if (port != -1)
+				normalized.append(':').append(port);
+			normalized.append(path == null || path.isEmpty() ? "/" : path);
+			if (uri.getRawQuery() != null)
+				normalized.append('?').append(uri.getRawQuery());
+			return normalized.toString();
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	private static String stripQuotes(String value) {
+		value = value.trim();
+		if (value.length() >= 2 && value.startsWith("\"")
+				&& value.endsWith("\""))
+			return value.substring(1, value.length() - 1);
+		return value;
+	}
 }
@@ -0,0 +1,80 @@
+package com.jernejerin;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class represents input stream that counts the bytes read from the
+ * underlying stream and the time spent waiting for them. Used by
+ * RSSThreadWorker to tell the time of the body of the feed from the time of
+ * the parsing.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class MeteredInputStream extends FilterInputStream {
+	private long bytes = 0;
+	private long readNanos = 0;
+
+	public MeteredInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		long start = System.nanoTime();
+		try {
+			int b = super.read();
+			if (b != -1)
+				bytes++;
+			return b;
+		} finally {
+			readNanos += System.nanoTime() - start;
+		}
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		try {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				bytes += n;
+			return n;
+		} finally {
+			readNanos += System.nanoTime() - start;
+		}
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long start = System.nanoTime();
+		try {
+			long skipped = super.skip(n);
+			bytes += skipped;
+			return skipped;
+		} finally {
+			readNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes read so far.
+	 *
+	 * @return
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the time in ns spent reading so far.
+	 *
+	 * @return
+	 */
+	public long getReadNanos() {
+		return readNanos;
+	}
+}
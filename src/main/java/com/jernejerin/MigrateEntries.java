@@ -0,0 +1,204 @@
+package com.jernejerin;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+
+/**
+ * The MigrateEntries program migrates the existing data to deduplication of
+ * entries with unique index. Previously each feed kept an array of SHA-1 hash
+ * ids of its entries and entries did not reference the feed. For each hash in
+ * that array the program sets feedId of one entry with that hash, removes the
+ * array from the feed, moves the entries that are left without a feed to the
+ * collection of orphaned entries and creates unique index (feedId, idHash) on
+ * entries. The entries without a feed are not only the extra copies, earlier
+ * versions could also lose the hash of a saved entry from the array, so they
+ * are kept for inspection. The program can be run again if it is
+ * interrupted.
+ * 
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class MigrateEntries {
+
+	/** The default database's host address. */
+	private static String hostDB = "localhost";
+
+	/** The default port on which the database is running. */
+	private static int portDB = 27017;
+
+	/** The name of the database to use. */
+	private static String dbName = "rssdb";
+
+	/** The name of the collection to use. */
+	private static String collNameFeeds = "feeds";
+
+	/** The name of the collection to use. */
+	private static String collNameEntries = "entries";
+
+	/** The name of the collection for the entries without a feed. */
+	private static String collNameOrphaned = "entries_orphaned";
+
+	// logger for this class
+	private static final Logger LOG = Logger.getLogger(MigrateEntries.class);
+
+	/**
+	 * @param args
+	 */
+	@SuppressWarnings("unchecked")
+	public static void main(String[] args) {
+		Properties props = new Properties();
+		MongoClient mongoClient = null;
+		try {
+			// configure logger
+			props.load(new FileInputStream("log4j.properties"));
+			PropertyConfigurator.configure(props);
+
+			// create Options object
+			Options options = new Options();
+
+			// add options
+			options.addOption("help", false, "help for usage");
+			options.addOption("hostDB", true, "database's host address");
+			options.addOption("portDB", true,
+					"port on which the database is running");
+			options.addOption("dbName", true, "the name of the database to use");
+			options.addOption("collNameFeeds", true, "the name of collection to use for feeds");
+			options.addOption("collNameEntries", true, "the name of collection to use for entries");
+			options.addOption("collNameOrphaned", true, "the name of collection for entries without a feed");
+
+			// parser for command line arguments
+			CommandLineParser parser = new GnuParser();
+			CommandLine cmd = parser.parse(options, args);
+
+			if (cmd.hasOption("help")) {
+				HelpFormatter help = new HelpFormatter();
+				help.printHelp("java -jar MigrateEntries", options);
+				System.exit(-1);
+			}
+			if (cmd.getOptionValue("hostDB") != null)
+				hostDB = cmd.getOptionValue("hostDB");
+			if (cmd.getOptionValue("portDB") != null)
+				portDB = Integer.parseInt(cmd.getOptionValue("portDB"));
+			if (cmd.getOptionValue("dbName") != null)
+				dbName = cmd.getOptionValue("dbName");
+			if (cmd.getOptionValue("collNameFeeds") != null)
+				collNameFeeds = cmd.getOptionValue("collNameFeeds");
+			if (cmd.getOptionValue("collNameEntries") != null)
+				collNameEntries = cmd.getOptionValue("collNameEntries");
+			if (cmd.getOptionValue("collNameOrphaned") != null)
+				collNameOrphaned = cmd.getOptionValue("collNameOrphaned");
+
+			mongoClient = new MongoClient(hostDB, portDB);
+			DB rssDB = mongoClient.getDB(dbName);
+			DBCollection rssColl = rssDB.getCollection(collNameFeeds);
+			DBCollection entriesColl = rssDB.getCollection(collNameEntries);
+			DBCollection orphanedColl = rssDB.getCollection(collNameOrphaned);
+			LOG.info("Opened connection to MongoDB");
+
+			// index for finding entries by hash id
+			entriesColl.ensureIndex(new BasicDBObject("idHash", 1));
+
+			// only feeds that still have the array
+			DBCursor cursor = rssColl.find(new BasicDBObject("entries",
+					new BasicDBObject("$exists", true)), new BasicDBObject(
+					"entries", 1).append("feedUrl", 1));
+			int feedsNum = 0, entriesNum = 0;
+			try {
+				while (cursor.hasNext()) {
+					DBObject feed = cursor.next();
+					List<String> idList = (List<String>) feed.get("entries");
+
+					// the same entry was saved once for each feed it belongs
+					// to, so only one of them gets the reference to this feed
+					for (String idHash : idList) {
+						DBObject query = new BasicDBObject("idHash", idHash)
+								.append("feedId", new BasicDBObject("$exists",
+										false));
+						entriesColl.update(query, new BasicDBObject("$set",
+								new BasicDBObject("feedId", feed.get("_id"))));
+						entriesNum++;
+					}
+
+					rssColl.update(new BasicDBObject("_id", feed.get("_id")),
+							new BasicDBObject("$unset", new BasicDBObject(
+									"entries", "")));
+					feedsNum++;
+					LOG.info("Migrated entries of feed " + feed.get("feedUrl"));
+				}
+			} finally {
+				cursor.close();
+			}
+			LOG.info("Migrated " + entriesNum + " entries of " + feedsNum
+					+ " feeds.");
+
+			// the entries that no feed references are either the extra
+			// copies of the entries that were saved twice or the entries
+			// whose hash was lost from the array. They would all have the key
+			// (null, idHash) of the unique index, so the index could not be
+			// built with them. They are moved, the copy is inserted first, so
+			// an interrupted move is not lost
+			long orphans = 0;
+			cursor = entriesColl.find(new BasicDBObject("feedId",
+					new BasicDBObject("$exists", false)));
+			try {
+				while (cursor.hasNext()) {
+					DBObject entry = cursor.next();
+					try {
+						orphanedColl.insert(entry);
+					} catch (MongoException.DuplicateKey e) {
+						// already moved by the interrupted run
+					}
+					entriesColl.remove(new BasicDBObject("_id", entry
+							.get("_id")));
+					orphans++;
+				}
+			} finally {
+				cursor.close();
+			}
+			if (orphans > 0)
+				LOG.info("Moved " + orphans + " entries that do not belong "
+						+ "to any feed to collection " + collNameOrphaned);
+
+			// unique index used for finding saved entries of feed and ignoring
+			// duplicates on insert
+			entriesColl.ensureIndex(new BasicDBObject("feedId", 1).append(
+					"idHash", 1), new BasicDBObject("unique", true));
+			LOG.info("Created unique index on entries.");
+		} catch (UnknownHostException e) {
+			LOG.fatal(e.getMessage());
+		} catch (MongoException e) {
+			LOG.fatal(e.getMessage());
+		} catch (FileNotFoundException e) {
+			LOG.fatal(e.getMessage());
+		} catch (IOException e) {
+			LOG.fatal(e.getMessage());
+		} catch (ParseException e) {
+			LOG.fatal(e.getMessage());
+		} finally {
+			mongoClient.close();
+			LOG.info("Closed connection to MongoDB");
+		}
+	}
+}
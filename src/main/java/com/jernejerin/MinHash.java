@@ -0,0 +1,132 @@
+package com.jernejerin;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class represents MinHash signatures of the shingles of the web pages
+ * and their locality sensitive hashing (LSH) buckets. The share of the equal
+ * values of two signatures estimates the Jaccard similarity of the shingles
+ * of the pages. The signature is divided into bands, each band is hashed into
+ * one bucket, so the pages with similar content are very likely to have at
+ * least one bucket in common and the pages with different content are not.
+ * The near duplicates of a page are thus found by looking up its buckets
+ * instead of comparing the page with all the other pages.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class MinHash {
+
+	private final long[] multipliers;
+	private final long[] increments;
+	private final int bands;
+	private final int rows;
+
+	/**
+	 * Creates the hash functions of the signature. The instances with the
+	 * same arguments compute the same signatures.
+	 *
+	 * @param bands
+	 *            number of LSH buckets of each signature
+	 * @param rows
+	 *            number of signature values in each band
+	 */
+	public MinHash(int bands, int rows) {
+		this.bands = bands;
+		this.rows = rows;
+		multipliers = new long[bands * rows];
+		increments = new long[bands * rows];
+		Random random = new Random(bands * 31L + rows);
+		for (int i = 0; i < multipliers.length; i++) {
+			multipliers[i] = random.nextLong() | 1;
+			increments[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * Returns the signature of the shingles or null if there are none.
+	 *
+	 * @param shingles
+	 * @return
+	 */
+	public int[] signature(long[] shingles) {
+		if (shingles.length == 0)
+			return null;
+
+		int[] signature = new int[multipliers.length];
+		for (int i = 0; i < signature.length; i++) {
+			int min = Integer.MAX_VALUE;
+			for (long shingle : shingles) {
+				int hash = (int) ((multipliers[i] * shingle + increments[i]) >>> 32);
+				if (hash < min)
+					min = hash;
+			}
+			signature[i] = min;
+		}
+		return signature;
+	}
+
+	/**
+	 * Returns the LSH buckets of the signature, one for each band.
+	 *
+	 * @param signature
+	 * @return
+	 */
+	public List<Long> buckets(int[] signature) {
+		ArrayList<Long> buckets = new ArrayList<Long>(bands);
+		for (int band = 0; band < bands; band++) {
+			long hash = band;
+			for (int row = 0; row < rows; row++)
+				hash = hash * 0x9E3779B97F4A7C15L + signature[band * rows + row];
+			// the same band of different signatures gets the same bucket
+			buckets.add(hash ^ hash >>> 29);
+		}
+		return buckets;
+	}
+
+	/**
+	 * Returns the estimated Jaccard similarity of the pages with the given
+	 * signatures.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static double similarity(int[] a, int[] b) {
+		if (a.length != b.length)
+			return 0;
+		int equal = 0;
+		for (int i = 0; i < a.length; i++)
+			if (a[i] == b[i])
+				equal++;
+		return (double) equal / a.length;
+	}
+
+	/**
+	 * Returns the signature as binary data for saving in DB.
+	 *
+	 * @param signature
+	 * @return
+	 */
+	public static byte[] toBytes(int[] signature) {
+		ByteBuffer buffer = ByteBuffer.allocate(signature.length * 4);
+		buffer.asIntBuffer().put(signature);
+		return buffer.array();
+	}
+
+	/**
+	 * Returns the signature saved as binary data.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public static int[] fromBytes(byte[] bytes) {
+		int[] signature = new int[bytes.length / 4];
+		ByteBuffer.wrap(bytes).asIntBuffer().get(signature);
+		return signature;
+	}
+}
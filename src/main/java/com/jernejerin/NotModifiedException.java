@@ -0,0 +1,19 @@
+package com.jernejerin;
+
+/**
+ * Thrown when the server responds to conditional GET of the feed with status
+ * 304 (Not Modified), i.e. the feed has not changed since the last poll and
+ * there is nothing to parse.
+ * 
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class NotModifiedException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public NotModifiedException(String url) {
+		super("Feed " + url + " not modified.");
+	}
+}
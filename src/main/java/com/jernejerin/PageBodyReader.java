@@ -0,0 +1,265 @@
+package com.jernejerin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.entity.ContentType;
+import org.apache.log4j.Logger;
+
+/**
+ * This class represents reader of the bodies of the web pages of the entries.
+ * The body is read in chunks into byte and char buffers that are reused
+ * between the pages and decoded as it arrives, so reading a page does not
+ * allocate anything but the page itself. At most maxPageBytes bytes of a page
+ * are read, the rest is dropped.
+ *
+ * The charset is taken from the Content-Type header, then from the byte order
+ * mark or meta element of the page and is UTF-8 otherwise. The page is
+ * decoded verbatim, including line breaks.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class PageBodyReader {
+
+	/** Size of the chunk in which the body is read. */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Number of bytes at the start of the page searched for meta charset. */
+	public static final int META_LENGTH = 1024;
+
+	/** Maximum number of buffers kept for reuse. */
+	private static final int MAX_POOLED = 64;
+
+	private static final Pattern META_CHARSET = Pattern.compile(
+			"<meta[^>]+charset\\s*=\\s*[\"']?\\s*([a-zA-Z0-9_.:-]+)",
+			Pattern.CASE_INSENSITIVE);
+
+	// logger for this class
+	private static final Logger LOG = Logger.getLogger(PageBodyReader.class);
+
+	private final int maxPageBytes;
+	private final WorkerMetrics metrics;
+	private final ConcurrentLinkedQueue<Buffers> pool = new ConcurrentLinkedQueue<Buffers>();
+
+	/**
+	 * Creates reader that reads at most the specified number of bytes of each
+	 * page.
+	 *
+	 * @param maxPageBytes
+	 */
+	public PageBodyReader(int maxPageBytes) {
+		this(maxPageBytes, new WorkerMetrics());
+	}
+
+	/**
+	 * Creates reader that reads at most the specified number of bytes of each
+	 * page and counts the bytes of the pages in the metrics.
+	 *
+	 * @param maxPageBytes
+	 * @param metrics
+	 */
+	public PageBodyReader(int maxPageBytes, WorkerMetrics metrics) {
+		this.maxPageBytes = maxPageBytes;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns the maximum number of bytes read of each page.
+	 *
+	 * @return
+	 */
+	public int getMaxPageBytes() {
+		return maxPageBytes;
+	}
+
+	/**
+	 * Read the page from the stream until the end or until maxPageBytes are
+	 * read and return it decoded. The stream is not closed.
+	 *
+	 * @param in
+	 * @param contentType
+	 *            value of Content-Type header or null
+	 * @return
+	 * @throws IOException
+	 */
+	public String read(InputStream in, String contentType) throws IOException {
+		Buffers buffers = pool.poll();
+		if (buffers == null)
+			buffers = new Buffers();
+		try {
+			ByteBuffer bytes = buffers.bytes;
+			CharBuffer chars = buffers.chars;
+			bytes.clear();
+			chars.clear();
+
+			// the first chunk is needed for the charset
+			int total = fill(in, bytes, maxPageBytes);
+			bytes.flip();
+			Charset charset = getCharset(bytes.array(), bytes.limit(),
+					contentType);
+			skipByteOrderMark(bytes, charset);
+			CharsetDecoder decoder = newDecoder(charset);
+
+			StringBuilder page = new StringBuilder(bytes.remaining());
+			boolean end = bytes.limit() < bytes.capacity()
+					|| total >= maxPageBytes;
+			while (true) {
+				CoderResult result;
+				do {
+					result = decoder.decode(bytes, chars, end);
+					drain(chars, page);
+				} while (result.isOverflow());
+				if (end)
+					break;
+
+				// keep the bytes of an incomplete character for the next chunk
+				bytes.compact();
+				int n = fill(in, bytes, maxPageBytes - total);
+				total += n;
+				bytes.flip();
+				end = bytes.limit() < bytes.capacity() || total >= maxPageBytes;
+			}
+			while (decoder.flush(chars).isOverflow())
+				drain(chars, page);
+			drain(chars, page);
+
+			metrics.increment(WorkerMetrics.PAGE_BYTES, total);
+			if (total >= maxPageBytes)
+				LOG.info("Page truncated to " + maxPageBytes + " bytes.");
+			return page.toString();
+		} finally {
+			if (pool.size() < MAX_POOLED)
+				pool.offer(buffers);
+		}
+	}
+
+	/**
+	 * Returns the page decoded from the bytes of the body.
+	 *
+	 * @param body
+	 * @param contentType
+	 *            value of Content-Type header or null
+	 * @return
+	 */
+	public String decode(byte[] body, String contentType) {
+		metrics.increment(WorkerMetrics.PAGE_BYTES, body.length);
+		Charset charset = getCharset(body, body.length, contentType);
+		ByteBuffer bytes = ByteBuffer.wrap(body);
+		skipByteOrderMark(bytes, charset);
+		try {
+			return newDecoder(charset).decode(bytes).toString();
+		} catch (IOException e) {
+			// cannot happen, malformed input is replaced
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the charset of the page from the Content-Type header, the byte
+	 * order mark or the meta element or UTF-8 if none is specified or
+	 * supported.
+	 *
+	 * @param body
+	 *            start of the body
+	 * @param length
+	 *            number of bytes of the body
+	 * @param contentType
+	 *            value of Content-Type header or null
+	 * @return
+	 */
+	public static Charset getCharset(byte[] body, int length,
+			String contentType) {
+		try {
+			if (contentType != null) {
+				Charset charset = ContentType.parse(contentType).getCharset();
+				if (charset != null)
+					return charset;
+			}
+		} catch (RuntimeException e) {
+			// invalid or unsupported charset
+		}
+
+		if (length >= 3 && (body[0] & 0xff) == 0xef
+				&& (body[1] & 0xff) == 0xbb && (body[2] & 0xff) == 0xbf)
+			return StandardCharsets.UTF_8;
+		if (length >= 2
+				&& (((body[0] & 0xff) == 0xfe && (body[1] & 0xff) == 0xff) || ((body[0] & 0xff) == 0xff && (body[1] & 0xff) == 0xfe)))
+			return StandardCharsets.UTF_16;
+
+		// meta element must be in the first 1024 bytes and the charset name
+		// is ASCII in all ASCII compatible charsets
+		Matcher meta = META_CHARSET.matcher(new String(body, 0, Math.min(
+				length, META_LENGTH), StandardCharsets.ISO_8859_1));
+		try {
+			if (meta.find())
+				return Charset.forName(meta.group(1));
+		} catch (RuntimeException e) {
+			// invalid or unsupported charset
+		}
+		return StandardCharsets.UTF_8;
+	}
+
+	/**
+	 * Reads from the stream into the buffer until it is full, the end of the
+	 * stream or max bytes are read. Returns the number of bytes read.
+	 *
+	 * @param in
+	 * @param bytes
+	 * @param max
+	 * @return
+	 * @throws IOException
+	 */
+	private static int fill(InputStream in, ByteBuffer bytes, int max)
+			throws IOException {
+		int total = 0;
+		while (bytes.hasRemaining() && total < max) {
+			int n = in.read(bytes.array(), bytes.position(), Math.min(
+					bytes.remaining(), max - total));
+			if (n == -1)
+				break;
+			bytes.position(bytes.position() + n);
+			total += n;
+		}
+		return total;
+	}
+
+	private static void skipByteOrderMark(ByteBuffer bytes, Charset charset) {
+		if (StandardCharsets.UTF_8.equals(charset) && bytes.remaining() >= 3
+				&& (bytes.get(bytes.position()) & 0xff) == 0xef
+				&& (bytes.get(bytes.position() + 1) & 0xff) == 0xbb
+				&& (bytes.get(bytes.position() + 2) & 0xff) == 0xbf)
+			bytes.position(bytes.position() + 3);
+	}
+
+	private static CharsetDecoder newDecoder(Charset charset) {
+		return charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	private static void drain(CharBuffer chars, StringBuilder page) {
+		chars.flip();
+		page.append(chars.array(), 0, chars.limit());
+		chars.clear();
+	}
+
+	/**
+	 * Byte and char buffer for reading one page.
+	 */
+	private static class Buffers {
+		private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+		private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+	}
+}
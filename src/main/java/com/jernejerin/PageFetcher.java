@@ -0,0 +1,192 @@
+package com.jernejerin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.log4j.Logger;
+
+/**
+ * This class represents fetcher of the web pages of the entries, i.e. the
+ * whole content of the entries. One instance is created in class
+ * RSSMainWorker and is shared by all thread workers. The pages of new entries
+ * are fetched concurrently, but the fetches are started by the host scheduler,
+ * which limits the rate and the number of fetches to the same host. The other
+ * pages of that host wait in the host's queue without occupying any thread.
+ *
+ * The thread worker waits for the pages at most the poll deadline. The pages
+ * that are not fetched by then are saved later.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class PageFetcher {
+
+	// logger for this class
+	private static final Logger LOG = Logger.getLogger(PageFetcher.class);
+
+	private final Function<String, CompletableFuture<String>> fetcher;
+	private final ExecutorService executor;
+	private final HostScheduler hostScheduler;
+	private final long deadline;
+
+	/**
+	 * Creates fetcher that fetches the pages with the blocking HTTP client on
+	 * the specified number of threads.
+	 *
+	 * @param httpClient
+	 * @param threads
+	 * @param hostScheduler
+	 * @param deadline
+	 *            time in ms a poll waits for the pages of its new entries
+	 * @param bodyReader
+	 */
+	public PageFetcher(final CloseableHttpClient httpClient, int threads,
+			HostScheduler hostScheduler, long deadline,
+			final PageBodyReader bodyReader) {
+		this.executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "PageFetcher-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.fetcher = link -> CompletableFuture.supplyAsync(
+				() -> fetchWebPage(httpClient, bodyReader, link), executor);
+		this.hostScheduler = hostScheduler;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Creates fetcher that fetches the pages with the asynchronous fetch
+	 * engine.
+	 *
+	 * @param engine
+	 * @param hostScheduler
+	 * @param deadline
+	 *            time in ms a poll waits for the pages of its new entries
+	 * @param bodyReader
+	 */
+	public PageFetcher(final AsyncFetchEngine engine,
+			HostScheduler hostScheduler, long deadline,
+			final PageBodyReader bodyReader) {
+		this.executor = null;
+		this.fetcher = link -> engine.fetchPage(link, bodyReader);
+		this.hostScheduler = hostScheduler;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Fetch web page given the link. The future completes with null if the
+	 * page could not be fetched or the response is not 200 (OK).
+	 *
+	 * @param link
+	 * @return
+	 */
+	public CompletableFuture<String> fetch(final String link) {
+		return hostScheduler.submit(link, () -> fetcher.apply(link)).handle(
+				(webPage, e) -> {
+					if (e != null)
+						LOG.error(e.getMessage());
+					return e == null ? webPage : null;
+				});
+	}
+
+	/**
+	 * Returns the time in ms a poll waits for the pages of its new entries.
+	 *
+	 * @return
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Stops the fetch threads.
+	 */
+	public void close() {
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	/**
+	 * Fetch web page given the link of Synd entry and return it. For read we
+	 * use Apache HttpComponents library, module HttpClient.
+	 *
+	 * @param httpClient
+	 * @param bodyReader
+	 * @param link
+	 * @return
+	 */
+	private static String fetchWebPage(CloseableHttpClient httpClient,
+			PageBodyReader bodyReader, String link) {
+		String webPage = null;
+		try {
+			URI uri = new URI(link);
+			HttpGet httpGet = new HttpGet(uri.toString());
+
+			// add header for simulating browser request as some
+			// web servers block automatic querying
+			httpGet.addHeader(HttpHeaders.USER_AGENT,
+					RSSThreadWorker.USER_AGENT);
+
+			// compressed page is decompressed by the client
+			httpGet.addHeader(HttpHeaders.ACCEPT_ENCODING,
+					AsyncFetchEngine.ACCEPT_ENCODING);
+			CloseableHttpResponse response = httpClient.execute(httpGet);
+
+			// entity from response
+			HttpEntity entity = response.getEntity();
+			try {
+				// the body of an error is not the page, the same as with the
+				// asynchronous fetch engine
+				if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+					LOG.info("Page " + link + " not fetched: "
+							+ response.getStatusLine());
+				else if (entity != null) {
+					InputStream in = entity.getContent();
+					Header contentType = entity.getContentType();
+					webPage = bodyReader.read(in, contentType != null ? contentType
+							.getValue() : null);
+				}
+			} finally {
+				// the connection is released back to the pool if the whole
+				// page was read, otherwise it is closed
+				response.close();
+			}
+		} catch (URISyntaxException e) {
+			LOG.error(e.getMessage());
+		} catch (IllegalArgumentException e) {
+			LOG.error(e.getMessage());
+		} catch (NoHttpResponseException e) {
+			LOG.error(e.getMessage());
+		} catch (ClientProtocolException e) {
+			LOG.error(e.getMessage());
+		} catch (IOException e) {
+			LOG.error(e.getMessage());
+		}
+
+		return webPage;
+	}
+}
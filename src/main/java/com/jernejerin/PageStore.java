@@ -0,0 +1,451 @@
+package com.jernejerin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * This class represents content addressed store of the web pages of the
+ * entries. The pages are appended to memory mapped segment files and are
+ * addressed by the SHA-1 hash of their content, so the same page of several
+ * entries or feeds is stored once and the entries only keep the hash. The
+ * index of the pages in the segments is kept on the heap and is rebuilt from
+ * the segments on start.
+ *
+ * Each record in a segment is the 20 bytes of the hash, the length of the
+ * content and the content. The length is written last, so a record that was
+ * not written completely is not read on start. The pages are read directly
+ * from the mapped segments without copying. The segments are written to disk
+ * with method sync, which the writer of the entries calls before the entries
+ * with the hashes of the pages are written to DB.
+ *
+ * The pages are never removed when they are written. Compaction copies the
+ * pages that are still referenced by the entries out of the sealed segments
+ * with mostly unreferenced pages and deletes those segments. Each worker on
+ * the same machine has to use its own directory.
+ *
+ * The store is identified by the host name and the directory, which the
+ * entries keep in the field pageStore. The stores that are open in the VM are
+ * found by their id with method getOpen. The store is local to the worker, so
+ * EntryContent also saves each page in DB, from where the readers on other
+ * machines read it.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class PageStore {
+
+	/** Default size of one segment file. */
+	public static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/** Length of SHA-1 hash of the content in bytes. */
+	public static final int HASH_LENGTH = 20;
+
+	/** Length of the record header, i.e. the hash and the length. */
+	public static final int HEADER_LENGTH = HASH_LENGTH + 4;
+
+	/** Segments with smaller fraction of referenced bytes are compacted. */
+	public static final double MIN_LIVE = 0.5;
+
+	private static final Pattern SEGMENT_NAME = Pattern
+			.compile("segment-(\\d+)\\.pages");
+
+	// logger for this class
+	private static final Logger LOG = Logger.getLogger(PageStore.class);
+
+	// stores that are open in this VM by their id
+	private static final ConcurrentHashMap<String, PageStore> OPEN = new ConcurrentHashMap<String, PageStore>();
+
+	private final File dir;
+	private final String id;
+	private final int segmentSize;
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private final HashMap<String, Location> index = new HashMap<String, Location>();
+	private Segment active;
+
+	// segments with pages that are not written to disk yet
+	private final LinkedHashSet<Segment> unsynced = new LinkedHashSet<Segment>();
+
+	// hashes of the pages put during compaction, these are referenced by
+	// entries that may not be saved yet
+	private HashSet<String> touched;
+
+	/**
+	 * Opens the store in the given directory or creates a new one.
+	 *
+	 * @param dir
+	 * @throws IOException
+	 */
+	public PageStore(String dir) throws IOException {
+		this(dir, SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens the store in the given directory or creates a new one with the
+	 * given size of the segments. The size must not change between opens.
+	 *
+	 * @param dir
+	 * @param segmentSize
+	 * @throws IOException
+	 */
+	public PageStore(String dir, int segmentSize) throws IOException {
+		this.dir = new File(dir);
+		this.segmentSize = segmentSize;
+		if (!this.dir.isDirectory() && !this.dir.mkdirs())
+			throw new IOException("Cannot create directory " + dir);
+		this.id = getHostName() + ":" + this.dir.getCanonicalPath();
+
+		// segments are read in the order they were created, so a page copied
+		// by compaction replaces its old location
+		File[] files = this.dir.listFiles();
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for (File file : files) {
+			Matcher name = SEGMENT_NAME.matcher(file.getName());
+			if (name.matches())
+				ids.add(Integer.valueOf(name.group(1)));
+		}
+		Integer[] sorted = ids.toArray(new Integer[ids.size()]);
+		Arrays.sort(sorted);
+		for (Integer id : sorted)
+			segments.add(openSegment(id));
+
+		if (segments.isEmpty())
+			segments.add(openSegment(0));
+		active = segments.get(segments.size() - 1);
+		LOG.info("Loaded " + index.size() + " pages from " + segments.size()
+				+ " segments in " + dir);
+		OPEN.put(id, this);
+	}
+
+	/**
+	 * Returns the open store with the given id or null if the store is not
+	 * open in this VM.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public static PageStore getOpen(String id) {
+		return OPEN.get(id);
+	}
+
+	/**
+	 * Returns the id of the store, i.e. the host name and the directory.
+	 *
+	 * @return
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Puts the content into the store and returns its hash. The content is
+	 * only written if the store does not have it yet. Returns null if the
+	 * content is larger than a segment or could not be written.
+	 *
+	 * @param content
+	 * @return
+	 */
+	public synchronized String put(byte[] content) {
+		String hash = hash(content);
+		if (touched != null)
+			touched.add(hash);
+		if (index.containsKey(hash))
+			return hash;
+		if (HEADER_LENGTH + content.length > segmentSize) {
+			LOG.warn("Page of " + content.length + " bytes is too large.");
+			return null;
+		}
+		try {
+			append(hash, ByteBuffer.wrap(content));
+			return hash;
+		} catch (IOException e) {
+			LOG.error(e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the hash of the content, i.e. its SHA-1 hash in hex.
+	 *
+	 * @param content
+	 * @return
+	 */
+	public static String hash(byte[] content) {
+		return Hex.encodeHexString(DigestUtils.sha1(content));
+	}
+
+	/**
+	 * Returns read only buffer with the content of the given hash or null if
+	 * the store does not have it. The buffer is a view of the mapped segment.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public ByteBuffer get(String hash) {
+		Location location;
+		synchronized (this) {
+			location = index.get(hash);
+		}
+		if (location == null)
+			return null;
+		return location.segment.slice(location.offset + HEADER_LENGTH,
+				location.length);
+	}
+
+	/**
+	 * Returns true if the store has the content of the given hash.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public synchronized boolean contains(String hash) {
+		return index.containsKey(hash);
+	}
+
+	/**
+	 * Returns the number of pages in the store.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Writes the pages put since the last sync to disk.
+	 */
+	public synchronized void sync() {
+		for (Segment segment : unsynced)
+			segment.buffer.force();
+		unsynced.clear();
+	}
+
+	/**
+	 * Compacts the sealed segments in which less than MIN_LIVE of the bytes
+	 * belong to the referenced pages. The referenced pages are copied to the
+	 * active segment and the compacted segments are deleted. The pages put
+	 * while the referenced hashes are collected are kept as well. Returns the
+	 * number of deleted segments.
+	 *
+	 * @param liveHashes
+	 *            collects the hashes of the pages referenced by the entries
+	 * @return
+	 * @throws Exception
+	 */
+	public int compact(Callable<Set<String>> liveHashes) throws Exception {
+		ArrayList<Segment> sealed;
+		synchronized (this) {
+			touched = new HashSet<String>();
+			sealed = new ArrayList<Segment>(segments);
+			sealed.remove(active);
+		}
+
+		Set<String> live;
+		try {
+			live = liveHashes.call();
+		} catch (Exception e) {
+			synchronized (this) {
+				touched = null;
+			}
+			throw e;
+		}
+
+		synchronized (this) {
+			live.addAll(touched);
+			touched = null;
+
+			// referenced bytes of each sealed segment
+			HashMap<Segment, Long> liveBytes = new HashMap<Segment, Long>();
+			for (Segment segment : sealed)
+				liveBytes.put(segment, 0L);
+			for (Map.Entry<String, Location> page : index.entrySet()) {
+				Long bytes = liveBytes.get(page.getValue().segment);
+				if (bytes != null && live.contains(page.getKey()))
+					liveBytes.put(page.getValue().segment, bytes + HEADER_LENGTH
+							+ page.getValue().length);
+			}
+
+			int deleted = 0;
+			for (Segment segment : sealed) {
+				if (liveBytes.get(segment) >= segment.size * MIN_LIVE)
+					continue;
+
+				ArrayList<String> hashes = new ArrayList<String>();
+				for (Map.Entry<String, Location> page : index.entrySet())
+					if (page.getValue().segment == segment)
+						hashes.add(page.getKey());
+				for (String hash : hashes) {
+					Location location = index.remove(hash);
+					if (live.contains(hash))
+						append(hash, segment.slice(location.offset
+								+ HEADER_LENGTH, location.length));
+				}
+
+				// readers may still hold views of the segment, the mapping
+				// stays valid after the file is deleted
+				segments.remove(segment);
+				unsynced.remove(segment);
+				segment.close();
+				if (!segment.file.delete())
+					LOG.warn("Cannot delete " + segment.file);
+				deleted++;
+			}
+			sync();
+			LOG.info("Compacted " + deleted + " segments, " + index.size()
+					+ " pages left.");
+			return deleted;
+		}
+	}
+
+	/**
+	 * Writes changes to disk and closes the segment files.
+	 */
+	public synchronized void close() {
+		OPEN.remove(id, this);
+		for (Segment segment : segments) {
+			segment.buffer.force();
+			segment.close();
+		}
+		unsynced.clear();
+	}
+
+	private static String getHostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "localhost";
+		}
+	}
+
+	/**
+	 * Appends the record to the active segment and adds it to the index. A
+	 * new segment is created if the active one is full.
+	 *
+	 * @param hash
+	 * @param content
+	 * @throws IOException
+	 */
+	private void append(String hash, ByteBuffer content) throws IOException {
+		int length = content.remaining();
+		if (active.size + HEADER_LENGTH + length > segmentSize) {
+			active = openSegment(active.id + 1);
+			segments.add(active);
+		}
+		int offset = active.size;
+		ByteBuffer writer = active.buffer.duplicate();
+		writer.position(offset);
+		try {
+			writer.put(Hex.decodeHex(hash.toCharArray()));
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+		writer.position(offset + HEADER_LENGTH);
+		writer.put(content);
+
+		// the length is written last, until then the record is not read
+		active.buffer.putInt(offset + HASH_LENGTH, length);
+		active.size += HEADER_LENGTH + length;
+		index.put(hash, new Location(active, offset, length));
+		unsynced.add(active);
+	}
+
+	/**
+	 * Maps the segment with the given id and adds its records to the index.
+	 * The segment file is created if it does not exist.
+	 *
+	 * @param id
+	 * @return
+	 * @throws IOException
+	 */
+	private Segment openSegment(int id) throws IOException {
+		File file = new File(dir, String.format("segment-%08d.pages", id));
+		Segment segment = new Segment(id, file, segmentSize);
+
+		byte[] hash = new byte[HASH_LENGTH];
+		int offset = 0;
+		while (offset + HEADER_LENGTH <= segmentSize) {
+			int length = segment.buffer.getInt(offset + HASH_LENGTH);
+			if (length <= 0 || offset + HEADER_LENGTH + length > segmentSize)
+				break;
+			for (int i = 0; i < HASH_LENGTH; i++)
+				hash[i] = segment.buffer.get(offset + i);
+			index.put(Hex.encodeHexString(hash), new Location(segment, offset,
+					length));
+			offset += HEADER_LENGTH + length;
+		}
+		segment.size = offset;
+		return segment;
+	}
+
+	/**
+	 * Memory mapped segment file.
+	 */
+	private static class Segment {
+		private final int id;
+		private final File file;
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer buffer;
+		private int size;
+
+		private Segment(int id, File file, int segmentSize) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			if (raf.length() != segmentSize)
+				raf.setLength(segmentSize);
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, segmentSize);
+		}
+
+		private ByteBuffer slice(int offset, int length) {
+			ByteBuffer view = buffer.asReadOnlyBuffer();
+			view.position(offset);
+			view.limit(offset + length);
+			return view.slice();
+		}
+
+		private void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				LOG.error(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Location of a record in a segment.
+	 */
+	private static class Location {
+		private final Segment segment;
+		private final int offset;
+		private final int length;
+
+		private Location(Segment segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
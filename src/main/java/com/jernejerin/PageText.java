@@ -0,0 +1,145 @@
+package com.jernejerin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class represents the visible text of the web page of the entry as the
+ * list of its words in lower case. The text is used for comparing the pages,
+ * so it does not matter if the pages have different markup, scripts or
+ * styles.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class PageText {
+
+	/** Number of words in a shingle. */
+	public static final int SHINGLE_WORDS = 3;
+
+	private final List<String> words;
+
+	private PageText(List<String> words) {
+		this.words = words;
+	}
+
+	/**
+	 * Returns the text of the HTML page without the tags, comments, scripts
+	 * and styles.
+	 *
+	 * @param html
+	 * @return
+	 */
+	public static PageText extract(String html) {
+		ArrayList<String> words = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		int length = html.length();
+		int i = 0;
+		while (i < length) {
+			char c = html.charAt(i);
+			if (c == '<') {
+				addWord(words, word);
+				i = skipTag(html, i);
+			} else if (c == '&') {
+				// entities separate the words, except letters we do not know
+				int end = html.indexOf(';', i);
+				if (end > i && end - i <= 10) {
+					addWord(words, word);
+					i = end + 1;
+				} else
+					i++;
+			} else {
+				if (Character.isLetterOrDigit(c))
+					word.append(c);
+				else
+					addWord(words, word);
+				i++;
+			}
+		}
+		addWord(words, word);
+		return new PageText(words);
+	}
+
+	public List<String> getWords() {
+		return words;
+	}
+
+	/**
+	 * Returns the distinct hashes of all the shingles of the text, i.e. of the
+	 * sequences of SHINGLE_WORDS words. The text with less words is one
+	 * shingle. Returns empty array for the text without words.
+	 *
+	 * @return
+	 */
+	public long[] getShingles() {
+		if (words.isEmpty())
+			return new long[0];
+
+		int count = Math.max(1, words.size() - SHINGLE_WORDS + 1);
+		long[] shingles = new long[count];
+		for (int i = 0; i < count; i++) {
+			long hash = 1125899906842597L;
+			for (int j = i; j < Math.min(words.size(), i + SHINGLE_WORDS); j++) {
+				String word = words.get(j);
+				for (int k = 0; k < word.length(); k++)
+					hash = 31 * hash + word.charAt(k);
+				hash = 31 * hash + ' ';
+			}
+			shingles[i] = hash;
+		}
+
+		// the same shingle counts once
+		Arrays.sort(shingles);
+		int distinct = 1;
+		for (int i = 1; i < shingles.length; i++)
+			if (shingles[i] != shingles[distinct - 1])
+				shingles[distinct++] = shingles[i];
+		return Arrays.copyOf(shingles, distinct);
+	}
+
+	private static void addWord(List<String> words, StringBuilder word) {
+		if (word.length() > 0) {
+			words.add(word.toString().toLowerCase(Locale.ROOT));
+			word.setLength(0);
+		}
+	}
+
+	/**
+	 * Returns the index after the tag, comment, script or style that starts at
+	 * the given index.
+	 *
+	 * @param html
+	 * @param start
+	 * @return
+	 */
+	private static int skipTag(String html, int start) {
+		if (html.startsWith("<!--", start)) {
+			int end = html.indexOf("-->", start + 4);
+			return end < 0 ? html.length() : end + 3;
+		}
+		int end = html.indexOf('>', start);
+		if (end < 0)
+			return html.length();
+		String tag = html.substring(start + 1, Math.min(end, start + 7))
+				.toLowerCase(Locale.ROOT);
+		for (String raw : new String[] { "script", "style" })
+			if (tag.startsWith(raw)) {
+				int close = indexOfIgnoreCase(html, "</" + raw, end);
+				if (close < 0)
+					return html.length();
+				int closeEnd = html.indexOf('>', close);
+				return closeEnd < 0 ? html.length() : closeEnd + 1;
+			}
+		return end + 1;
+	}
+
+	private static int indexOfIgnoreCase(String html, String value, int from) {
+		for (int i = from; i <= html.length() - value.length(); i++)
+			if (html.regionMatches(true, i, value, 0, value.length()))
+				return i;
+		return -1;
+	}
+}
@@ -5,6 +5,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
 
 import javax.jms.*;
@@ -25,16 +26,19 @@ import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
+import com.mongodb.util.JSON;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
 /**
  * This class represents delegate worker that delegates RSS feeds to message
- * queue. The delegation of the feeds to the queue is based on the fact if some
- * specified amount of time has passed since feed was updated the last time. The
- * worker first pushes all the feeds into the queue and then indefinitely checks
- * for last updated time.
+ * queue. The delegation of the feeds to the queue is based on the time the
+ * feed is due for the next poll. The worker first schedules all the feeds and
+ * then indefinitely sends the due feeds into the queue. The thread workers
+ * report each finished poll back to the delegate worker, which computes the
+ * time of the next poll from the observed rate of new entries. It also checks
+ * for feeds that were queued but never reported back.
  * 
  * @author Jernej Jerin
  * @version 1.0
@@ -60,14 +64,34 @@ public class RSSDelegateWorker {
 	/** Name of the queue to whom we will be sending messages */
 	public static String subject = "RSSFEEDSQUEUE";
 
+	/** Name of the queue from which we receive finished polls. */
+	public static String subjectDone = "RSSFEEDSDONEQUEUE";
+
 	/**
-	 * The time for checking for feeds that have not been accessed in seconds.
-	 * This depends on number of VM and threads per VM. If we have a lot of
-	 * powerful VM, than this number should be lower. If it is not passed as
-	 * argument then default time of 24h.
+	 * The time for checking for feeds that have been queued but not polled in
+	 * seconds. This depends on number of VM and threads per VM. If we have a
+	 * lot of powerful VM, than this number should be lower. If it is not
+	 * passed as argument then default time of 24h.
 	 */
 	public static int checkInterval = 24 * 60 * 60;
 
+	/** Minimal time in seconds between two polls of the same feed. */
+	public static int minInterval = 5 * 60;
+
+	/** Maximal time in seconds between two polls of the same feed. */
+	public static int maxInterval = 24 * 60 * 60;
+
+	/** Number of due feeds that are read from DB and sent at once. */
+	public static int batchSize = 100;
+
+	/** Scheduler of the feed polls. */
+	private static FeedScheduler scheduler;
+
+	/** Fields of the feed that are sent in the job. */
+	private static final BasicDBObject JOB_FIELDS = new BasicDBObject(
+			"feedUrl", 1).append("etag", 1).append("lastModified", 1).append(
+			"pollInterval", 1);
+
 	/** Logger for this class. */
 	private static final Logger LOG = Logger.getLogger(RSSDelegateWorker.class);
 
@@ -101,8 +125,14 @@ public class RSSDelegateWorker {
 					"the URL of the broker");
 			options.addOption("subject", true,
 					"name of the queue");
+			options.addOption("subjectDone", true,
+					"name of the queue for finished polls");
 			options.addOption("checkInterval", true,
 					"time in seconds for checking stalled feeds");
+			options.addOption("minInterval", true,
+					"minimal time in seconds between polls of a feed");
+			options.addOption("maxInterval", true,
+					"maximal time in seconds between polls of a feed");
 
 			// parser for command line arguments
 			CommandLineParser parser = new GnuParser();
@@ -125,19 +155,24 @@ public class RSSDelegateWorker {
 				hostBroker = cmd.getOptionValue("hostBroker");
 			if (cmd.getOptionValue("subject") != null)
 				subject = cmd.getOptionValue("subject");
+			if (cmd.getOptionValue("subjectDone") != null)
+				subjectDone = cmd.getOptionValue("subjectDone");
 			if (cmd.getOptionValue("checkInterval") != null)
 				checkInterval = Integer.parseInt(cmd.getOptionValue("checkInterval"));
+			if (cmd.getOptionValue("minInterval") != null)
+				minInterval = Integer.parseInt(cmd.getOptionValue("minInterval"));
+			if (cmd.getOptionValue("maxInterval") != null)
+				maxInterval = Integer.parseInt(cmd.getOptionValue("maxInterval"));
 
 			// we only need one instance of these classes for MongoDB
 			// even with multiple threads -> thread safe
 			mongoClient = new MongoClient(hostDB, portDB);
 			DB rssDB = mongoClient.getDB(dbName);
-			DBCollection rssColl = rssDB.getCollection(collName);
+			final DBCollection rssColl = rssDB.getCollection(collName);
 			LOG.info("Created connection to MongoDB.");
 
-			// query for querying the feeds not queued in last specified
-			// seconds
-			BasicDBObject queryLastAccessed = null;
+			// index for checking stalled feeds
+			rssColl.ensureIndex(new BasicDBObject("queuedAt", 1));
 
 			// connection to JMS server
 			ConnectionFactory connFac = new ActiveMQConnectionFactory(hostBroker);
@@ -154,22 +189,59 @@ public class RSSDelegateWorker {
 			// producer for sending messages
 			MessageProducer msgProd = sess.createProducer(dest);
 
-			// put all the feeds into the queue
-			DBCursor cursor = rssColl.find();
-			System.out.println("Sending all feeds into queue.");
+			// schedule all the feeds that are not in the queue at the time
+			// they are due. The feeds in the queue will be scheduled when they
+			// are polled.
+			scheduler = new FeedScheduler(minInterval, maxInterval);
+			DBCursor cursor = rssColl.find(new BasicDBObject("queuedAt",
+					new BasicDBObject("$exists", false)), new BasicDBObject(
+					"nextPollAt", 1));
+			System.out.println("Scheduling all feeds.");
 			try {
-				while (cursor.hasNext())
-					sendMessage(cursor.next(), rssColl, msgProd, sess);
+				while (cursor.hasNext()) {
+					DBObject feed = cursor.next();
+					Date nextPollAt = (Date) feed.get("nextPollAt");
+					scheduler.schedule(feed.get("_id"),
+							nextPollAt != null ? nextPollAt.getTime() : 0);
+				}
 			} finally {
 				cursor.close();
 			}
 
-			// indefinetly check for stalled feeds (crashed VM-RSSMainWorker or
-			// thread-RSSThreadWorker). So this is for solving unchecked
-			// exceptions.
+			// finished polls are received in a separate session, as session
+			// is not thread safe and message listener runs in its own thread
+			Session sessDone = conn.createSession(false,
+					Session.AUTO_ACKNOWLEDGE);
+			MessageConsumer msgCons = sessDone.createConsumer(sessDone
+					.createQueue(subjectDone));
+			msgCons.setMessageListener(new MessageListener() {
+				public void onMessage(Message msg) {
+					try {
+						if (msg instanceof TextMessage)
+							feedPolled((DBObject) JSON.parse(((TextMessage) msg)
+									.getText()), rssColl);
+					} catch (JMSException e) {
+						LOG.error("Problem with JMS: " + e.getMessage());
+					} catch (MongoException e) {
+						LOG.error("General Mongo problem: " + e.getMessage());
+					}
+				}
+			});
+
+			// check for stalled feeds (crashed VM-RSSMainWorker or
+			// thread-RSSThreadWorker) in a separate thread. So this is for
+			// solving unchecked exceptions.
 			System.out.println("Checking for stalled feeds...");
+			Thread sweeper = new Thread(new StaleFeedSweeper(rssColl,
+					scheduler, checkInterval), "StaleFeedSweeper");
+			sweeper.setDaemon(true);
+			sweeper.start();
+
+			// indefinetly send due feeds into queue
+			System.out.println("Sending due feeds into queue...");
 			while (true) {
-				checkFeeds(queryLastAccessed, rssColl, msgProd, sess);
+				sendDueFeeds(scheduler, rssColl, msgProd, sess,
+						checkInterval * 1000L);
 			}
 
 		} catch (JMSException e) {
@@ -180,6 +252,8 @@ public class RSSDelegateWorker {
 			LOG.fatal("General Mongo problem: " + e.getMessage());
 		} catch (IllegalThreadStateException e) {
 			LOG.fatal("Problem with threading: " + e.getMessage());
+		} catch (InterruptedException e) {
+			LOG.fatal("Problem with threading: " + e.getMessage());
 		} catch (FileNotFoundException e) {
 			LOG.fatal("Logger properties not found: " + e.getMessage());
 		} catch (IOException e) {
@@ -195,38 +269,65 @@ public class RSSDelegateWorker {
 	}
 
 	/**
-	 * Check for feeds not being updated in last n seconds and then send message
-	 * containing feed to the queue.
+	 * Wait at most timeout ms for the due feeds and send them to the queue.
+	 * The due feeds are read from DB in batches.
 	 * 
-	 * @param queryLastAccessed
+	 * @param scheduler
 	 * @param rssColl
 	 * @param msgProd
 	 * @param sess
+	 * @param timeout
 	 * @throws JMSException
+	 * @throws InterruptedException
 	 */
-	public static void checkFeeds(BasicDBObject queryLastAccessed,
-			DBCollection rssColl, MessageProducer msgProd, Session sess)
-			throws JMSException {
-		/*
-		 * The second query returns feeds that have not been queued in the past
-		 * n seconds (n * 1000). This is a backup option for in case that
-		 * RSSThreadWorker shuts down unexpectedly and is not able to put the
-		 * feed into queue.
-		 */
-		queryLastAccessed = new BasicDBObject("accessedAt", new BasicDBObject(
-				"$lt", new Date(System.currentTimeMillis() - checkInterval * 1000)));
-		DBObject feed = rssColl.findOne(queryLastAccessed);
-
-		if (feed != null) {
-			LOG.info("Feed " + feed.get("feedUrl")
-					+ " has not been updated in last " + checkInterval + "s.");
-			sendMessage(feed, rssColl, msgProd, sess);
+	public static void sendDueFeeds(FeedScheduler scheduler,
+			DBCollection rssColl, MessageProducer msgProd, Session sess,
+			long timeout) throws JMSException, InterruptedException {
+		List<Object> feedIds = scheduler.takeDue(batchSize, timeout);
+		if (feedIds.isEmpty())
+			return;
+
+		// only the fields of the job are read
+		DBCursor cursor = rssColl.find(new BasicDBObject("_id",
+				new BasicDBObject("$in", feedIds)), JOB_FIELDS);
+		try {
+			while (cursor.hasNext())
+				sendMessage(cursor.next(), rssColl, msgProd, sess);
+		} finally {
+			cursor.close();
 		}
 	}
 
 	/**
-	 * Update the feed attributes (accessedAt) and send it to the queue
-	 * for the RSSMainWorker to dequeued it.
+	 * Compute the next poll of the feed from the poll reported by the thread
+	 * worker, save it and schedule the feed.
+	 * 
+	 * @param pollDB
+	 * @param rssColl
+	 */
+	public static void feedPolled(DBObject pollDB, DBCollection rssColl) {
+		BasicDBObject query = new BasicDBObject("_id", pollDB.get("_id"));
+		DBObject feed = rssColl.findOne(query);
+		if (feed == null)
+			return;
+
+		int newEntries = ((Number) pollDB.get("newEntries")).intValue();
+		BasicDBObject nextPoll = scheduler.nextPoll(feed, newEntries,
+				(Date) pollDB.get("latestEntryAt"), System.currentTimeMillis());
+
+		// the feed is not in the queue anymore
+		rssColl.update(query, new BasicDBObject("$set", nextPoll).append(
+				"$unset", new BasicDBObject("queuedAt", "")));
+		scheduler.schedule(feed.get("_id"),
+				((Date) nextPoll.get("nextPollAt")).getTime());
+		LOG.info("Feed " + feed.get("feedUrl") + " had " + newEntries
+				+ " new entries, next poll in " + nextPoll.get("pollInterval")
+				+ "s.");
+	}
+
+	/**
+	 * Update the feed attributes (queuedAt) and send the job for the feed to
+	 * the queue for the RSSMainWorker to dequeued it.
 	 * 
 	 * @param feed
 	 * @param rssColl
@@ -236,14 +337,17 @@ public class RSSDelegateWorker {
 	 */
 	public static void sendMessage(DBObject feed, DBCollection rssColl,
 			MessageProducer msgProd, Session sess) throws JMSException {
-		// update the last accessed date time field
-		feed.put("accessedAt", new Date());
-		rssColl.update(new BasicDBObject("_id", feed.get("_id")), feed);
-
-		// send feed in the message to the queue
-		TextMessage txtMsg = sess.createTextMessage(feed.toString());
-		msgProd.send(txtMsg);
-		LOG.info("Message sent '" + txtMsg.getText() + "'");
+		// update only the queued date time field
+		feed.put("queuedAt", new Date());
+		rssColl.update(new BasicDBObject("_id", feed.get("_id")),
+				new BasicDBObject("$set", new BasicDBObject("queuedAt", feed
+						.get("queuedAt"))));
+
+		// send only the job in the message to the queue, the worker loads
+		// the rest of the feed when it needs it
+		FeedJob job = FeedJob.fromFeed(feed);
+		msgProd.send(job.toMessage(sess));
+		LOG.info("Message sent '" + job + "'");
 	}
 
 }
@@ -4,16 +4,27 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Properties;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
 import javax.jms.TextMessage;
+import javax.management.JMException;
 
 import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQConnectionFactory;
@@ -28,8 +39,10 @@ import org.apache.commons.cli.ParseException;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
@@ -66,10 +79,118 @@ public class RSSMainWorker {
 
 	/** Name of the queue to whom we will be sending messages */
 	private static String subject = "RSSFEEDSQUEUE";
+
+	/** Name of the queue for reporting finished polls. */
+	private static String subjectDone = "RSSFEEDSDONEQUEUE";
 	
 	/** Queue size or number of active threads. Default is 10. */
 	private static int threadsNum = 10;
 
+	/** Maximum number of pooled HTTP connections. Default is 100. */
+	private static int maxConnTotal = 100;
+
+	/** Maximum number of pooled HTTP connections per host. Default is 4. */
+	private static int maxConnPerRoute = 4;
+
+	/** Number of threads for fetching web pages of entries. Default is 20. */
+	private static int pageThreads = 20;
+
+	/**
+	 * Time in s a poll waits for web pages of new entries. The pages fetched
+	 * later are saved to the entries afterwards. Default is 60.
+	 */
+	private static int pollDeadline = 60;
+
+	/** Maximum number of bytes read of each web page. Default is 2 MB. */
+	private static int maxPageBytes = 2 * 1024 * 1024;
+
+	/**
+	 * Maximum number of bytes of each feed in asynchronous mode, the larger
+	 * feeds are not read. Default is 10 MB.
+	 */
+	private static int maxFeedBytes = AsyncFetchEngine.MAX_FEED_BYTES;
+
+	/** The path of the file with digests of saved entries. */
+	private static String digestIndexFile = "./entries.idx";
+
+	/** Number of slots for digests of saved entries. */
+	private static int digestIndexSlots = 1 << 21;
+
+	/** Fetch the feeds and web pages with non-blocking I/O. */
+	private static boolean async = false;
+
+	/** Number of I/O threads of the asynchronous fetch engine. Default is 2. */
+	private static int asyncThreads = 2;
+
+	/**
+	 * Number of messages the broker sends to the worker ahead. Default is 0,
+	 * i.e. the worker only gets a message when it asks for it.
+	 */
+	private static int prefetch = 0;
+
+	/** Run each feed poll on its own virtual thread. */
+	private static boolean virtualThreads = false;
+
+	/**
+	 * Maximum number of feeds being polled at once in asynchronous or virtual
+	 * threads mode.
+	 */
+	private static int maxInFlight = 1000;
+
+	/** Number of requests per second to the same host. Default is 2. */
+	private static double hostRate = 2;
+
+	/**
+	 * Number of requests to the same host that can be started at once after
+	 * the host was idle. Default is 5.
+	 */
+	private static int hostBurst = 5;
+
+	/**
+	 * Maximum number of polls waiting for the same host. The other jobs of
+	 * the host are put back to the queue. Default is 5.
+	 */
+	private static int hostQueue = 5;
+
+	/** Save the web pages of the entries compressed with gzip. */
+	private static boolean compressContent = false;
+
+	/**
+	 * The directory of the page store. Default is none, i.e. the web pages are
+	 * saved in the entries.
+	 */
+	private static String pageStoreDir = null;
+
+	/** The directory of the journal of the pending writes. */
+	private static String journalDir = "./journal";
+
+	/** Number of pending writes that are written to DB at once. */
+	private static int writeBatch = 1000;
+
+	/** Maximum time in milliseconds a write is pending. Default is 1000. */
+	private static long writeDelay = 1000;
+
+	/**
+	 * Maximum Levenshtein distance between the normalized ids of the entries
+	 * of the same feed that are the same entry. Default is 2.
+	 */
+	private static int idDistance = 2;
+
+	/**
+	 * The port of the metrics in the Prometheus text format. Default is 0,
+	 * i.e. the metrics are only exposed over JMX.
+	 */
+	private static int metricsPort = 0;
+
+	/** Number of feeds whose entry ids are kept in memory. */
+	private static final int ID_INDEX_FEEDS = 10000;
+
+	/** Number of the latest entry ids of each feed kept in memory. */
+	private static final int ID_INDEX_IDS = 1000;
+
+	/** Time in hours between compactions of the page store. */
+	private static final int COMPACT_PERIOD = 6;
+
 	// LOG for this class
 	private static final Logger LOG = Logger.getLogger(RSSMainWorker.class);
 
@@ -83,6 +204,15 @@ public class RSSMainWorker {
 		Properties props = new Properties();
 		MongoClient mongoClient = null;
 		Connection conn = null;
+		HttpClientPool httpClientPool = null;
+		EntryDigestIndex digestIndex = null;
+		AsyncFetchEngine asyncEngine = null;
+		PageFetcher pageFetcher = null;
+		PageStore pageStore = null;
+		HostScheduler hostScheduler = null;
+		ScheduledExecutorService compactor = null;
+		WriteBehindWriter writer = null;
+		WorkerMetrics metrics = new WorkerMetrics();
 		try {
 			// configure LOG
 			props.load(new FileInputStream("log4j.properties"));
@@ -103,7 +233,55 @@ public class RSSMainWorker {
 					"the URL of the broker");
 			options.addOption("subject", true,
 					"name of the queue");
+			options.addOption("subjectDone", true,
+					"name of the queue for finished polls");
 			options.addOption("threadsNum", true, "number of active threads");
+			options.addOption("maxConnTotal", true,
+					"maximum number of pooled HTTP connections");
+			options.addOption("maxConnPerRoute", true,
+					"maximum number of pooled HTTP connections per host");
+			options.addOption("pageThreads", true,
+					"number of threads for fetching web pages of entries");
+			options.addOption("pollDeadline", true,
+					"time in s a poll waits for web pages of new entries");
+			options.addOption("maxPageBytes", true,
+					"maximum number of bytes read of each web page");
+			options.addOption("maxFeedBytes", true,
+					"maximum number of bytes of each feed in asynchronous mode");
+			options.addOption("digestIndexFile", true,
+					"the path of the file with digests of saved entries");
+			options.addOption("digestIndexSlots", true,
+					"number of slots for digests of saved entries");
+			options.addOption("async", false,
+					"fetch feeds and web pages with non-blocking I/O");
+			options.addOption("asyncThreads", true,
+					"number of I/O threads in asynchronous mode");
+			options.addOption("prefetch", true,
+					"number of messages the broker sends to the worker ahead");
+			options.addOption("virtualThreads", false,
+					"run each feed poll on its own virtual thread");
+			options.addOption("maxInFlight", true,
+					"maximum number of feeds polled at once in asynchronous or virtual threads mode");
+			options.addOption("hostRate", true,
+					"number of requests per second to the same host");
+			options.addOption("hostBurst", true,
+					"number of requests to the same host started at once after it was idle");
+			options.addOption("hostQueue", true,
+					"maximum number of polls waiting for the same host");
+			options.addOption("compressContent", false,
+					"save web pages of entries compressed with gzip");
+			options.addOption("pageStoreDir", true,
+					"the directory of the page store for web pages of entries");
+			options.addOption("idDistance", true,
+					"maximum edit distance of the ids of the same entry");
+			options.addOption("journalDir", true,
+					"the directory of the journal of pending writes");
+			options.addOption("writeBatch", true,
+					"number of pending writes written to DB at once");
+			options.addOption("writeDelay", true,
+					"maximum time in milliseconds a write is pending");
+			options.addOption("metricsPort", true,
+					"the port of the metrics in Prometheus text format");
 
 			// parser for command line arguments
 			CommandLineParser parser = new GnuParser();
@@ -128,8 +306,78 @@ public class RSSMainWorker {
 				hostBroker = cmd.getOptionValue("hostBroker");
 			if (cmd.getOptionValue("subject") != null)
 				subject = cmd.getOptionValue("subject");
+			if (cmd.getOptionValue("subjectDone") != null)
+				subjectDone = cmd.getOptionValue("subjectDone");
 			if (cmd.getOptionValue("threadsNum") != null)
 				threadsNum = Integer.parseInt(cmd.getOptionValue("threadsNum"));
+			if (cmd.getOptionValue("maxConnTotal") != null)
+				maxConnTotal = Integer.parseInt(cmd.getOptionValue("maxConnTotal"));
+			if (cmd.getOptionValue("maxConnPerRoute") != null)
+				maxConnPerRoute = Integer.parseInt(cmd
+						.getOptionValue("maxConnPerRoute"));
+			if (cmd.getOptionValue("pageThreads") != null)
+				pageThreads = Integer.parseInt(cmd.getOptionValue("pageThreads"));
+			if (cmd.getOptionValue("pollDeadline") != null)
+				pollDeadline = Integer.parseInt(cmd
+						.getOptionValue("pollDeadline"));
+			if (cmd.getOptionValue("maxPageBytes") != null)
+				maxPageBytes = Integer.parseInt(cmd
+						.getOptionValue("maxPageBytes"));
+			if (cmd.getOptionValue("maxFeedBytes") != null)
+				maxFeedBytes = Integer.parseInt(cmd
+						.getOptionValue("maxFeedBytes"));
+			if (cmd.getOptionValue("digestIndexFile") != null)
+				digestIndexFile = cmd.getOptionValue("digestIndexFile");
+			if (cmd.getOptionValue("digestIndexSlots") != null)
+				digestIndexSlots = Integer.parseInt(cmd
+						.getOptionValue("digestIndexSlots"));
+			if (cmd.hasOption("async"))
+				async = true;
+			if (cmd.getOptionValue("prefetch") != null)
+				prefetch = Integer.parseInt(cmd.getOptionValue("prefetch"));
+			if (cmd.hasOption("virtualThreads"))
+				virtualThreads = true;
+			if (cmd.getOptionValue("asyncThreads") != null)
+				asyncThreads = Integer.parseInt(cmd
+						.getOptionValue("asyncThreads"));
+			if (cmd.getOptionValue("maxInFlight") != null)
+				maxInFlight = Integer.parseInt(cmd
+						.getOptionValue("maxInFlight"));
+			if (cmd.getOptionValue("hostRate") != null)
+				hostRate = Double.parseDouble(cmd.getOptionValue("hostRate"));
+			if (cmd.getOptionValue("hostBurst") != null)
+				hostBurst = Integer.parseInt(cmd.getOptionValue("hostBurst"));
+			if (cmd.getOptionValue("hostQueue") != null)
+				hostQueue = Integer.parseInt(cmd.getOptionValue("hostQueue"));
+			if (cmd.hasOption("compressContent"))
+				compressContent = true;
+			if (cmd.getOptionValue("pageStoreDir") != null)
+				pageStoreDir = cmd.getOptionValue("pageStoreDir");
+			if (cmd.getOptionValue("idDistance") != null)
+				idDistance = Integer.parseInt(cmd.getOptionValue("idDistance"));
+			if (cmd.getOptionValue("journalDir") != null)
+				journalDir = cmd.getOptionValue("journalDir");
+			if (cmd.getOptionValue("writeBatch") != null)
+				writeBatch = Integer.parseInt(cmd.getOptionValue("writeBatch"));
+			if (cmd.getOptionValue("writeDelay") != null)
+				writeDelay = Long.parseLong(cmd.getOptionValue("writeDelay"));
+			if (cmd.getOptionValue("metricsPort") != null)
+				metricsPort = Integer.parseInt(cmd.getOptionValue("metricsPort"));
+
+			// the metrics of the polls are exposed over JMX and optionally
+			// over HTTP for Prometheus
+			try {
+				metrics.register();
+			} catch (JMException e) {
+				LOG.error("Problem with JMX: " + e.getMessage());
+			}
+			if (metricsPort > 0) {
+				try {
+					metrics.serve(metricsPort);
+				} catch (IOException e) {
+					LOG.error("Cannot serve metrics: " + e.getMessage());
+				}
+			}
 
 			// we only need one instance of these classes for MongoDB
 			// even with multiple threads -> thread safe
@@ -139,10 +387,40 @@ public class RSSMainWorker {
 			DBCollection entriesColl = rssDB.getCollection(collNameEntries);
 			LOG.info("Created connection to MongoDB.");
 
+			// unique index for finding saved entries of feed and ignoring
+			// duplicates on insert
+			entriesColl.ensureIndex(new BasicDBObject("feedId", 1).append(
+					"idHash", 1), new BasicDBObject("unique", true));
+
+			// index of the LSH buckets of the web pages for finding the near
+			// duplicate entries of feed
+			entriesColl.ensureIndex(new BasicDBObject("feedId", 1).append(
+					"lshBuckets", 1));
+
+			// index of the blocks of the SimHash fingerprints for finding the
+			// entries of other feeds with the same page
+			entriesColl.ensureIndex(new BasicDBObject("simHashBlocks", 1));
+
+			// one pooled HTTP client for all the thread workers. The client
+			// is thread safe and reuses connections to the same host
+			httpClientPool = new HttpClientPool(maxConnTotal, maxConnPerRoute,
+					metrics);
+
+			// digests of saved entries shared by all the thread workers
+			digestIndex = new EntryDigestIndex(digestIndexFile,
+					digestIndexSlots);
+
+			// raw ids of the latest entries of the recently polled feeds
+			EntryIdIndex idIndex = new EntryIdIndex(entriesColl, idDistance,
+					ID_INDEX_FEEDS, ID_INDEX_IDS);
+
 			// connection to JMS server. ConnectionFactory and Connection are
 			// thread safe!
 			ActiveMQConnectionFactory connFac = new ActiveMQConnectionFactory(
 					hostBroker);
+			// pull the jobs one by one, the broker then dispatches them to
+			// the workers with free capacity
+			connFac.getPrefetchPolicy().setQueuePrefetch(prefetch);
 			conn = connFac.createConnection();
 			conn.start();
 			LOG.info("Created connection to ActiveMQ.");
@@ -159,37 +437,150 @@ public class RSSMainWorker {
 			// consumer for receiving messages
 			MessageConsumer msgCons = sess.createConsumer(dest);
 
-			// create a thread pool with fixed number of threads
-			// the same as using ThreadPoolExecutor with default values
+			// producer for putting back the jobs of the busy hosts
+			MessageProducer msgProd = sess.createProducer(dest);
+
+			// number of jobs the worker can take at once. A job is only taken
+			// from the broker when a permit is available and the permit is
+			// released when the poll finishes, so no job waits in the worker
+			// while another worker could process it.
+			int capacity = async || virtualThreads ? maxInFlight : threadsNum;
+			final Semaphore permits = new Semaphore(capacity);
+
+			// create a thread pool with fixed number of threads. The queue
+			// only holds tasks for the moment a thread is being returned to
+			// the pool or the completion stages of asynchronous polls.
 			ThreadPoolExecutor executor = new ThreadPoolExecutor(threadsNum,
 					threadsNum, 0L, TimeUnit.SECONDS,
-					new LinkedBlockingQueue<Runnable>());
+					new ArrayBlockingQueue<Runnable>(capacity));
+			metrics.gauge("executorQueue", () -> executor.getQueue().size());
+			metrics.gauge("executorActive", executor::getActiveCount);
+			metrics.gauge("pollsInFlight",
+					() -> capacity - permits.availablePermits());
+
+			// one cheap thread per feed, which is blocked on I/O most of the
+			// time
+			ExecutorService pollExecutor = executor;
+			if (virtualThreads)
+				pollExecutor = createVirtualThreadExecutor(threadsNum);
+
+			// the feeds and the web pages are fetched when their host is
+			// ready, so that no host gets too many requests at once
+			hostScheduler = new HostScheduler(maxConnPerRoute, hostRate,
+					hostBurst);
+
+			// only the parsing and persistence run on the threads, the
+			// fetches are waiting on the engine's I/O threads
+			if (async) {
+				asyncEngine = new AsyncFetchEngine(asyncThreads, maxFeedBytes);
+				pageFetcher = new PageFetcher(asyncEngine, hostScheduler,
+						pollDeadline * 1000L, new PageBodyReader(maxPageBytes,
+								metrics));
+			} else
+				pageFetcher = new PageFetcher(httpClientPool.getClient(),
+						pageThreads, hostScheduler, pollDeadline * 1000L,
+						new PageBodyReader(maxPageBytes, metrics));
+
+			// the entries and the feed updates of all the polls are written
+			// to DB in batches. The writes left from the previous run are
+			// replayed from the journal
+			DBCollection pagesColl = rssDB
+					.getCollection(EntryContent.PAGES_COLLECTION);
+			writer = new WriteBehindWriter(journalDir, writeBatch, writeDelay,
+					metrics, rssColl, entriesColl, pagesColl);
+
+			// web pages are saved in the page store and the entries only keep
+			// their hashes. Each page is also saved once in the pages
+			// collection, so the readers on other machines can read it
+			if (pageStoreDir != null)
+				pageStore = new PageStore(pageStoreDir);
+			EntryContent entryContent = new EntryContent(compressContent,
+					pageStore, writer, pagesColl);
+
+			// the pages are on disk before the entries with their hashes are
+			// in DB. The store is compacted in the background with the hashes
+			// that are referenced by the entries or by the pending writes
+			if (pageStore != null) {
+				final PageStore store = pageStore;
+				final WriteBehindWriter entriesWriter = writer;
+				final DBCollection coll = entriesColl;
+				writer.setBeforeWrite(store::sync);
+				compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread thread = new Thread(r, "PageStoreCompactor");
+					thread.setDaemon(true);
+					return thread;
+				});
+				compactor.scheduleWithFixedDelay(() -> {
+					try {
+						store.compact(() -> getPageHashes(coll, store.getId(),
+								entriesWriter));
+					} catch (Exception e) {
+						LOG.error("Compaction of page store failed: "
+								+ e.getMessage());
+					}
+				}, COMPACT_PERIOD, COMPACT_PERIOD, TimeUnit.HOURS);
+			}
+			final AsyncFetchEngine engine = asyncEngine;
+			final ExecutorService polls = pollExecutor;
 
-			// check for available threads indefinetly
 			while (true) {
-				// create maximum of specified threads
-				if (executor.getActiveCount() < threadsNum) {
-					LOG.info("New thread available.");
-					
-					// get the available RSS feed from the message queue
-					// this call is blocking!
-					Message msg = (Message) msgCons.receive();
-					LOG.info("Received new job from queue.");
-
-					if (msg instanceof TextMessage) {
-						TextMessage txtMsg = (TextMessage) msg;
-
-						// parse it from JSON to DBObject
-						DBObject feedDB = (DBObject) JSON.parse(txtMsg
-								.getText());
-
-						// start thread for given RSS feed
-						Runnable rssThreadWorker = new RSSThreadWorker(msg, feedDB,
-								rssColl, entriesColl, conn, subject);
-						executor.execute(rssThreadWorker);
-						LOG.info("New thread started for feed "
-								+ feedDB.get("feedUrl"));
+				// wait until a poll finishes
+				permits.acquire();
+
+				// get the available RSS feed from the message queue
+				// this call is blocking!
+				Message msg = (Message) msgCons.receive();
+				LOG.info("Received new job from queue.");
+
+				DBObject feedDB = readJob(msg, metrics);
+
+				if (feedDB != null
+						&& hostScheduler.getWaiting((String) feedDB
+								.get("feedUrl")) >= hostQueue
+						&& requeue(msg, sess, msgProd)) {
+					// the permit is not held while the job would wait for its
+					// host, another worker or a later receive polls it
+					LOG.info("Host of feed " + feedDB.get("feedUrl")
+							+ " is busy, job put back to the queue.");
+					permits.release();
+				} else if (feedDB != null) {
+					// start thread for given RSS feed when its host is ready.
+					// The host is free again once the feed is fetched
+					final RSSThreadWorker rssThreadWorker = new RSSThreadWorker(
+							msg, feedDB, rssColl, entriesColl, conn,
+							subjectDone, httpClientPool.getClient(),
+							digestIndex, idIndex, pageFetcher, entryContent,
+							writer, metrics);
+					hostScheduler.submit((String) feedDB.get("feedUrl"), () -> {
+						if (async)
+							rssThreadWorker.runAsync(engine, executor)
+									.whenComplete((v, e) -> permits.release());
+						else
+							polls.execute(() -> {
+								try {
+									rssThreadWorker.run();
+								} finally {
+									permits.release();
+								}
+							});
+						return rssThreadWorker.getFeedFetched();
+					}).exceptionally(e -> {
+						// the poll could not be started
+						LOG.error(e.getMessage());
+						permits.release();
+						return null;
+					});
+					LOG.info("New poll scheduled for feed "
+							+ feedDB.get("feedUrl"));
+				} else {
+					// the message can never be polled, so it is discarded
+					try {
+						msg.acknowledge();
+					} catch (JMSException e) {
+						LOG.error("Problem with discarding job: "
+								+ e.getMessage());
 					}
+					permits.release();
 				}
 			}
 		} catch (UnknownHostException e) {
@@ -206,10 +597,139 @@ public class RSSMainWorker {
 			LOG.fatal(e.getMessage());
 		} catch (ParseException e) {
 			LOG.fatal(e.getMessage());
+		} catch (InterruptedException e) {
+			LOG.fatal(e.getMessage());
 		} finally {
+			metrics.close();
+			if (hostScheduler != null)
+				hostScheduler.close();
+			if (pageFetcher != null)
+				pageFetcher.close();
+			if (asyncEngine != null)
+				asyncEngine.close();
+			if (writer != null)
+				writer.close();
 			conn.close();
 			mongoClient.close();
+			if (httpClientPool != null)
+				httpClientPool.close();
+			if (digestIndex != null)
+				digestIndex.close();
+			if (compactor != null)
+				compactor.shutdownNow();
+			if (pageStore != null)
+				pageStore.close();
 			LOG.info("Closed connection to MongoDB and ActiveMQ");
 		}
 	}
+
+	/**
+	 * Returns the feed of the job in the message or null if the message is
+	 * not a job, e.g. because it was sent by a newer version of the delegate
+	 * worker.
+	 * 
+	 * @param msg
+	 * @param metrics
+	 * @return
+	 */
+	private static DBObject readJob(Message msg, WorkerMetrics metrics) {
+		try {
+			if (msg instanceof BytesMessage)
+				return FeedJob.fromMessage((BytesMessage) msg).toFeed();
+			if (msg instanceof TextMessage)
+				// whole feed in JSON, sent before the jobs were binary
+				return (DBObject) JSON.parse(((TextMessage) msg).getText());
+			LOG.error("Unknown job " + msg);
+		} catch (JMSException e) {
+			metrics.error(e);
+			LOG.error("Problem with reading job: " + e.getMessage());
+		} catch (RuntimeException e) {
+			metrics.error(e);
+			LOG.error("Problem with reading job: " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Sends the copy of the job to the end of the queue and acknowledges the
+	 * message. Returns false if the job could not be put back, it is then
+	 * polled by this worker.
+	 * 
+	 * @param msg
+	 * @param sess
+	 * @param msgProd
+	 * @return
+	 */
+	private static boolean requeue(Message msg, Session sess,
+			MessageProducer msgProd) {
+		try {
+			javax.jms.Message copy;
+			if (msg instanceof BytesMessage) {
+				BytesMessage bytes = (BytesMessage) msg;
+				bytes.reset();
+				byte[] body = new byte[(int) bytes.getBodyLength()];
+				bytes.readBytes(body);
+				BytesMessage job = sess.createBytesMessage();
+				job.writeBytes(body);
+				copy = job;
+			} else
+				copy = sess.createTextMessage(((TextMessage) msg).getText());
+			msgProd.send(copy);
+			msg.acknowledge();
+			return true;
+		} catch (JMSException e) {
+			LOG.error("Problem with putting back job: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the hashes of the web pages in the page store with the given id
+	 * referenced by the entries, also by the entries and the updates that are
+	 * not written to DB yet. The entries saved before the id of the store was
+	 * kept are referencing the store as well.
+	 * 
+	 * @param entriesColl
+	 * @param storeId
+	 * @param writer
+	 * @return
+	 */
+	private static Set<String> getPageHashes(DBCollection entriesColl,
+			String storeId, WriteBehindWriter writer) {
+		HashSet<String> pageHashes = new HashSet<String>();
+		// the pending writes first, as they may be written during the scan
+		for (Object pageHash : writer.getPendingValues("pageHash"))
+			pageHashes.add((String) pageHash);
+		DBCursor cursor = entriesColl.find(
+				new BasicDBObject("pageHash", new BasicDBObject("$exists",
+						true)).append("pageStore", new BasicDBObject("$in",
+						Arrays.asList(storeId, null))), new BasicDBObject(
+						"pageHash", 1).append("_id", 0));
+		try {
+			while (cursor.hasNext())
+				pageHashes.add((String) cursor.next().get("pageHash"));
+		} finally {
+			cursor.close();
+		}
+		return pageHashes;
+	}
+
+	/**
+	 * Returns executor that starts a new virtual thread for each task.
+	 * Virtual threads are only available from Java 21 on, so on older runtime
+	 * a fixed pool of the given number of platform threads is used instead.
+	 * 
+	 * @param threads
+	 * @return
+	 */
+	private static ExecutorService createVirtualThreadExecutor(int threads) {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			LOG.warn("Virtual threads are not supported by this runtime, using "
+					+ threads + " platform threads.");
+			return Executors.newFixedThreadPool(threads);
+		}
+	}
 }
@@ -1,18 +1,28 @@
 package com.jernejerin;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.security.NoSuchAlgorithmException;
+import java.net.http.HttpResponse;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.jms.Connection;
 import javax.jms.Destination;
@@ -22,22 +32,27 @@ import javax.jms.Session;
 import javax.jms.TextMessage;
 
 import org.apache.activemq.Message;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.sun.syndication.feed.rss.Channel;
 import com.sun.syndication.feed.synd.SyndCategory;
 import com.sun.syndication.feed.synd.SyndEnclosure;
 import com.sun.syndication.feed.synd.SyndEntry;
@@ -52,15 +67,42 @@ import com.sun.syndication.io.XmlReader;
 /**
  * This class represents thread worker. The thread is created in class
  * RSSMainWorker. This thread process the feed, i.e. updating feed data, getting
- * new entries, etc. The processing of xml is done with Rome library. The HTTP
- * GET is done with Apache HttpClient library.
+ * new entries, etc. The processing of xml is done with StreamingFeedParser and
+ * Rome library. The HTTP GET is done with Apache HttpClient library.
  * 
  * @author Jernej Jerin
  * @version 1.0
  * @since 2014-05-06
  */
 public class RSSThreadWorker implements Runnable {
-	private static final String USER_AGENT = "Mozilla/5.0 Firefox/26.0";
+	public static final String USER_AGENT = "Mozilla/5.0 Firefox/26.0";
+
+	/** MinHash of the web pages with 16 LSH buckets of 8 values. */
+	private static final MinHash MIN_HASH = new MinHash(16, 8);
+
+	/** Estimated Jaccard similarity above which the pages are duplicates. */
+	private static final double NEAR_DUPLICATE = 0.9;
+
+	/** Maximum number of entries with common bucket compared to the page. */
+	private static final int MAX_CANDIDATES = 20;
+
+	/**
+	 * Maximum number of entries of other feeds with common block compared to
+	 * the page.
+	 */
+	private static final int MAX_CANONICAL_CANDIDATES = 100;
+
+	/** Minimum number of shingles of the page linked to a canonical entry. */
+	private static final int MIN_CANONICAL_SHINGLES = 50;
+
+	/**
+	 * Time in ms after which the fetch of the pending web page is considered
+	 * lost, e.g. because the worker stopped, and the page is fetched again.
+	 */
+	private static final long PENDING_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+	/** Maximum number of fetches of the pending web page. */
+	private static final int MAX_PAGE_ATTEMPTS = 3;
 
 	// logger for this class
 	private static final Logger LOG = Logger.getLogger(RSSThreadWorker.class);
@@ -70,132 +112,369 @@ public class RSSThreadWorker implements Runnable {
 	private DBCollection rssColl;
 	private DBCollection entriesColl;
 	private Connection conn;
-	private String subject;
+	private String subjectDone;
+	private CloseableHttpClient httpClient;
+	private EntryDigestIndex digestIndex;
+	private EntryIdIndex idIndex;
+	private PageFetcher pageFetcher;
+	private EntryContent entryContent;
+	private WriteBehindWriter writer;
+	private WorkerMetrics metrics;
+
+	// the feed as it was loaded from DB, only the changed fields are saved
+	private DBObject savedFeedDB;
+
+	// number of new entries and publish date of the latest entry found in
+	// this poll, reported back to RSSDelegateWorker for scheduling
+	private int newEntriesNum = 0;
+	private Date latestEntryAt = null;
+
+	// digests of the new entries in the digest index by hash id
+	private HashMap<String, byte[]> digestsById = new HashMap<String, byte[]>();
+	private byte[] feedDigest = null;
+
+	// signatures and LSH buckets of the web pages of this poll, which are
+	// not in DB yet
+	private HashMap<String, int[]> signaturesById = new HashMap<String, int[]>();
+	private HashMap<Long, String> idsByBucket = new HashMap<Long, String>();
+
+	// completes when the feed is fetched, the host scheduler then starts the
+	// next request to the same host
+	private final CompletableFuture<Void> feedFetched = new CompletableFuture<Void>();
 
 	public RSSThreadWorker(Message msg, DBObject feedDB, DBCollection rssColl,
-			DBCollection entriesColl, Connection conn, String subject) {
+			DBCollection entriesColl, Connection conn, String subjectDone,
+			CloseableHttpClient httpClient, EntryDigestIndex digestIndex,
+			EntryIdIndex idIndex, PageFetcher pageFetcher, EntryContent entryContent,
+			WriteBehindWriter writer, WorkerMetrics metrics) {
 		this.msg = msg;
 		this.feedDB = feedDB;
 		this.rssColl = rssColl;
 		this.entriesColl = entriesColl;
 		this.conn = conn;
-		this.subject = subject;
+		this.subjectDone = subjectDone;
+		this.httpClient = httpClient;
+		this.digestIndex = digestIndex;
+		this.idIndex = idIndex;
+		this.pageFetcher = pageFetcher;
+		this.entryContent = entryContent;
+		this.writer = writer;
+		this.metrics = metrics;
 	}
 
 	/**
-	 * Check for new entries every second for one feed infinite times.
+	 * Check for new entries of one feed and report the result of the poll
+	 * back to RSSDelegateWorker, which schedules the next poll.
 	 */
-	@SuppressWarnings("unchecked")
 	public void run() {
 		Properties props = new Properties();
 		try {
 			// configure LOG
 			props.load(new FileInputStream("log4j.properties"));
 			PropertyConfigurator.configure(props);
+			recordQueueWait();
 
-			// input reader for rss
-			SyndFeedInput input = new SyndFeedInput();
-			SyndFeed feed = readFeed((String) feedDB.get("feedUrl"), input);
+			SyndFeed feed;
+			try {
+				feed = readFeed((String) feedDB.get("feedUrl"),
+						createFeedInput(), httpClient, feedDB,
+						this::isCandidate, metrics);
+			} finally {
+				feedFetched.complete(null);
+			}
 
 			if (feed != null) {
 				LOG.info("Successfully read feed " + feedDB.get("feedUrl"));
 				// update the feed information
 				feedUpdate(feedDB, feed);
 
-				/*
-				 * Get the list of entries that are already saved for this feed.
-				 * With this information we will be able to distinct between new
-				 * entries of the given feed. Each feed contains in array SHA-1
-				 * hash id of entries that belong to that feed. This way we
-				 * don't have to do additionaly query of existing entries. The
-				 * id is a SHA-1 digest of the uri, link, description or title.
-				 */
-				ArrayList<String> idList = (ArrayList<String>) feedDB
-						.get("entries");
-				if (idList == null)
-					idList = new ArrayList<String>();
-
-				// get new entries and save them
-				getNewEntries(feed, idList);
+				fetchPendingWebPages();
+
+				// get new entries, fetch the whole entries concurrently and
+				// save them when fetched or when the deadline passes
+				List<BasicDBObject> entriesDBNew = getNewEntries(feed);
+				List<CompletableFuture<String>> webPages = fetchWebPages(entriesDBNew);
+				try {
+					allOf(webPages).get(pageFetcher.getDeadline(),
+							TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					LOG.info("Deadline for web pages of feed "
+							+ feedDB.get("feedUrl") + " passed.");
+				}
+				saveNewEntries(entriesDBNew, webPages);
 			} else
 				LOG.info("Problem with reading feed " + feedDB.get("feedUrl"));
+		} catch (NotModifiedException e) {
+			feedNotModified(e);
 		} catch (FileNotFoundException e) {
+			metrics.error(e);
 			LOG.fatal(e.getMessage());
 		} catch (SecurityException e) {
+			metrics.error(e);
 			LOG.fatal(e.getMessage());
 		} catch (IllegalArgumentException e) {
+			metrics.error(e);
 			LOG.fatal(e.getMessage());
 		} catch (InterruptedException e) {
+			metrics.error(e);
 			LOG.fatal(e.getMessage());
 		} catch (MalformedURLException e) {
+			metrics.error(e);
 			LOG.fatal(e.getMessage());
 		} catch (ParsingFeedException e) {
+			metrics.error(e);
 			LOG.fatal(e.getMessage());
 		} catch (FeedException e) {
+			metrics.error(e);
 			LOG.fatal(e.getMessage());
 		} catch (IOException e) {
+			metrics.error(e);
 			LOG.fatal(e.getMessage());
 		} catch (Exception ex) {
+			metrics.error(ex);
 			LOG.fatal(ex.getMessage());
 		} finally {
-			/*
-			 * Put it back to the queue because Session and MessageProducer are
-			 * not Thread safe we need to create each of them in sepearate
-			 * thread ConnectionFactory and Connection are thread safe!
-			 */
-			Session sess = null;
-			MessageProducer msgProd = null;
-			try {
-				// create a non-transactional session for sending messages
-				sess = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			reportPoll();
+		}
+	}
+
+	/**
+	 * Check for new entries of one feed the same way as method run, but
+	 * asynchronously. The feed and the web pages are fetched with the
+	 * asynchronous fetch engine, which does not block any thread while
+	 * waiting for the servers. Parsing and persistence run as completion
+	 * stages on the given executor.
+	 * 
+	 * @param engine
+	 * @param executor
+	 * @return
+	 */
+	public CompletableFuture<Void> runAsync(final AsyncFetchEngine engine,
+			final Executor executor) {
+		final String url = (String) feedDB.get("feedUrl");
+		recordQueueWait();
+		final long fetchStart = System.nanoTime();
+		return engine
+				.fetch(url, getConditionalHeaders(feedDB))
+				.whenComplete((response, ex) -> {
+					metrics.timeSince(WorkerMetrics.BODY, fetchStart);
+					feedFetched.complete(null);
+				})
+				.thenApplyAsync(response -> parseFeed(url, response), executor)
+				.thenComposeAsync(feed -> {
+					if (feed == null) {
+						LOG.info("Problem with reading feed " + url);
+						return CompletableFuture.completedFuture(null);
+					}
+					LOG.info("Successfully read feed " + url);
+					feedUpdate(feedDB, feed);
+					fetchPendingWebPages();
+
+					// fetch the whole entries concurrently
+					final List<BasicDBObject> entriesDBNew = getNewEntries(feed);
+					final List<CompletableFuture<String>> webPages = fetchWebPages(entriesDBNew);
+					return allOf(webPages).completeOnTimeout(null,
+							pageFetcher.getDeadline(), TimeUnit.MILLISECONDS)
+							.thenRunAsync(
+									() -> saveNewEntries(entriesDBNew, webPages),
+									executor);
+				}, executor).handleAsync((v, ex) -> {
+					if (ex != null && ex.getCause() instanceof NotModifiedException)
+						feedNotModified((NotModifiedException) ex.getCause());
+					else if (ex != null) {
+						metrics.error(ex);
+						LOG.fatal(ex.getMessage());
+					}
+					reportPoll();
+					return null;
+				}, executor);
+	}
+
+	/**
+	 * Returns the feed parsed from the response of the asynchronous fetch.
+	 * Throws CompletionException with NotModifiedException if the feed has not
+	 * changed.
+	 * 
+	 * @param url
+	 * @param response
+	 * @return
+	 */
+	private SyndFeed parseFeed(String url, HttpResponse<byte[]> response) {
+		if (response.statusCode() == HttpStatus.SC_NOT_MODIFIED)
+			throw new CompletionException(new NotModifiedException(url));
+		if (response.statusCode() == HttpStatus.SC_OK)
+			saveValidators(feedDB,
+					response.headers().firstValue(HttpHeaders.ETAG)
+							.orElse(null),
+					response.headers().firstValue(HttpHeaders.LAST_MODIFIED)
+							.orElse(null));
+		metrics.increment(WorkerMetrics.FEED_BYTES, response.body().length);
+		long start = System.nanoTime();
+		try {
+			return StreamingFeedParser.parse(new XmlReader(
+					new ByteArrayInputStream(response.body())),
+					createFeedInput(), this::isCandidate);
+		} catch (FeedException e) {
+			throw new CompletionException(e);
+		} catch (IOException e) {
+			throw new CompletionException(e);
+		} finally {
+			metrics.timeSince(WorkerMetrics.PARSE, start);
+		}
+	}
+
+	/**
+	 * Returns input reader for rss.
+	 * 
+	 * @return
+	 */
+	private static SyndFeedInput createFeedInput() {
+		SyndFeedInput input = new SyndFeedInput();
+
+		// keep the RSS channel for reading ttl
+		input.setPreserveWireFeed(true);
+		return input;
+	}
+
+	/**
+	 * Nothing has changed since the last poll so there is nothing to parse.
+	 * Only update the last accessed date time field.
+	 * 
+	 * @param e
+	 */
+	private void feedNotModified(NotModifiedException e) {
+		LOG.info(e.getMessage());
+		metrics.increment(WorkerMetrics.NOT_MODIFIED, 1);
+		feedDB.put("accessedAt", new Date());
+		writer.update(rssColl, new BasicDBObject("_id", feedDB.get("_id")),
+				new BasicDBObject("$set", new BasicDBObject("accessedAt",
+						feedDB.get("accessedAt"))));
+	}
+
+	/**
+	 * Returns future that completes when the feed is fetched or could not be
+	 * fetched.
+	 * 
+	 * @return
+	 */
+	public CompletableFuture<Void> getFeedFetched() {
+		return feedFetched;
+	}
+
+	/**
+	 * Record the time from sending the job until the start of the poll, i.e.
+	 * the wait in the broker, for the host and for a thread.
+	 */
+	private void recordQueueWait() {
+		Date queuedAt = (Date) feedDB.get("queuedAt");
+		if (queuedAt != null)
+			metrics.time(WorkerMetrics.QUEUE_WAIT,
+					TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()
+							- queuedAt.getTime()));
+	}
 
-				// destination is our queue on JMS
-				Destination dest = sess.createQueue(subject);
+	/**
+	 * Report the poll to the RSSDelegateWorker when all the writes of the poll
+	 * are in DB.
+	 */
+	private void reportPoll() {
+		feedFetched.complete(null);
+		writer.sync().thenRunAsync(this::sendReport);
+	}
 
-				// producer for sending messages
-				msgProd = sess.createProducer(dest);
+	/**
+	 * Report the poll to the RSSDelegateWorker, which puts the feed back to
+	 * the queue when it is due again, and acknowledge the message.
+	 */
+	private void sendReport() {
+		/*
+		 * Because Session and MessageProducer are not Thread safe we need to
+		 * create each of them in sepearate thread ConnectionFactory and
+		 * Connection are thread safe!
+		 */
+		Session sess = null;
+		MessageProducer msgProd = null;
+		try {
+			// create a non-transactional session for sending messages
+			sess = conn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+
+			// destination is our queue on JMS for finished polls
+			Destination dest = sess.createQueue(subjectDone);
 
-				// send feed in the message to the queue
-				TextMessage txtMsg = sess.createTextMessage(feedDB.toString());
-				msgProd.send(txtMsg);
-				LOG.info("Message sent from thread '" + txtMsg.getText() + "'");
+			// producer for sending messages
+			msgProd = sess.createProducer(dest);
 
-				// now we can acknowledge that the message was successfully
-				// received
-				// this happens when the same message is successfully sent back
-				// into queue
-				msg.acknowledge();
+			// send result of the poll to the queue
+			BasicDBObject pollDB = new BasicDBObject("_id",
+					feedDB.get("_id")).append("newEntries", newEntriesNum);
+			if (latestEntryAt != null)
+				pollDB.append("latestEntryAt", latestEntryAt);
+			TextMessage txtMsg = sess.createTextMessage(pollDB.toString());
+			msgProd.send(txtMsg);
+			LOG.info("Message sent from thread '" + txtMsg.getText() + "'");
+
+			// now we can acknowledge that the message was successfully
+			// received
+			// this happens when the result of the poll is successfully
+			// sent into queue
+			msg.acknowledge();
+		} catch (JMSException e) {
+			LOG.fatal(e.getMessage());
+		} finally {
+			try {
+				sess.close();
+				msgProd.close();
 			} catch (JMSException e) {
 				LOG.fatal(e.getMessage());
-			} finally {
-				try {
-					sess.close();
-					msgProd.close();
-				} catch (JMSException e) {
-					LOG.fatal(e.getMessage());
-				}
 			}
 		}
 	}
 
 	/**
-	 * Read feed from the specified url. Returns null if there is no content or
-	 * throws Exception if there is problem with building URI.
+	 * Read feed from the specified url using the shared pooled HTTP client.
+	 * The request is conditional if feedDB contains validators (etag and
+	 * lastModified) from the previous poll. The validators of the response are
+	 * saved back into feedDB. Returns null if there is no content, throws
+	 * NotModifiedException if the feed has not changed or throws Exception if
+	 * there is problem with building URI.
 	 * 
 	 * @param url
 	 * @param input
+	 * @param httpClient
+	 * @param feedDB
 	 * @return
+	 * @throws NotModifiedException
 	 * @throws Exception
 	 */
-	public static SyndFeed readFeed(String url, SyndFeedInput input)
-			throws Exception {
-		// set various timeout to 30s
-		RequestConfig requestConfig = RequestConfig.custom()
-				.setConnectTimeout(30 * 1000)
-				.setConnectionRequestTimeout(30 * 1000)
-				.setSocketTimeout(30 * 1000).build();
-		CloseableHttpClient httpClient = HttpClientBuilder.create()
-				.setDefaultRequestConfig(requestConfig).build();
+	public static SyndFeed readFeed(String url, SyndFeedInput input,
+			CloseableHttpClient httpClient, DBObject feedDB)
+			throws NotModifiedException, Exception {
+		return readFeed(url, input, httpClient, feedDB, null,
+				new WorkerMetrics());
+	}
+
+	/**
+	 * Read feed from the specified url the same way as method readFeed, but
+	 * keep only the entries that the filter accepts. RSS 2.0 and Atom 1.0
+	 * feeds are parsed entry by entry and the parsing stops after the already
+	 * saved entries. The time until the response, the time waiting for the
+	 * body, the time of parsing and the bytes of the feed are recorded in the
+	 * metrics.
+	 * 
+	 * @param url
+	 * @param input
+	 * @param httpClient
+	 * @param feedDB
+	 * @param filter
+	 * @param metrics
+	 * @return
+	 * @throws NotModifiedException
+	 * @throws Exception
+	 */
+	public static SyndFeed readFeed(String url, SyndFeedInput input,
+			CloseableHttpClient httpClient, DBObject feedDB,
+			StreamingFeedParser.EntryFilter filter, WorkerMetrics metrics)
+			throws NotModifiedException, Exception {
 		SyndFeed feed = null;
 		try {
 			HttpGet request;
@@ -205,7 +484,6 @@ public class RSSThreadWorker implements Runnable {
 			try {
 				URI feedUrl = new URI(url);
 				request = new HttpGet(feedUrl.toString());
-				request.setConfig(requestConfig);
 			} catch (NullPointerException ex) {
 				throw new Exception(ex);
 			} catch (URISyntaxException ex) {
@@ -220,278 +498,720 @@ public class RSSThreadWorker implements Runnable {
 			request.addHeader(HttpHeaders.USER_AGENT, USER_AGENT);
 			request.addHeader(HttpHeaders.ACCEPT, "*/*");
 
+			// compressed body is decompressed by the client
+			request.addHeader(HttpHeaders.ACCEPT_ENCODING,
+					AsyncFetchEngine.ACCEPT_ENCODING);
+
+			// conditional GET with validators from the previous poll
+			for (Map.Entry<String, String> header : getConditionalHeaders(
+					feedDB).entrySet())
+				request.addHeader(header.getKey(), header.getValue());
+
 			// even if execution does not succeed, catch the exception
 			// here and return null. This will continue the main
 			// while loop and try to get the feed again after specified seconds.
+			long start = System.nanoTime();
 			CloseableHttpResponse response = httpClient.execute(request);
+			metrics.timeSince(WorkerMetrics.FIRST_BYTE, start);
 
+			// entity from response
+			HttpEntity entity = response.getEntity();
 			try {
-				// entity from response
-				HttpEntity entity = response.getEntity();
+				if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED)
+					throw new NotModifiedException(url);
+
+				// save validators for the next poll
+				if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+					Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+					Header lastModified = response
+							.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+					saveValidators(feedDB, etag != null ? etag.getValue()
+							: null, lastModified != null ? lastModified
+							.getValue() : null);
+				}
 
 				// build feed from entity content
 				if (entity != null) {
-					InputStream stream = entity.getContent();
-					feed = input.build(new XmlReader(stream));
+					MeteredInputStream stream = new MeteredInputStream(
+							entity.getContent());
+					long parseStart = System.nanoTime();
+					feed = StreamingFeedParser.parse(new XmlReader(stream),
+							input, filter);
+					metrics.time(WorkerMetrics.BODY, stream.getReadNanos());
+					metrics.time(WorkerMetrics.PARSE, System.nanoTime()
+							- parseStart - stream.getReadNanos());
+					metrics.increment(WorkerMetrics.FEED_BYTES,
+							stream.getBytes());
 				}
 			} finally {
+				// read the rest of the content so that the connection can be
+				// released back to the pool and reused
+				EntityUtils.consumeQuietly(entity);
 				response.close();
 			}
 		} catch (IllegalStateException e) {
+			metrics.error(e);
 			LOG.error(e.getMessage());
 		} catch (FeedException e) {
+			metrics.error(e);
 			LOG.error(e.getMessage());
 		} catch (NoHttpResponseException e) {
+			metrics.error(e);
 			LOG.error(e.getMessage());
 		} catch (ClientProtocolException e) {
+			metrics.error(e);
 			LOG.error(e.getMessage());
 		} catch (IOException e) {
+			metrics.error(e);
 			LOG.error(e.getMessage());
-		} finally {
-			httpClient.close();
 		}
 		return feed;
 	}
 
 	/**
-	 * Insert new feed entries into DB.
+	 * Returns the headers for conditional GET with validators from the
+	 * previous poll.
+	 * 
+	 * @param feedDB
+	 * @return
+	 */
+	public static Map<String, String> getConditionalHeaders(DBObject feedDB) {
+		HashMap<String, String> headers = new HashMap<String, String>();
+		if (feedDB.get("etag") != null)
+			headers.put(HttpHeaders.IF_NONE_MATCH, (String) feedDB.get("etag"));
+		if (feedDB.get("lastModified") != null)
+			headers.put(HttpHeaders.IF_MODIFIED_SINCE,
+					(String) feedDB.get("lastModified"));
+		return headers;
+	}
+
+	/**
+	 * Save validators of the response for the next poll. Strings are saved
+	 * exactly as they were sent, as the server compares them byte by byte.
+	 * 
+	 * @param feedDB
+	 * @param etag
+	 * @param lastModified
+	 */
+	private static void saveValidators(DBObject feedDB, String etag,
+			String lastModified) {
+		if (etag != null)
+			feedDB.put("etag", etag);
+		else
+			feedDB.removeField("etag");
+		if (lastModified != null)
+			feedDB.put("lastModified", lastModified);
+		else
+			feedDB.removeField("lastModified");
+	}
+
+	/**
+	 * Returns the new entries of the feed, i.e. the entries not yet saved in
+	 * DB, without the whole content of the entry (HTML page).
+	 * 
+	 * The id is a SHA-1 digest of the uri, link, description or title. The
+	 * entries that are already saved are first looked up in the worker's
+	 * digest index. The rest are checked with one query on the unique index
+	 * (feedId, idHash) of the entries collection.
 	 * 
 	 * @param feed
-	 * @param idList
 	 * @return
-	 * @throws IOException
-	 * @throws NoSuchAlgorithmException
 	 */
 	@SuppressWarnings("unchecked")
-	private void getNewEntries(SyndFeed feed,
-			ArrayList<String> idList) throws IOException {
-		DBObject findQuery = new BasicDBObject("feedUrl", feedDB.get("feedUrl"));
+	private List<BasicDBObject> getNewEntries(SyndFeed feed) {
+		long start = System.nanoTime();
 		ArrayList<SyndEntry> entries = (ArrayList<SyndEntry>) feed.getEntries();
-		ArrayList<String> idListNew = new ArrayList<String>();
-		
-		// depending on size of entries for this feed use bulk insert or normal
-		// insert. We use bulk insert with feeds that have less then or equal
-		// 1000 entries.
-		boolean bulkInsert = true, newEntries = false;
-		if (entries.size() > 1000)
-			bulkInsert = false;
 
-		// current local entries for this feed use NORMALIZED data models using
-		// One-To-Many Relationships. Reason:
-		// http://blog.mongolab.com/2013/04/thinking-about-arrays-in-mongodb/
-		ArrayList<DBObject> entriesDBNew = new ArrayList<DBObject>();
+		// SHA-1 hash id of each entry of the feed that is not in the digest
+		// index and its digest in the index
+		LinkedHashMap<String, SyndEntry> entriesById = new LinkedHashMap<String, SyndEntry>();
 		for (SyndEntry entry : entries) {
-			/*
-			 * All elements of an item are optional, however at least one of
-			 * title or description must be present. But we CANNOT TRUST USER
-			 * about this. That is why we will check first for the guid, then
-			 * url and then for description and the title. This combination of
-			 * values will in turn be used to create a hash value using SHA-1.
-			 * The hash value will represent the ID of the entry. This ID will
-			 * help us determine entries that already exist. Because of possible
-			 * hash collisions we use SHA-1 instead of Java hashCode.
-			 */
-			String id = null;
-			if (entry.getUri() != null)
-				// first we check if uri (guid) is available. This is the best
-				// attribute as it ensures uniquely identified entry.
-				id = entry.getUri();
-			else if (entry.getLink() != null)
-				// link is also a good unique identity
-				id = entry.getLink();
-			else if (entry.getDescription() != null && entry.getTitle() != null)
-				// then we check if description and title are available
-				id = (entry.getDescription() + entry.getTitle());
-			else if (entry.getDescription() != null
-					&& entry.getDescription().getValue() != null)
-				// only description
-				id = entry.getDescription().getValue();
-			else if (entry.getTitle() != null)
-				// only title
-				id = entry.getTitle();
+			updateLatestEntryAt(entry);
 
 			// we absolutely need id
+			String id = getEntryId(entry);
 			if (id != null) {
 				// for computing SHA-1 digest and getting it as binary data we
 				// use Apache Commons DigestUtil
-				String idHash = DigestUtils.sha1Hex(id);
-
-				if (!idList.contains(idHash)) {
-					// TODO: Check for simmilarity between other id's of other
-					// entries using Levensthein distance.
-
-					// TODO: If similarity between id's is not found then also
-					// check for similarity between full page content using Jaccard
-					// distance.
-
-					// does not exist yet, save it to DB we cannot set it to _id
-					// (ObjectId) as it only supports 24hex or 96bits where the
-					// SHA-1 produces 160bits hash
-					BasicDBObject entryDBNew = new BasicDBObject("idHash",
-							idHash);
-					// save raw id for computing similarity
-					entryDBNew.append("idRaw", id);
-
-					if (entry.getTitle() != null)
-						entryDBNew.append("title", entry.getTitle());
-					if (entry.getLink() != null) {
-						entryDBNew.append("link", entry.getLink());
-
-						// if link exists we can fetch the whole entry (HTML
-						// page) using Apache HttpComponents library, module
-						// HttpClient
-						String webPage = fetchWebPage(entry);
-
-						// add to database
-						entryDBNew.append("fullContent", webPage);
-					}
-					if (entry.getDescription() != null)
-						entryDBNew.append("description", entry.getDescription()
-								.getValue());
-					if (entry.getAuthors() != null
-							&& entry.getAuthors().size() > 0) {
-						// call method for constructing the list of authors for
-						// DB
-						ArrayList<BasicDBObject> authors = getAuthors((ArrayList<SyndPerson>) entry
-								.getAuthors());
-						feedDB.put("authors", authors);
-						entryDBNew.put("authors", authors);
-					}
-					if (entry.getCategories() != null
-							&& entry.getCategories().size() > 0) {
-						ArrayList<BasicDBObject> categories = getCategories((ArrayList<SyndCategory>) entry
-								.getCategories());
-						entryDBNew.append("categories", categories);
-					}
-					// comments does not exist
-					if (entry.getEnclosures() != null
-							&& entry.getEnclosures().size() > 0) {
-						ArrayList<BasicDBObject> enclosures = new ArrayList<BasicDBObject>();
-						for (SyndEnclosure enclosure : (ArrayList<SyndEnclosure>) entry
-								.getEnclosures()) {
-							BasicDBObject enclosureDB = new BasicDBObject();
-
-							// all three attributes are required but we cannot
-							// trust the user
-							if (enclosure.getUrl() != null)
-								enclosureDB.append("url", enclosure.getUrl());
-							if (enclosure.getLength() != 0)
-								enclosureDB.append("length",
-										enclosure.getLength());
-							if (enclosure.getType() != null)
-								enclosureDB.append("type", enclosure.getType());
-							enclosures.add(enclosureDB);
-						}
-						entryDBNew.append("enclosure", enclosures);
-					}
-					if (entry.getUri() != null)
-						entryDBNew.append("guid", entry.getUri());
-					if (entry.getPublishedDate() != null)
-						entryDBNew.append("pubDate", entry.getPublishedDate());
-					// source does not exist in rome library
-					newEntries = true;
-					
-					// depending on type of insert
-					if (bulkInsert) {
-						// insert new entry into list
-						entriesDBNew.add(entryDBNew);
-	
-						// add id to old list and new list
-						idList.add(idHash);
-						idListNew.add(idHash);
-					} else {
-						// large feed or lots of entries. Do a normal insert for each entry.
-						// insert new entry
-						entriesColl.insert(entryDBNew);
-
-						// push new hash id into entries for current feed
-						DBObject newHash = new BasicDBObject("entries", idHash);
-						DBObject updateQuery = new BasicDBObject("$push", newHash);
-						rssColl.update(findQuery, updateQuery);
-					}
+				byte[] idDigest = DigestUtils.sha1(id);
+				byte[] digest = getDigest(idDigest);
+				if (digestIndex.contains(digest))
+					continue;
+
+				String idHash = Hex.encodeHexString(idDigest);
+				if (!entriesById.containsKey(idHash)) {
+					entriesById.put(idHash, entry);
+					digestsById.put(idHash, digest);
 				}
 			}
 		}
-		
-		if (bulkInsert && newEntries) {
-			// bulk insert new entries
-			entriesColl.insert(entriesDBNew);
-			
-			// push all new references to entries
-			DBObject idHashes = new BasicDBObject("$each", idListNew);
-			DBObject each = new BasicDBObject("entries", idHashes);
-			DBObject updateQuery = new BasicDBObject("$push", each);
-			rssColl.update(findQuery, updateQuery);
+		HashSet<String> idSet = getSavedEntries(entriesById.keySet());
+
+		// remember the saved entries that were not in the index yet
+		for (String idHash : idSet)
+			digestIndex.add(digestsById.get(idHash));
+
+		// current local entries for this feed use NORMALIZED data models using
+		// One-To-Many Relationships. Reason:
+		// http://blog.mongolab.com/2013/04/thinking-about-arrays-in-mongodb/
+		ArrayList<BasicDBObject> entriesDBNew = new ArrayList<BasicDBObject>();
+		for (Map.Entry<String, SyndEntry> entryById : entriesById.entrySet()) {
+			String idHash = entryById.getKey();
+			SyndEntry entry = entryById.getValue();
+
+			if (!idSet.contains(idHash)) {
+				// the entry with nearly the same id as a saved entry, i.e.
+				// with added tracking or other query parameters, is the saved
+				// entry. Only the entry with the same normalized id is added
+				// to the digest index, the others are checked on each poll
+				// while the saved entry is among the latest ids of the feed
+				String idRaw = getEntryId(entry);
+				String similarId = idIndex.findSimilar(feedDB.get("_id"),
+						idRaw);
+				if (similarId != null) {
+					LOG.info("Entry " + idRaw + " of feed "
+							+ feedDB.get("feedUrl") + " is saved as "
+							+ similarId);
+					if (similarId.equals(EntryIdIndex.normalizeId(idRaw)))
+						digestIndex.add(digestsById.get(idHash));
+					continue;
+				}
+				idIndex.add(feedDB.get("_id"), idRaw);
+
+				// the similarity of the full page content is checked when
+				// the page is fetched, see method markDuplicates
+
+				BasicDBObject entryDBNew = getEntryDB(feedDB.get("_id"),
+						idHash, idRaw, entry);
+				entriesDBNew.add(entryDBNew);
+			}
 		}
+		metrics.timeSince(WorkerMetrics.DEDUP, start);
+		return entriesDBNew;
 	}
 
 	/**
-	 * Fetch web page given the Synd entry and return it. For read we use Apache
-	 * HttpComponents library, module HttpClient.
+	 * Returns the new entry as it is saved in DB, without the whole content
+	 * of the entry (HTML page).
 	 * 
+	 * @param feedId
+	 * @param idHash
+	 * @param idRaw
 	 * @param entry
 	 * @return
-	 * @throws IOException
-	 */
-	private String fetchWebPage(SyndEntry entry) {
-		// set various timeout to 30s
-		RequestConfig requestConfig = RequestConfig.custom()
-				.setConnectTimeout(30 * 1000)
-				.setConnectionRequestTimeout(30 * 1000)
-				.setSocketTimeout(30 * 1000).build();
-		CloseableHttpClient httpClient = HttpClientBuilder.create()
-				.setDefaultRequestConfig(requestConfig).build();
-		String webPage = null;
-		try {
-			if (entry.getLink() != null) {
-				URI uri = new URI(entry.getLink());
-				HttpGet httpGet = new HttpGet(uri.toString());
-				httpGet.setConfig(requestConfig);
+	 */
+	@SuppressWarnings("unchecked")
+	public static BasicDBObject getEntryDB(Object feedId, String idHash,
+			String idRaw, SyndEntry entry) {
+		// does not exist yet, save it to DB we cannot set it to _id
+		// (ObjectId) as it only supports 24hex or 96bits where the
+		// SHA-1 produces 160bits hash
+		BasicDBObject entryDBNew = new BasicDBObject("feedId", feedId)
+				.append("idHash", idHash);
+		// save raw id for computing similarity
+		entryDBNew.append("idRaw", idRaw);
 
-				// add header for simulating browser request as some
-				// web servers block automatic querying
-				httpGet.addHeader(HttpHeaders.USER_AGENT, USER_AGENT);
-				CloseableHttpResponse response = httpClient.execute(httpGet);
+		if (entry.getTitle() != null)
+			entryDBNew.append("title", entry.getTitle());
+		// if link exists we can fetch the whole entry (HTML page)
+		if (entry.getLink() != null)
+			entryDBNew.append("link", entry.getLink());
+		if (entry.getDescription() != null)
+			entryDBNew.append("description", entry.getDescription()
+					.getValue());
+		if (entry.getAuthors() != null
+				&& entry.getAuthors().size() > 0) {
+			// call method for constructing the list of authors for
+			// DB
+			ArrayList<BasicDBObject> authors = getAuthors((ArrayList<SyndPerson>) entry
+					.getAuthors());
+			entryDBNew.put("authors", authors);
+		}
+		if (entry.getCategories() != null
+				&& entry.getCategories().size() > 0) {
+			ArrayList<BasicDBObject> categories = getCategories((ArrayList<SyndCategory>) entry
+					.getCategories());
+			entryDBNew.append("categories", categories);
+		}
+		// comments does not exist
+		if (entry.getEnclosures() != null
+				&& entry.getEnclosures().size() > 0) {
+			ArrayList<BasicDBObject> enclosures = new ArrayList<BasicDBObject>();
+			for (SyndEnclosure enclosure : (ArrayList<SyndEnclosure>) entry
+					.getEnclosures()) {
+				BasicDBObject enclosureDB = new BasicDBObject();
 
-				try {
-					// entity from response
-					HttpEntity entity = response.getEntity();
-					if (entity != null) {
-						BufferedReader in = new BufferedReader(
-								new InputStreamReader(entity.getContent()));
-						String inputLine;
-						StringBuffer strResponse = new StringBuffer();
-
-						// read response
-						while ((inputLine = in.readLine()) != null) {
-							strResponse.append(inputLine);
-						}
-						in.close();
-						webPage = strResponse.toString();
-					}
-				} finally {
-					response.close();
+				// all three attributes are required but we cannot
+				// trust the user
+				if (enclosure.getUrl() != null)
+					enclosureDB.append("url", enclosure.getUrl());
+				if (enclosure.getLength() != 0)
+					enclosureDB.append("length",
+							enclosure.getLength());
+				if (enclosure.getType() != null)
+					enclosureDB.append("type", enclosure.getType());
+				enclosures.add(enclosureDB);
+			}
+			entryDBNew.append("enclosure", enclosures);
+		}
+		if (entry.getUri() != null)
+			entryDBNew.append("guid", entry.getUri());
+		if (entry.getPublishedDate() != null)
+			entryDBNew.append("pubDate", entry.getPublishedDate());
+		// source does not exist in rome library
+		return entryDBNew;
+	}
+
+	/**
+	 * Returns false if the entry is already saved according to the digest
+	 * index. Used as the filter of the streaming parser.
+	 * 
+	 * @param entry
+	 * @return
+	 */
+	private boolean isCandidate(SyndEntry entry) {
+		updateLatestEntryAt(entry);
+		String id = getEntryId(entry);
+		return id == null
+				|| !digestIndex.contains(getDigest(DigestUtils.sha1(id)));
+	}
+
+	/**
+	 * Remember the publish date of the latest entry for scheduling of the next
+	 * poll.
+	 * 
+	 * @param entry
+	 */
+	private void updateLatestEntryAt(SyndEntry entry) {
+		if (entry.getPublishedDate() != null
+				&& (latestEntryAt == null || entry.getPublishedDate().after(
+						latestEntryAt)))
+			latestEntryAt = entry.getPublishedDate();
+	}
+
+	/**
+	 * Returns the digest of the entry in the digest index.
+	 * 
+	 * @param idDigest
+	 * @return
+	 */
+	private byte[] getDigest(byte[] idDigest) {
+		if (feedDigest == null)
+			feedDigest = DigestUtils.sha1(feedDB.get("_id").toString());
+		return EntryDigestIndex.entryDigest(idDigest, feedDigest);
+	}
+
+	/**
+	 * Starts fetching the web pages of the entries. Returns the page of each
+	 * entry or null if entry has no link.
+	 * 
+	 * @param entriesDB
+	 * @return
+	 */
+	private List<CompletableFuture<String>> fetchWebPages(
+			List<BasicDBObject> entriesDB) {
+		ArrayList<CompletableFuture<String>> webPages = new ArrayList<CompletableFuture<String>>();
+		for (BasicDBObject entryDB : entriesDB) {
+			String link = (String) entryDB.get("link");
+			webPages.add(link != null ? fetchWebPage(link) : null);
+		}
+		return webPages;
+	}
+
+	/**
+	 * Starts fetching the web page and records the time until it is fetched.
+	 * 
+	 * @param link
+	 * @return
+	 */
+	private CompletableFuture<String> fetchWebPage(String link) {
+		final long start = System.nanoTime();
+		return pageFetcher.fetch(link).whenComplete((webPage, e) -> {
+			metrics.timeSince(WorkerMetrics.WEB_PAGE, start);
+			if (e != null)
+				metrics.error(e);
+		});
+	}
+
+	/**
+	 * Returns future that completes when all the web pages are fetched.
+	 * 
+	 * @param webPages
+	 * @return
+	 */
+	private static CompletableFuture<Void> allOf(
+			List<CompletableFuture<String>> webPages) {
+		ArrayList<CompletableFuture<String>> fetching = new ArrayList<CompletableFuture<String>>();
+		for (CompletableFuture<String> webPage : webPages)
+			if (webPage != null)
+				fetching.add(webPage);
+		return CompletableFuture.allOf(fetching
+				.toArray(new CompletableFuture<?>[fetching.size()]));
+	}
+
+	/**
+	 * Save new entries with their web pages in batches. The entries whose web
+	 * page is not fetched yet or could not be fetched are saved with field
+	 * fullContentPending and the page is saved when it is fetched.
+	 * 
+	 * @param entriesDBNew
+	 * @param webPages
+	 */
+	private void saveNewEntries(List<BasicDBObject> entriesDBNew,
+			List<CompletableFuture<String>> webPages) {
+		for (int i = 0; i < entriesDBNew.size(); i++) {
+			BasicDBObject entryDBNew = entriesDBNew.get(i);
+			CompletableFuture<String> webPage = webPages.get(i);
+			if (webPage != null && webPage.isDone() && webPage.join() != null) {
+				// the page of the canonical entry is not saved again
+				if (markDuplicates(entryDBNew,
+						(String) entryDBNew.get("idHash"),
+						(String) entryDBNew.get("link"), webPage.join()))
+					entryContent.put(entryDBNew, webPage.join());
+			} else if (webPage != null)
+				entryDBNew.append("fullContentPending", true)
+						.append("pendingSince", new Date())
+						.append("pageAttempts", 1);
+			insertNewEntry(entryDBNew);
+		}
+
+		// the entries are queued before their pages, now the late pages can
+		// be added
+		for (int i = 0; i < entriesDBNew.size(); i++) {
+			final String idHash = (String) entriesDBNew.get(i).get("idHash");
+			final String link = (String) entriesDBNew.get(i).get("link");
+			if (entriesDBNew.get(i).get("fullContentPending") != null)
+				webPages.get(i).thenAccept(
+						webPage -> saveWebPage(idHash, link, webPage));
+		}
+	}
+
+	/**
+	 * Fetch the web pages of the entries of this feed that were saved without
+	 * them, e.g. because the worker stopped before the pages were fetched.
+	 * The entry is claimed with the time of the fetch in the field
+	 * pendingSince, so the entries whose page is still being fetched are
+	 * skipped until PENDING_TIMEOUT passes. After MAX_PAGE_ATTEMPTS fetches
+	 * the entry is not pending anymore and stays without the page.
+	 */
+	private void fetchPendingWebPages() {
+		Date now = new Date();
+		List<BasicDBObject> notFetching = Arrays.asList(new BasicDBObject(
+				"pendingSince", new BasicDBObject("$exists", false)),
+				new BasicDBObject("pendingSince", new BasicDBObject("$lt",
+						new Date(now.getTime() - PENDING_TIMEOUT))));
+		DBCursor cursor = entriesColl.find(
+				new BasicDBObject("feedId", feedDB.get("_id")).append(
+						"fullContentPending", true).append("$or", notFetching),
+				new BasicDBObject("idHash", 1).append("link", 1).append(
+						"pageAttempts", 1));
+		try {
+			while (cursor.hasNext()) {
+				DBObject entryDB = cursor.next();
+				final String idHash = (String) entryDB.get("idHash");
+				BasicDBObject query = new BasicDBObject("_id",
+						entryDB.get("_id")).append("fullContentPending", true)
+						.append("$or", notFetching);
+				Number attempts = (Number) entryDB.get("pageAttempts");
+				if (attempts != null && attempts.intValue() >= MAX_PAGE_ATTEMPTS) {
+					LOG.info("Giving up web page of entry " + idHash
+							+ " of feed " + feedDB.get("feedUrl"));
+					entriesColl.update(query, new BasicDBObject("$unset",
+							new BasicDBObject("fullContentPending", "").append(
+									"pendingSince", "").append("pageAttempts",
+									"")));
+					continue;
 				}
+
+				// claim the entry, so the other polls of the feed skip it
+				if (entriesColl.findAndModify(query, new BasicDBObject("$set",
+						new BasicDBObject("pendingSince", now)).append("$inc",
+						new BasicDBObject("pageAttempts", 1))) == null)
+					continue;
+				final String link = (String) entryDB.get("link");
+				fetchWebPage(link).thenAccept(
+						webPage -> saveWebPage(idHash, link, webPage));
 			}
-		} catch (URISyntaxException e) {
-			LOG.error(e.getMessage());
-		} catch (IllegalArgumentException e) {
-			LOG.error(e.getMessage());
-		} catch (NoHttpResponseException e) {
-			e.printStackTrace();
-		} catch (ClientProtocolException e) {
-			LOG.error(e.getMessage());
-		} catch (IOException e) {
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Save the web page of the entry that was saved without it. The entry
+	 * stays pending if the page could not be fetched and the page is fetched
+	 * again on a poll of the feed after PENDING_TIMEOUT.
+	 * 
+	 * @param idHash
+	 * @param link
+	 * @param webPage
+	 */
+	private void saveWebPage(String idHash, String link, String webPage) {
+		if (webPage == null)
+			return;
+		BasicDBObject fullContent = new BasicDBObject();
+		if (markDuplicates(fullContent, idHash, link, webPage))
+			entryContent.put(fullContent, webPage);
+		writer.update(entriesColl,
+				new BasicDBObject("feedId", feedDB.get("_id")).append(
+						"idHash", idHash),
+				new BasicDBObject("$set", fullContent).append("$unset",
+						new BasicDBObject("fullContentPending", "").append(
+								"pendingSince", "").append("pageAttempts", "")));
+	}
+
+	/**
+	 * Marks the entry as near duplicate of an entry of this feed or links it
+	 * to the canonical entry of another feed with the same page. Returns false
+	 * if the entry is linked to the canonical entry and its page does not
+	 * need to be saved.
+	 * 
+	 * @param entryDB
+	 * @param idHash
+	 * @param link
+	 * @param webPage
+	 * @return
+	 */
+	private boolean markDuplicates(DBObject entryDB, String idHash,
+			String link, String webPage) {
+		if (webPage == null)
+			return true;
+		long start = System.nanoTime();
+		try {
+			long[] shingles = PageText.extract(webPage).getShingles();
+			markNearDuplicate(entryDB, idHash, shingles);
+			return !linkCanonical(entryDB, idHash, link, shingles);
+		} finally {
+			metrics.timeSince(WorkerMetrics.PAGE_DEDUP, start);
+		}
+	}
+
+	/**
+	 * Put the MinHash signature and the LSH buckets of the web page into the
+	 * entry. If an entry of this feed has a page with nearly the same text,
+	 * the entry is marked as its duplicate with the hash id of the original
+	 * entry in the field duplicateOf. Only the entries with a common bucket
+	 * are compared, so the check does not depend on the number of entries of
+	 * the feed.
+	 * 
+	 * @param entryDB
+	 * @param idHash
+	 * @param shingles
+	 */
+	private synchronized void markNearDuplicate(DBObject entryDB,
+			String idHash, long[] shingles) {
+		int[] signature = MIN_HASH.signature(shingles);
+		if (signature == null)
+			return;
+		List<Long> buckets = MIN_HASH.buckets(signature);
+		entryDB.put("minHash", MinHash.toBytes(signature));
+		entryDB.put("lshBuckets", buckets);
+
+		String duplicateOf = findNearDuplicate(signature, buckets);
+		if (duplicateOf != null) {
+			entryDB.put("duplicateOf", duplicateOf);
+			LOG.info("Entry " + idHash + " of feed " + feedDB.get("feedUrl")
+					+ " is duplicate of " + duplicateOf);
+			return;
+		}
+
+		// the later pages of this poll are compared with the originals
+		signaturesById.put(idHash, signature);
+		for (Long bucket : buckets)
+			if (!idsByBucket.containsKey(bucket))
+				idsByBucket.put(bucket, idHash);
+	}
+
+	/**
+	 * Put the SimHash fingerprint of the web page and its blocks into the
+	 * entry. If an entry of another feed has a page with the fingerprint
+	 * within the Hamming distance SimHash.MAX_DISTANCE, e.g. the same wire
+	 * story, the entry is linked to it with its _id in the field canonicalId
+	 * and returns true. Readers get the page of the linked entry with method
+	 * EntryContent.getFullContent(entryDB, entriesColl, pageStore). Only the
+	 * entries whose page the readers can read, see method
+	 * EntryContent.isReadable, are linked, otherwise the entry keeps its page. The fingerprint is of
+	 * the whole text of the page, so the pages of different articles of the
+	 * same site share the navigation and the footer. The entries of the same
+	 * site as the entry or its feed are therefore never linked.
+	 * 
+	 * @param entryDB
+	 * @param idHash
+	 * @param link
+	 * @param shingles
+	 * @return
+	 */
+	private boolean linkCanonical(DBObject entryDB, String idHash,
+			String link, long[] shingles) {
+		// short pages, e.g. error pages or teasers, are alike on many sites
+		if (shingles.length < MIN_CANONICAL_SHINGLES)
+			return false;
+		long simHash = SimHash.fingerprint(shingles);
+		List<Integer> blocks = SimHash.blocks(simHash);
+		entryDB.put("simHash", simHash);
+		entryDB.put("simHashBlocks", blocks);
+
+		DBCursor cursor = entriesColl.find(
+				new BasicDBObject("simHashBlocks", new BasicDBObject("$in",
+						blocks)).append("feedId", new BasicDBObject("$ne",
+						feedDB.get("_id"))).append("canonicalId",
+						new BasicDBObject("$exists", false)),
+				new BasicDBObject("simHash", 1).append("pageHash", 1).append(
+						"pageStore", 1).append("link", 1)).limit(
+				MAX_CANONICAL_CANDIDATES);
+		String site = HostScheduler.getSite(link);
+		String feedSite = HostScheduler.getSite((String) feedDB.get("feedUrl"));
+		try {
+			while (cursor.hasNext()) {
+				DBObject candidate = cursor.next();
+				Number candidateHash = (Number) candidate.get("simHash");
+				if (candidateHash == null
+						|| SimHash.distance(simHash, candidateHash.longValue()) > SimHash.MAX_DISTANCE
+						|| !entryContent.isReadable(candidate))
+					continue;
+				String candidateSite = HostScheduler
+						.getSite((String) candidate.get("link"));
+				if (candidateSite.equals(site) || candidateSite.equals(feedSite))
+					continue;
+				entryDB.put("canonicalId", candidate.get("_id"));
+				LOG.info("Entry " + idHash + " of feed "
+						+ feedDB.get("feedUrl") + " is linked to "
+						+ entryDB.get("canonicalId"));
+				return true;
+			}
+		} catch (MongoException e) {
 			LOG.error(e.getMessage());
 		} finally {
-			try {
-				httpClient.close();
-			} catch (IOException e) {
-				LOG.error(e.getMessage());
+			cursor.close();
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the hash id of the original entry of this feed whose page is
+	 * nearly the same as the page with the given signature or null if there
+	 * is none.
+	 * 
+	 * @param signature
+	 * @param buckets
+	 * @return
+	 */
+	private String findNearDuplicate(int[] signature, List<Long> buckets) {
+		// the pages of this poll first
+		for (Long bucket : buckets) {
+			String idHash = idsByBucket.get(bucket);
+			if (idHash != null
+					&& MinHash.similarity(signature,
+							signaturesById.get(idHash)) >= NEAR_DUPLICATE)
+				return idHash;
+		}
+
+		DBCursor cursor = entriesColl.find(
+				new BasicDBObject("feedId", feedDB.get("_id")).append(
+						"lshBuckets", new BasicDBObject("$in", buckets)),
+				new BasicDBObject("idHash", 1).append("minHash", 1)
+						.append("duplicateOf", 1).append("_id", 0)).limit(
+				MAX_CANDIDATES);
+		try {
+			while (cursor.hasNext()) {
+				DBObject candidate = cursor.next();
+				if (MinHash.similarity(signature,
+						MinHash.fromBytes((byte[]) candidate.get("minHash"))) < NEAR_DUPLICATE)
+					continue;
+				// the duplicates point to the original entry
+				Object original = candidate.get("duplicateOf");
+				return (String) (original != null ? original : candidate
+						.get("idHash"));
 			}
+		} catch (MongoException e) {
+			LOG.error(e.getMessage());
+		} finally {
+			cursor.close();
 		}
+		return null;
+	}
+
+	/**
+	 * Insert new entry into DB and add its digest to the digest index when it
+	 * is in DB. The insert ignores the duplicates, so entries inserted
+	 * concurrently by another thread are not saved twice. The entry rejected
+	 * by DB is not added, so it is read again on the next fetch.
+	 * 
+	 * @param entryDBNew
+	 */
+	private void insertNewEntry(BasicDBObject entryDBNew) {
+		final byte[] digest = digestsById.get(entryDBNew.get("idHash"));
+		writer.insert(entriesColl, entryDBNew).whenComplete((v, e) -> {
+			if (e == null)
+				digestIndex.add(digest);
+		});
+		newEntriesNum++;
+		metrics.increment(WorkerMetrics.NEW_ENTRIES, 1);
+	}
+
+	/**
+	 * Returns the id of the entry or null if entry has none of the attributes
+	 * from which id is created.
+	 * 
+	 * @param entry
+	 * @return
+	 */
+	public static String getEntryId(SyndEntry entry) {
+		/*
+		 * All elements of an item are optional, however at least one of
+		 * title or description must be present. But we CANNOT TRUST USER
+		 * about this. That is why we will check first for the guid, then
+		 * url and then for description and the title. This combination of
+		 * values will in turn be used to create a hash value using SHA-1.
+		 * The hash value will represent the ID of the entry. This ID will
+		 * help us determine entries that already exist. Because of possible
+		 * hash collisions we use SHA-1 instead of Java hashCode.
+		 */
+		String id = null;
+		if (entry.getUri() != null)
+			// first we check if uri (guid) is available. This is the best
+			// attribute as it ensures uniquely identified entry.
+			id = entry.getUri();
+		else if (entry.getLink() != null)
+			// link is also a good unique identity
+			id = entry.getLink();
+		else if (entry.getDescription() != null && entry.getTitle() != null)
+			// then we check if description and title are available
+			id = (entry.getDescription() + entry.getTitle());
+		else if (entry.getDescription() != null
+				&& entry.getDescription().getValue() != null)
+			// only description
+			id = entry.getDescription().getValue();
+		else if (entry.getTitle() != null)
+			// only title
+			id = entry.getTitle();
+		return id;
+	}
 
-		return webPage;
+	/**
+	 * Returns the hash ids of the given entries which are already saved for
+	 * this feed.
+	 * 
+	 * @param idHashes
+	 * @return
+	 */
+	private HashSet<String> getSavedEntries(Collection<String> idHashes) {
+		HashSet<String> idSet = new HashSet<String>();
+		if (idHashes.isEmpty())
+			return idSet;
+
+		DBObject query = new BasicDBObject("feedId", feedDB.get("_id")).append(
+				"idHash", new BasicDBObject("$in", new ArrayList<String>(
+						idHashes)));
+		DBCursor cursor = entriesColl.find(query, new BasicDBObject("idHash",
+				1).append("_id", 0));
+		try {
+			while (cursor.hasNext())
+				idSet.add((String) cursor.next().get("idHash"));
+		} finally {
+			cursor.close();
+		}
+		return idSet;
 	}
 
 	/**
@@ -503,6 +1223,9 @@ public class RSSThreadWorker implements Runnable {
 	 */
 	@SuppressWarnings("unchecked")
 	private void feedUpdate(DBObject feedDB, SyndFeed feed) {
+		long start = System.nanoTime();
+		feedDB = loadFeed(feedDB);
+
 		// this field is for RSS Delegate worker to check for stalled threads or
 		// threads that crashed and were not able to update used filed back to 0
 		feedDB.put("accessedAt", new Date());
@@ -541,7 +1264,10 @@ public class RSSThreadWorker implements Runnable {
 		// generator does not exist in rome library
 		// docs does not exist in rome library
 		// cloud does not exist in rome library
-		// ttl does not exist in rome library
+		// ttl only exists in the original RSS channel
+		if (feed.originalWireFeed() instanceof Channel
+				&& ((Channel) feed.originalWireFeed()).getTtl() > 0)
+			feedDB.put("ttl", ((Channel) feed.originalWireFeed()).getTtl());
 		SyndImage feedImage = feed.getImage();
 		if (feedImage != null) {
 			BasicDBObject imageDB = new BasicDBObject();
@@ -565,8 +1291,36 @@ public class RSSThreadWorker implements Runnable {
 		// skip hours does not exist in rome library
 		// skip days does not exist in rome library
 
-		rssColl.update(new BasicDBObject("feedUrl", feedDB.get("feedUrl")),
-				feedDB);
+		// only the fields changed by this poll are saved
+		BasicDBObject update = DocumentDiff.diff(savedFeedDB, feedDB);
+		if (!update.isEmpty())
+			writer.update(rssColl, new BasicDBObject("_id", feedDB.get("_id")),
+					update);
+		metrics.timeSince(WorkerMetrics.FEED_UPDATE, start);
+	}
+
+	/**
+	 * Returns the feed as saved in DB with the validators of this poll. The
+	 * job of the poll only carries the id, the URL and the validators of the
+	 * feed, the rest is loaded when the feed is updated. Returns the given
+	 * feed if it is not in DB. The loaded feed is kept to save only the
+	 * changed fields.
+	 * 
+	 * @param feedDB
+	 * @return
+	 */
+	private DBObject loadFeed(DBObject feedDB) {
+		DBObject savedDB = rssColl.findOne(new BasicDBObject("_id", feedDB
+				.get("_id")));
+		if (savedDB == null) {
+			savedFeedDB = DocumentDiff.snapshot(feedDB);
+			return feedDB;
+		}
+		savedFeedDB = DocumentDiff.snapshot(savedDB);
+		saveValidators(savedDB, (String) feedDB.get("etag"),
+				(String) feedDB.get("lastModified"));
+		this.feedDB = savedDB;
+		return savedDB;
 	}
 
 	/**
@@ -575,7 +1329,7 @@ public class RSSThreadWorker implements Runnable {
 	 * @param categories
 	 * @return
 	 */
-	private ArrayList<BasicDBObject> getCategories(
+	private static ArrayList<BasicDBObject> getCategories(
 			ArrayList<SyndCategory> categories) {
 		ArrayList<BasicDBObject> categoriesDB = new ArrayList<BasicDBObject>();
 		for (SyndCategory category : categories) {
@@ -0,0 +1,86 @@
+package com.jernejerin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents 64-bit SimHash fingerprints of the shingles of the web
+ * pages. The fingerprints of the pages with nearly the same text differ in a
+ * few bits only. The fingerprint is divided into 4 blocks of 16 bits, so two
+ * fingerprints that differ in at most 3 bits have at least one equal block.
+ * The blocks are saved with the block number as keys of the fingerprint and
+ * the fingerprints within the Hamming distance are found by looking up the
+ * keys instead of comparing the fingerprint with all the others.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class SimHash {
+
+	/** Maximum Hamming distance of the fingerprints of the same page. */
+	public static final int MAX_DISTANCE = 3;
+
+	/** Number of blocks, one more than the maximum distance. */
+	private static final int BLOCKS = MAX_DISTANCE + 1;
+
+	private SimHash() {
+	}
+
+	/**
+	 * Returns the fingerprint of the shingles.
+	 *
+	 * @param shingles
+	 * @return
+	 */
+	public static long fingerprint(long[] shingles) {
+		int[] weights = new int[64];
+		for (long shingle : shingles) {
+			long hash = mix(shingle);
+			for (int bit = 0; bit < 64; bit++)
+				weights[bit] += (hash >>> bit & 1) != 0 ? 1 : -1;
+		}
+		long fingerprint = 0;
+		for (int bit = 0; bit < 64; bit++)
+			if (weights[bit] > 0)
+				fingerprint |= 1L << bit;
+		return fingerprint;
+	}
+
+	/**
+	 * Returns the keys of the blocks of the fingerprint, i.e. the block number
+	 * followed by the 16 bits of the block.
+	 *
+	 * @param fingerprint
+	 * @return
+	 */
+	public static List<Integer> blocks(long fingerprint) {
+		ArrayList<Integer> blocks = new ArrayList<Integer>(BLOCKS);
+		for (int block = 0; block < BLOCKS; block++)
+			blocks.add(block << 16 | (int) (fingerprint >>> block * 16 & 0xffff));
+		return blocks;
+	}
+
+	/**
+	 * Returns the number of different bits of the fingerprints.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static int distance(long a, long b) {
+		return Long.bitCount(a ^ b);
+	}
+
+	/**
+	 * Spreads the bits of the shingle hash evenly over the 64 bits.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	private static long mix(long hash) {
+		hash = (hash ^ hash >>> 30) * 0xbf58476d1ce4e5b9L;
+		hash = (hash ^ hash >>> 27) * 0x94d049bb133111ebL;
+		return hash ^ hash >>> 31;
+	}
+}
@@ -0,0 +1,134 @@
+package com.jernejerin;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * This class represents sweeper of stalled feeds, i.e. the feeds that were
+ * queued more than checkInterval seconds ago and were never reported as
+ * polled (crashed VM-RSSMainWorker or thread-RSSThreadWorker). Each sweep
+ * reads all the stalled feeds with one sorted cursor and puts them back to
+ * the scheduler in batches. Then it sleeps until the earliest queued feed
+ * could become stalled.
+ * 
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class StaleFeedSweeper implements Runnable {
+
+	/** Number of stalled feeds that are put back to scheduler at once. */
+	public static final int BATCH_SIZE = 500;
+
+	/** Minimal time in ms between two sweeps. */
+	public static final long MIN_SLEEP = 1000;
+
+	// logger for this class
+	private static final Logger LOG = Logger.getLogger(StaleFeedSweeper.class);
+
+	private DBCollection rssColl;
+	private FeedScheduler scheduler;
+	private int checkInterval;
+
+	public StaleFeedSweeper(DBCollection rssColl, FeedScheduler scheduler,
+			int checkInterval) {
+		this.rssColl = rssColl;
+		this.scheduler = scheduler;
+		this.checkInterval = checkInterval;
+	}
+
+	/**
+	 * Sweep indefinitely.
+	 */
+	public void run() {
+		try {
+			while (true) {
+				long sleep = checkInterval * 1000L;
+				try {
+					sleep = sweep();
+				} catch (MongoException e) {
+					LOG.error("General Mongo problem: " + e.getMessage());
+				}
+				Thread.sleep(Math.max(MIN_SLEEP, sleep));
+			}
+		} catch (InterruptedException e) {
+			LOG.info("Stale feed sweeper interrupted.");
+		}
+	}
+
+	/**
+	 * Put all stalled feeds back to the scheduler and return the time in ms
+	 * until the next feed could become stalled.
+	 * 
+	 * @return
+	 */
+	public long sweep() {
+		long now = System.currentTimeMillis();
+		BasicDBObject query = new BasicDBObject("queuedAt", new BasicDBObject(
+				"$lt", new Date(now - checkInterval * 1000L)));
+		DBCursor cursor = rssColl
+				.find(query, new BasicDBObject("_id", 1))
+				.sort(new BasicDBObject("queuedAt", 1)).batchSize(BATCH_SIZE);
+
+		int stalled = 0;
+		List<Object> batch = new ArrayList<Object>();
+		try {
+			while (cursor.hasNext()) {
+				batch.add(cursor.next().get("_id"));
+				if (batch.size() == BATCH_SIZE) {
+					stalled += requeue(batch, now);
+					batch.clear();
+				}
+			}
+			if (batch.size() > 0)
+				stalled += requeue(batch, now);
+		} finally {
+			cursor.close();
+		}
+		if (stalled > 0)
+			LOG.info(stalled + " feeds have not been polled in last "
+					+ checkInterval + "s.");
+
+		// the earliest queued feed is the next one that can stall
+		cursor = rssColl
+				.find(new BasicDBObject("queuedAt", new BasicDBObject(
+						"$exists", true)), new BasicDBObject("queuedAt", 1))
+				.sort(new BasicDBObject("queuedAt", 1)).limit(1);
+		try {
+			if (cursor.hasNext()) {
+				DBObject feed = cursor.next();
+				return ((Date) feed.get("queuedAt")).getTime() + checkInterval
+						* 1000L - System.currentTimeMillis();
+			}
+		} finally {
+			cursor.close();
+		}
+		return checkInterval * 1000L;
+	}
+
+	/**
+	 * Mark the batch of feeds as queued again, so next sweep does not pick
+	 * them up before they are sent, and schedule them immediately.
+	 * 
+	 * @param batch
+	 * @param now
+	 * @return
+	 */
+	private int requeue(List<Object> batch, long now) {
+		rssColl.update(new BasicDBObject("_id", new BasicDBObject("$in",
+				batch)), new BasicDBObject("$set", new BasicDBObject(
+				"queuedAt", new Date(now))), false, true);
+		for (Object feedId : batch)
+			scheduler.schedule(feedId, now);
+		return batch.size();
+	}
+}
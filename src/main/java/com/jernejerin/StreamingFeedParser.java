@@ -0,0 +1,726 @@
+package com.jernejerin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.sun.syndication.feed.WireFeed;
+import com.sun.syndication.feed.atom.Content;
+import com.sun.syndication.feed.atom.Entry;
+import com.sun.syndication.feed.atom.Feed;
+import com.sun.syndication.feed.atom.Link;
+import com.sun.syndication.feed.atom.Person;
+import com.sun.syndication.feed.module.DCModule;
+import com.sun.syndication.feed.module.DCModuleImpl;
+import com.sun.syndication.feed.module.DCSubjectImpl;
+import com.sun.syndication.feed.module.Module;
+import com.sun.syndication.feed.rss.Category;
+import com.sun.syndication.feed.rss.Channel;
+import com.sun.syndication.feed.rss.Description;
+import com.sun.syndication.feed.rss.Enclosure;
+import com.sun.syndication.feed.rss.Guid;
+import com.sun.syndication.feed.rss.Image;
+import com.sun.syndication.feed.rss.Item;
+import com.sun.syndication.feed.synd.SyndEntry;
+import com.sun.syndication.feed.synd.SyndFeed;
+import com.sun.syndication.feed.synd.SyndFeedImpl;
+import com.sun.syndication.io.FeedException;
+import com.sun.syndication.io.ParsingFeedException;
+import com.sun.syndication.io.SyndFeedInput;
+import com.sun.syndication.io.impl.DateParser;
+import com.sun.syndication.io.impl.XmlFixerReader;
+
+/**
+ * This class represents streaming parser for RSS 2.0 and Atom 1.0 feeds. The
+ * feed is read with StAX one entry at a time instead of building the whole
+ * JDOM document first, as Rome library does. Each entry is converted to
+ * SyndEntry with Rome library and passed to the entry filter. Only the entries
+ * that the filter accepts are kept in the returned feed. When the entries are
+ * ordered from the newest to the oldest, the parsing stops after a run of
+ * entries that the filter rejected, i.e. that are already saved.
+ *
+ * Other formats (RSS 0.9x, RSS 1.0, Atom 0.3) are parsed with Rome library.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class StreamingFeedParser {
+
+	/**
+	 * Number of consecutive rejected entries after which the parsing stops.
+	 */
+	public static final int KNOWN_RUN = 5;
+
+	/** Number of characters read ahead for finding the root element. */
+	private static final int SNIFF_LENGTH = 8192;
+
+	private static final String ATOM_NS = "http://www.w3.org/2005/Atom";
+	private static final String DC_NS = "http://purl.org/dc/elements/1.1/";
+	private static final String CONTENT_NS = "http://purl.org/rss/1.0/modules/content/";
+	private static final String XML_NS = "http://www.w3.org/XML/1998/namespace";
+
+	private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+	static {
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				false);
+		FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+
+	/**
+	 * Filter of the entries of the feed.
+	 */
+	public interface EntryFilter {
+
+		/**
+		 * Returns true if entry should be kept in the feed, i.e. it may be a
+		 * new entry.
+		 *
+		 * @param entry
+		 * @return
+		 */
+		boolean accept(SyndEntry entry);
+	}
+
+	private final XMLStreamReader xml;
+	private final EntryFilter filter;
+	private final ArrayList<SyndEntry> entries = new ArrayList<SyndEntry>();
+	private int knownRun = 0;
+	private Date lastDate = null;
+	private boolean ordered = true;
+	private boolean stopped = false;
+
+	private StreamingFeedParser(XMLStreamReader xml, EntryFilter filter) {
+		this.xml = xml;
+		this.filter = filter;
+	}
+
+	/**
+	 * Parse the feed from the reader. Returns the feed with the entries that
+	 * the filter accepted or with all the entries if the filter is null.
+	 *
+	 * @param reader
+	 * @param input
+	 *            input of Rome library for other formats
+	 * @param filter
+	 * @return
+	 * @throws IOException
+	 * @throws FeedException
+	 */
+	public static SyndFeed parse(Reader reader, SyndFeedInput input,
+			EntryFilter filter) throws IOException, FeedException {
+		BufferedReader in = new BufferedReader(reader, SNIFF_LENGTH);
+		in.mark(SNIFF_LENGTH);
+		char[] prefix = new char[SNIFF_LENGTH];
+		int length = 0;
+		for (int n; length < prefix.length
+				&& (n = in.read(prefix, length, prefix.length - length)) != -1;)
+			length += n;
+		in.reset();
+
+		String root = getRoot(new String(prefix, 0, length));
+		if (root == null)
+			return input.build(in);
+
+		try {
+			XMLStreamReader xml = FACTORY
+					.createXMLStreamReader(input.getXmlHealerOn() ? new XmlFixerReader(
+							in) : in);
+			try {
+				StreamingFeedParser parser = new StreamingFeedParser(xml,
+						filter);
+				while (xml.next() != XMLStreamConstants.START_ELEMENT)
+					;
+				return "rss".equals(root) ? parser.parseRss() : parser
+						.parseAtom();
+			} finally {
+				xml.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new ParsingFeedException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns "rss" for RSS 2.0 feed, "feed" for Atom 1.0 feed or null for
+	 * other formats.
+	 *
+	 * @param prefix
+	 * @return
+	 */
+	private static String getRoot(String prefix) {
+		try {
+			XMLStreamReader xml = FACTORY
+					.createXMLStreamReader(new StringReader(prefix));
+			while (xml.next() != XMLStreamConstants.START_ELEMENT)
+				;
+			String version = xml.getAttributeValue(null, "version");
+			if ("rss".equals(xml.getLocalName()) && version != null
+					&& version.trim().startsWith("2.0"))
+				return "rss";
+			if ("feed".equals(xml.getLocalName())
+					&& ATOM_NS.equals(xml.getNamespaceURI()))
+				return "feed";
+		} catch (XMLStreamException e) {
+			// not XML or the root element is not in the prefix
+		}
+		return null;
+	}
+
+	/**
+	 * Parse RSS 2.0 feed. The reader is at the rss element.
+	 *
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	@SuppressWarnings("unchecked")
+	private SyndFeed parseRss() throws XMLStreamException {
+		Channel channel = new Channel("rss_2.0");
+		int depth = 1;
+		while (!stopped && depth > 0) {
+			int event = xml.next();
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+				continue;
+			}
+			if (event != XMLStreamConstants.START_ELEMENT)
+				continue;
+
+			String name = xml.getLocalName();
+			if (depth == 1 && "channel".equals(name)) {
+				depth++;
+				continue;
+			}
+			if (depth != 2 || !isRss()) {
+				skip();
+				continue;
+			}
+
+			if ("item".equals(name))
+				addEntry(channel, parseItem());
+			else if ("title".equals(name))
+				channel.setTitle(readText());
+			else if ("link".equals(name))
+				channel.setLink(readText());
+			else if ("description".equals(name))
+				channel.setDescription(readText());
+			else if ("language".equals(name))
+				channel.setLanguage(readText());
+			else if ("copyright".equals(name))
+				channel.setCopyright(readText());
+			else if ("pubDate".equals(name))
+				channel.setPubDate(DateParser.parseDate(readText()));
+			else if ("lastBuildDate".equals(name))
+				channel.setLastBuildDate(DateParser.parseDate(readText()));
+			else if ("managingEditor".equals(name))
+				channel.setManagingEditor(readText());
+			else if ("webMaster".equals(name))
+				channel.setWebMaster(readText());
+			else if ("generator".equals(name))
+				channel.setGenerator(readText());
+			else if ("docs".equals(name))
+				channel.setDocs(readText());
+			else if ("category".equals(name))
+				channel.getCategories().add(parseCategory());
+			else if ("ttl".equals(name)) {
+				try {
+					channel.setTtl(Integer.parseInt(readText().trim()));
+				} catch (NumberFormatException e) {
+					// invalid ttl is ignored
+				}
+			} else if ("image".equals(name))
+				channel.setImage(parseImage());
+			else
+				skip();
+		}
+
+		SyndFeed feed = new SyndFeedImpl(channel, true);
+		feed.setEntries(entries);
+		return feed;
+	}
+
+	/**
+	 * Parse item of RSS 2.0 feed.
+	 *
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	@SuppressWarnings("unchecked")
+	private Item parseItem() throws XMLStreamException {
+		Item item = new Item();
+		DCModule dc = null;
+		while (nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String name = xml.getLocalName();
+			String ns = xml.getNamespaceURI();
+			if (DC_NS.equals(ns)) {
+				if (dc == null)
+					dc = new DCModuleImpl();
+				if ("creator".equals(name))
+					dc.getCreators().add(readText());
+				else if ("date".equals(name))
+					dc.getDates().add(DateParser.parseDate(readText()));
+				else if ("subject".equals(name)) {
+					DCSubjectImpl subject = new DCSubjectImpl();
+					subject.setValue(readText());
+					dc.getSubjects().add(subject);
+				} else
+					skip();
+			} else if (CONTENT_NS.equals(ns) && "encoded".equals(name)) {
+				com.sun.syndication.feed.rss.Content content = new com.sun.syndication.feed.rss.Content();
+				content.setType(com.sun.syndication.feed.rss.Content.HTML);
+				content.setValue(readText());
+				item.setContent(content);
+			} else if (!isRss())
+				skip();
+			else if ("title".equals(name))
+				item.setTitle(readText());
+			else if ("link".equals(name))
+				item.setLink(readText());
+			else if ("description".equals(name)) {
+				Description description = new Description();
+				String type = xml.getAttributeValue(null, "type");
+				description.setType(type != null ? type : "text/html");
+				description.setValue(readText());
+				item.setDescription(description);
+			} else if ("author".equals(name))
+				item.setAuthor(readText());
+			else if ("comments".equals(name))
+				item.setComments(readText());
+			else if ("pubDate".equals(name))
+				item.setPubDate(DateParser.parseDate(readText()));
+			else if ("expirationDate".equals(name))
+				item.setExpirationDate(DateParser.parseDate(readText()));
+			else if ("category".equals(name))
+				item.getCategories().add(parseCategory());
+			else if ("guid".equals(name)) {
+				Guid guid = new Guid();
+				String permaLink = xml.getAttributeValue(null, "isPermaLink");
+				if (permaLink != null)
+					guid.setPermaLink(permaLink.equalsIgnoreCase("true"));
+				guid.setValue(readText());
+				item.setGuid(guid);
+			} else if ("enclosure".equals(name)) {
+				Enclosure enclosure = new Enclosure();
+				enclosure.setUrl(xml.getAttributeValue(null, "url"));
+				enclosure.setType(xml.getAttributeValue(null, "type"));
+				String length = xml.getAttributeValue(null, "length");
+				try {
+					if (length != null && length.trim().length() > 0)
+						enclosure.setLength(Long.parseLong(length.trim()));
+				} catch (NumberFormatException e) {
+					// invalid length is ignored
+				}
+				skip();
+				item.getEnclosures().add(enclosure);
+			} else
+				skip();
+		}
+		if (dc != null) {
+			ArrayList<Module> modules = new ArrayList<Module>();
+			modules.add(dc);
+			item.setModules(modules);
+		}
+		return item;
+	}
+
+	private Category parseCategory() throws XMLStreamException {
+		Category category = new Category();
+		category.setDomain(xml.getAttributeValue(null, "domain"));
+		category.setValue(readText());
+		return category;
+	}
+
+	private Image parseImage() throws XMLStreamException {
+		Image image = new Image();
+		while (nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String name = xml.getLocalName();
+			if ("url".equals(name))
+				image.setUrl(readText());
+			else if ("title".equals(name))
+				image.setTitle(readText());
+			else if ("link".equals(name))
+				image.setLink(readText());
+			else if ("description".equals(name))
+				image.setDescription(readText());
+			else
+				skip();
+		}
+		return image;
+	}
+
+	/**
+	 * Parse Atom 1.0 feed. The reader is at the feed element.
+	 *
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	@SuppressWarnings("unchecked")
+	private SyndFeed parseAtom() throws XMLStreamException {
+		Feed feed = new Feed("atom_1.0");
+		feed.setLanguage(xml.getAttributeValue(XML_NS, "lang"));
+		String base = xml.getAttributeValue(XML_NS, "base");
+		feed.setXmlBase(base);
+		while (!stopped
+				&& nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String name = xml.getLocalName();
+			if (!ATOM_NS.equals(xml.getNamespaceURI()))
+				skip();
+			else if ("entry".equals(name))
+				addEntry(feed, parseEntry(feed, base));
+			else if ("title".equals(name))
+				feed.setTitleEx(parseContent());
+			else if ("subtitle".equals(name))
+				feed.setSubtitle(parseContent());
+			else if ("id".equals(name))
+				feed.setId(readText());
+			else if ("rights".equals(name))
+				feed.setRights(readText());
+			else if ("updated".equals(name))
+				feed.setUpdated(DateParser.parseDate(readText()));
+			else if ("icon".equals(name))
+				feed.setIcon(readText());
+			else if ("logo".equals(name))
+				feed.setLogo(readText());
+			else if ("link".equals(name)) {
+				Link link = parseLink(base);
+				if (isAlternate(link)) {
+					feed.getAlternateLinks().add(link);
+					if (base == null)
+						base = link.getHrefResolved();
+				} else
+					feed.getOtherLinks().add(link);
+			} else if ("author".equals(name))
+				feed.getAuthors().add(parsePerson());
+			else if ("contributor".equals(name))
+				feed.getContributors().add(parsePerson());
+			else if ("category".equals(name))
+				feed.getCategories().add(parseAtomCategory());
+			else
+				skip();
+		}
+
+		SyndFeed syndFeed = new SyndFeedImpl(feed, true);
+		syndFeed.setEntries(entries);
+		return syndFeed;
+	}
+
+	/**
+	 * Parse entry of Atom 1.0 feed.
+	 *
+	 * @param feed
+	 * @param base
+	 *            base URI of the feed for relative links
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	@SuppressWarnings("unchecked")
+	private Entry parseEntry(Feed feed, String base) throws XMLStreamException {
+		Entry entry = new Entry();
+		String entryBase = xml.getAttributeValue(XML_NS, "base");
+		if (entryBase != null) {
+			base = resolve(base, entryBase);
+			entry.setXmlBase(base);
+		}
+		while (nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String name = xml.getLocalName();
+			if (!ATOM_NS.equals(xml.getNamespaceURI()))
+				skip();
+			else if ("id".equals(name))
+				entry.setId(readText());
+			else if ("title".equals(name))
+				entry.setTitleEx(parseContent());
+			else if ("summary".equals(name))
+				entry.setSummary(parseContent());
+			else if ("content".equals(name)) {
+				String src = xml.getAttributeValue(null, "src");
+				Content content = parseContent();
+				content.setSrc(src);
+				entry.getContents().add(content);
+			} else if ("published".equals(name))
+				entry.setPublished(DateParser.parseDate(readText()));
+			else if ("updated".equals(name))
+				entry.setUpdated(DateParser.parseDate(readText()));
+			else if ("rights".equals(name))
+				entry.setRights(readText());
+			else if ("link".equals(name)) {
+				Link link = parseLink(base);
+				if (isAlternate(link))
+					entry.getAlternateLinks().add(link);
+				else
+					entry.getOtherLinks().add(link);
+			} else if ("author".equals(name))
+				entry.getAuthors().add(parsePerson());
+			else if ("contributor".equals(name))
+				entry.getContributors().add(parsePerson());
+			else if ("category".equals(name))
+				entry.getCategories().add(parseAtomCategory());
+			else
+				skip();
+		}
+		return entry;
+	}
+
+	/**
+	 * Parse text construct of Atom. Value of xhtml construct is the markup of
+	 * the element.
+	 *
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	private Content parseContent() throws XMLStreamException {
+		Content content = new Content();
+		String type = xml.getAttributeValue(null, "type");
+		content.setType(type);
+		if (Content.XHTML.equals(type))
+			content.setValue(readMarkup());
+		else
+			content.setValue(readText());
+		return content;
+	}
+
+	private Link parseLink(String base) throws XMLStreamException {
+		Link link = new Link();
+		String rel = xml.getAttributeValue(null, "rel");
+		if (rel != null)
+			link.setRel(rel);
+		link.setType(xml.getAttributeValue(null, "type"));
+		link.setTitle(xml.getAttributeValue(null, "title"));
+		link.setHreflang(xml.getAttributeValue(null, "hreflang"));
+		String href = xml.getAttributeValue(null, "href");
+		link.setHref(href);
+		link.setHrefResolved(resolve(base, href));
+		String length = xml.getAttributeValue(null, "length");
+		try {
+			if (length != null)
+				link.setLength(Long.parseLong(length.trim()));
+		} catch (NumberFormatException e) {
+			// invalid length is ignored
+		}
+		skip();
+		return link;
+	}
+
+	private Person parsePerson() throws XMLStreamException {
+		Person person = new Person();
+		while (nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String name = xml.getLocalName();
+			if ("name".equals(name))
+				person.setName(readText());
+			else if ("uri".equals(name)) {
+				String uri = readText();
+				person.setUri(uri);
+				person.setUriResolved(uri);
+			} else if ("email".equals(name))
+				person.setEmail(readText());
+			else
+				skip();
+		}
+		return person;
+	}
+
+	private com.sun.syndication.feed.atom.Category parseAtomCategory()
+			throws XMLStreamException {
+		com.sun.syndication.feed.atom.Category category = new com.sun.syndication.feed.atom.Category();
+		category.setTerm(xml.getAttributeValue(null, "term"));
+		category.setScheme(xml.getAttributeValue(null, "scheme"));
+		category.setSchemeResolved(xml.getAttributeValue(null, "scheme"));
+		category.setLabel(xml.getAttributeValue(null, "label"));
+		skip();
+		return category;
+	}
+
+	/**
+	 * Converts the entry to SyndEntry and keeps it if the filter accepts it.
+	 * Stops the parsing after a run of rejected entries, but only if the
+	 * entries are ordered from the newest to the oldest, so that no new entry
+	 * can follow.
+	 *
+	 * @param wireFeed
+	 *            feed without entries
+	 * @param wireEntry
+	 *            the item of RSS or the entry of Atom
+	 */
+	@SuppressWarnings("unchecked")
+	private void addEntry(WireFeed wireFeed, Object wireEntry) {
+		SyndEntry entry = toSyndEntry(wireFeed, wireEntry);
+		if (filter == null) {
+			entries.add(entry);
+			return;
+		}
+
+		Date date = entry.getPublishedDate() != null ? entry
+				.getPublishedDate() : entry.getUpdatedDate();
+		if (date == null || (lastDate != null && date.after(lastDate)))
+			ordered = false;
+		lastDate = date;
+
+		if (filter.accept(entry)) {
+			entries.add(entry);
+			knownRun = 0;
+		} else if (++knownRun >= KNOWN_RUN && ordered)
+			stopped = true;
+	}
+
+	/**
+	 * Returns the entry converted with Rome library, the same way as it would
+	 * be if the whole feed was converted.
+	 *
+	 * @param wireFeed
+	 * @param wireEntry
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static SyndEntry toSyndEntry(WireFeed wireFeed, Object wireEntry) {
+		List<Object> wireEntries = new ArrayList<Object>();
+		wireEntries.add(wireEntry);
+		WireFeed single;
+		if (wireFeed instanceof Channel) {
+			single = new Channel(wireFeed.getFeedType());
+			((Channel) single).setItems(wireEntries);
+		} else {
+			single = new Feed(wireFeed.getFeedType());
+			((Feed) single).setEntries(wireEntries);
+		}
+		return (SyndEntry) new SyndFeedImpl(single).getEntries().get(0);
+	}
+
+	/**
+	 * Returns true if the element is in no namespace or in the default
+	 * namespace of RSS 2.0.
+	 *
+	 * @return
+	 */
+	private boolean isRss() {
+		String ns = xml.getNamespaceURI();
+		return ns == null || ns.length() == 0
+				|| ns.startsWith("http://backend.userland.com/rss2");
+	}
+
+	private static boolean isAlternate(Link link) {
+		return link.getRel() == null || link.getRel().length() == 0
+				|| "alternate".equals(link.getRel());
+	}
+
+	/**
+	 * Returns the href resolved against the base URI or the href if it cannot
+	 * be resolved.
+	 *
+	 * @param base
+	 * @param href
+	 * @return
+	 */
+	private static String resolve(String base, String href) {
+		if (base == null || href == null)
+			return href;
+		try {
+			return URI.create(base.trim()).resolve(href.trim()).toString();
+		} catch (IllegalArgumentException e) {
+			return href;
+		}
+	}
+
+	/**
+	 * Returns the text of the current element without the text of child
+	 * elements. The reader is left at the end of the element.
+	 *
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	private String readText() throws XMLStreamException {
+		StringBuilder text = new StringBuilder();
+		int depth = 1;
+		while (depth > 0) {
+			int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+			else if (depth == 1
+					&& (event == XMLStreamConstants.CHARACTERS
+							|| event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE))
+				text.append(xml.getText());
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Returns the markup of the content of the current element. The reader is
+	 * left at the end of the element.
+	 *
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	private String readMarkup() throws XMLStreamException {
+		StringBuilder markup = new StringBuilder();
+		int depth = 1;
+		while (depth > 0) {
+			int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				markup.append('<').append(xml.getLocalName());
+				for (int i = 0; i < xml.getAttributeCount(); i++)
+					markup.append(' ').append(xml.getAttributeLocalName(i))
+							.append("=\"")
+							.append(escape(xml.getAttributeValue(i), true))
+							.append('"');
+				markup.append('>');
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				if (--depth > 0)
+					markup.append("</").append(xml.getLocalName()).append('>');
+			} else if (event == XMLStreamConstants.CHARACTERS
+					|| event == XMLStreamConstants.CDATA
+					|| event == XMLStreamConstants.SPACE)
+				markup.append(escape(xml.getText(), false));
+		}
+		return markup.toString();
+	}
+
+	private static String escape(String text, boolean attribute) {
+		text = text.replace("&", "&amp;").replace("<", "&lt;")
+				.replace(">", "&gt;");
+		return attribute ? text.replace("\"", "&quot;") : text;
+	}
+
+	/**
+	 * Moves to the next start or end element and returns its event. Text
+	 * between the elements is ignored.
+	 *
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	private int nextTag() throws XMLStreamException {
+		int event;
+		do {
+			event = xml.next();
+		} while (event != XMLStreamConstants.START_ELEMENT
+				&& event != XMLStreamConstants.END_ELEMENT);
+		return event;
+	}
+
+	/**
+	 * Skips the current element with all its children.
+	 *
+	 * @throws XMLStreamException
+	 */
+	private void skip() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+}
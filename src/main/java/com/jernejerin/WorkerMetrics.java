@@ -0,0 +1,526 @@
+package com.jernejerin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class represents the metrics of the polls of one RSSMainWorker: the
+ * time spent in each stage of the poll, the counters of the new entries, the
+ * not modified feeds, the errors by class and the bytes of the feeds and the
+ * pages, and the gauges of the worker's executor.
+ *
+ * The time of each stage is recorded in a histogram with fixed buckets from
+ * 0.1 ms to 60 s, from which the percentiles are estimated. With -async the
+ * fetch of the feed is recorded as stage body, as the response is received at
+ * once. The metrics are exposed as a dynamic MBean and in the Prometheus text
+ * format on /metrics of an embedded HTTP server.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class WorkerMetrics implements DynamicMBean {
+
+	/** From sending the job until the poll starts. */
+	public static final String QUEUE_WAIT = "queueWait";
+	/** Opening a new connection to the host of the feed. */
+	public static final String CONNECT = "connect";
+	/** From sending the request of the feed until its response headers. */
+	public static final String FIRST_BYTE = "firstByte";
+	/** Waiting for the body of the feed while it is parsed. */
+	public static final String BODY = "body";
+	/** Parsing the feed, without waiting for the body. */
+	public static final String PARSE = "parse";
+	/** Loading and updating the feed. */
+	public static final String FEED_UPDATE = "feedUpdate";
+	/** Finding the new entries among the saved ones. */
+	public static final String DEDUP = "dedup";
+	/** Fetching a web page, including the wait for its host. */
+	public static final String WEB_PAGE = "webPage";
+	/** Marking the near duplicate and the syndicated pages. */
+	public static final String PAGE_DEDUP = "pageDedup";
+	/** Writing a batch of the write-behind writer to DB. */
+	public static final String MONGO_WRITE = "mongoWrite";
+
+	public static final String NEW_ENTRIES = "newEntries";
+	public static final String NOT_MODIFIED = "notModified";
+	public static final String FEED_BYTES = "feedBytes";
+	public static final String PAGE_BYTES = "pageBytes";
+
+	/** Upper bounds of the buckets of the histograms in seconds. */
+	private static final double[] BOUNDS = { 0.0001, 0.00025, 0.0005, 0.001,
+			0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10,
+			30, 60 };
+
+	private static final String DOMAIN = "com.jernejerin";
+	private static final String PREFIX = "rss_worker_";
+
+	// logger for this class
+	private static final Logger LOG = Logger.getLogger(WorkerMetrics.class);
+
+	private final ConcurrentSkipListMap<String, Histogram> stages = new ConcurrentSkipListMap<String, Histogram>();
+	private final ConcurrentSkipListMap<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+	private final ConcurrentSkipListMap<String, LongAdder> errors = new ConcurrentSkipListMap<String, LongAdder>();
+	private final ConcurrentSkipListMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<String, LongSupplier>();
+
+	private ObjectName name;
+	private HttpServer server;
+
+	/**
+	 * Creates metrics with all the stages and counters at zero.
+	 */
+	public WorkerMetrics() {
+		for (String stage : new String[] { QUEUE_WAIT, CONNECT, FIRST_BYTE,
+				BODY, PARSE, FEED_UPDATE, DEDUP, WEB_PAGE, PAGE_DEDUP,
+				MONGO_WRITE })
+			stages.put(stage, new Histogram());
+		for (String counter : new String[] { NEW_ENTRIES, NOT_MODIFIED,
+				FEED_BYTES, PAGE_BYTES })
+			counters.put(counter, new LongAdder());
+	}
+
+	/**
+	 * Records the time of the stage.
+	 *
+	 * @param stage
+	 * @param nanos
+	 */
+	public void time(String stage, long nanos) {
+		stages.computeIfAbsent(stage, s -> new Histogram()).record(nanos);
+	}
+
+	/**
+	 * Records the time of the stage that started at the given System.nanoTime.
+	 *
+	 * @param stage
+	 * @param startNanos
+	 */
+	public void timeSince(String stage, long startNanos) {
+		time(stage, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Adds to the counter.
+	 *
+	 * @param counter
+	 * @param n
+	 */
+	public void increment(String counter, long n) {
+		counters.computeIfAbsent(counter, c -> new LongAdder()).add(n);
+	}
+
+	/**
+	 * Counts the error by its class. The wrapped cause of the completion
+	 * stages is counted instead of the wrapper.
+	 *
+	 * @param e
+	 */
+	public void error(Throwable e) {
+		if ((e instanceof CompletionException || e instanceof ExecutionException)
+				&& e.getCause() != null)
+			e = e.getCause();
+		errors.computeIfAbsent(e.getClass().getSimpleName(),
+				c -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Adds the gauge, which is read when the metrics are exposed.
+	 *
+	 * @param gauge
+	 * @param value
+	 */
+	public void gauge(String gauge, LongSupplier value) {
+		gauges.put(gauge, value);
+	}
+
+	/**
+	 * Returns the number of the recorded times of the stage.
+	 *
+	 * @param stage
+	 * @return
+	 */
+	public long getCount(String stage) {
+		Histogram histogram = stages.get(stage);
+		return histogram != null ? histogram.count() : 0;
+	}
+
+	/**
+	 * Returns the estimated quantile of the times of the stage in seconds.
+	 *
+	 * @param stage
+	 * @param q
+	 * @return
+	 */
+	public double getQuantile(String stage, double q) {
+		Histogram histogram = stages.get(stage);
+		return histogram != null ? histogram.quantile(q) : 0;
+	}
+
+	/**
+	 * Returns the value of the counter.
+	 *
+	 * @param counter
+	 * @return
+	 */
+	public long getCounter(String counter) {
+		LongAdder adder = counters.get(counter);
+		return adder != null ? adder.sum() : 0;
+	}
+
+	/**
+	 * Returns the number of the errors of the class with the given simple
+	 * name.
+	 *
+	 * @param errorClass
+	 * @return
+	 */
+	public long getErrors(String errorClass) {
+		LongAdder adder = errors.get(errorClass);
+		return adder != null ? adder.sum() : 0;
+	}
+
+	/**
+	 * Registers the metrics in the platform MBean server as
+	 * com.jernejerin:type=WorkerMetrics. The next workers in the same VM get
+	 * the key instance with their number.
+	 *
+	 * @throws JMException
+	 */
+	public synchronized void register() throws JMException {
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		for (int instance = 1;; instance++) {
+			ObjectName candidate = new ObjectName(DOMAIN
+					+ ":type=WorkerMetrics"
+					+ (instance > 1 ? ",instance=" + instance : ""));
+			try {
+				mbs.registerMBean(this, candidate);
+				name = candidate;
+				LOG.info("Registered MBean " + name);
+				return;
+			} catch (InstanceAlreadyExistsException e) {
+				// taken by another worker
+			}
+		}
+	}
+
+	/**
+	 * Starts the HTTP server with the metrics in the Prometheus text format
+	 * on path /metrics.
+	 *
+	 * @param port
+	 * @throws IOException
+	 */
+	public synchronized void serve(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", exchange -> {
+			try {
+				byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type",
+						"text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			} finally {
+				exchange.close();
+			}
+		});
+		server.start();
+		LOG.info("Serving metrics on port " + port);
+	}
+
+	/**
+	 * Stops the HTTP server and unregisters the MBean.
+	 */
+	public synchronized void close() {
+		if (server != null)
+			server.stop(0);
+		server = null;
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						name);
+			} catch (JMException e) {
+				LOG.error(e.getMessage());
+			}
+			name = null;
+		}
+	}
+
+	/**
+	 * Returns the metrics in the Prometheus text format. The stages are
+	 * histograms with the label stage, the errors are counters with the label
+	 * class.
+	 *
+	 * @return
+	 */
+	public String toPrometheus() {
+		StringBuilder text = new StringBuilder(8192);
+		String stageSeconds = PREFIX + "stage_seconds";
+		text.append("# HELP ").append(stageSeconds)
+				.append(" Time spent in the stages of the polls.\n");
+		text.append("# TYPE ").append(stageSeconds).append(" histogram\n");
+		for (Map.Entry<String, Histogram> stage : stages.entrySet()) {
+			String label = "stage=\"" + stage.getKey() + "\"";
+			long[] buckets = stage.getValue().buckets();
+			long cumulative = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				cumulative += buckets[i];
+				text.append(stageSeconds).append("_bucket{").append(label)
+						.append(",le=\"")
+						.append(i < BOUNDS.length ? Double.toString(BOUNDS[i])
+								: "+Inf").append("\"} ").append(cumulative)
+						.append('\n');
+			}
+			text.append(stageSeconds).append("_sum{").append(label)
+					.append("} ").append(stage.getValue().sum() / 1e9)
+					.append('\n');
+			text.append(stageSeconds).append("_count{").append(label)
+					.append("} ").append(cumulative).append('\n');
+		}
+
+		for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+			String metric = PREFIX + snakeCase(counter.getKey()) + "_total";
+			text.append("# TYPE ").append(metric).append(" counter\n");
+			text.append(metric).append(' ').append(counter.getValue().sum())
+					.append('\n');
+		}
+
+		String errorsTotal = PREFIX + "errors_total";
+		text.append("# TYPE ").append(errorsTotal).append(" counter\n");
+		for (Map.Entry<String, LongAdder> error : errors.entrySet())
+			text.append(errorsTotal).append("{class=\"")
+					.append(error.getKey()).append("\"} ")
+					.append(error.getValue().sum()).append('\n');
+
+		for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+			String metric = PREFIX + snakeCase(gauge.getKey());
+			text.append("# TYPE ").append(metric).append(" gauge\n");
+			text.append(metric).append(' ')
+					.append(gauge.getValue().getAsLong()).append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Returns the name in camel case with underscores, e.g. new_entries.
+	 *
+	 * @param name
+	 * @return
+	 */
+	private static String snakeCase(String name) {
+		StringBuilder snake = new StringBuilder(name.length() + 8);
+		for (char c : name.toCharArray()) {
+			if (Character.isUpperCase(c))
+				snake.append('_').append(Character.toLowerCase(c));
+			else
+				snake.append(c);
+		}
+		return snake.toString();
+	}
+
+	/**
+	 * The attributes of the MBean are the count, the mean, the 50th and 99th
+	 * percentile and the maximum of each stage in ms, e.g. parseP99Ms, the
+	 * counters, the errors by class, e.g. errors.IOException, and the gauges.
+	 */
+	@Override
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException {
+		if (attribute.startsWith("errors.")) {
+			LongAdder adder = errors.get(attribute.substring(7));
+			if (adder != null)
+				return adder.sum();
+		}
+		if (counters.containsKey(attribute))
+			return counters.get(attribute).sum();
+		if (gauges.containsKey(attribute))
+			return gauges.get(attribute).getAsLong();
+		for (Map.Entry<String, Histogram> stage : stages.entrySet()) {
+			if (!attribute.startsWith(stage.getKey()))
+				continue;
+			Histogram histogram = stage.getValue();
+			switch (attribute.substring(stage.getKey().length())) {
+			case "Count":
+				return histogram.count();
+			case "MeanMs":
+				long count = histogram.count();
+				return count > 0 ? histogram.sum() / 1e6 / count : 0.0;
+			case "P50Ms":
+				return histogram.quantile(0.5) * 1000;
+			case "P99Ms":
+				return histogram.quantile(0.99) * 1000;
+			case "MaxMs":
+				return histogram.max() / 1e6;
+			default:
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// left out of the list
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only.");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String stage : stages.keySet()) {
+			attributes.add(attribute(stage + "Count", "long",
+					"Number of " + stage + " stages"));
+			for (String stat : new String[] { "MeanMs", "P50Ms", "P99Ms",
+					"MaxMs" })
+				attributes.add(attribute(stage + stat, "double", stat
+						+ " time of stage " + stage));
+		}
+		for (String counter : counters.keySet())
+			attributes.add(attribute(counter, "long", "Counter " + counter));
+		for (String error : errors.keySet())
+			attributes.add(attribute("errors." + error, "long", "Number of "
+					+ error + " errors"));
+		for (String gauge : gauges.keySet())
+			attributes.add(attribute(gauge, "long", "Gauge " + gauge));
+		return new MBeanInfo(getClass().getName(),
+				"Metrics of the polls of RSSMainWorker",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, null, null);
+	}
+
+	private static MBeanAttributeInfo attribute(String name, String type,
+			String description) {
+		return new MBeanAttributeInfo(name, type, description, true, false,
+				false);
+	}
+
+	/**
+	 * This class represents the histogram of the times of one stage with the
+	 * buckets of BOUNDS and one for the longer times.
+	 */
+	private static class Histogram {
+		private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		private Histogram() {
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		private void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			double seconds = nanos / 1e9;
+			int i = 0;
+			while (i < BOUNDS.length && seconds > BOUNDS[i])
+				i++;
+			buckets[i].increment();
+			sum.add(nanos);
+			max.accumulate(nanos);
+		}
+
+		private long[] buckets() {
+			long[] counts = new long[buckets.length];
+			for (int i = 0; i < buckets.length; i++)
+				counts[i] = buckets[i].sum();
+			return counts;
+		}
+
+		private long count() {
+			long count = 0;
+			for (LongAdder bucket : buckets)
+				count += bucket.sum();
+			return count;
+		}
+
+		private long sum() {
+			return sum.sum();
+		}
+
+		private long max() {
+			return max.get();
+		}
+
+		/**
+		 * Returns the quantile in seconds interpolated within its bucket.
+		 *
+		 * @param q
+		 * @return
+		 */
+		private double quantile(double q) {
+			long[] counts = buckets();
+			long count = 0;
+			for (long c : counts)
+				count += c;
+			if (count == 0)
+				return 0;
+			double maxSeconds = max() / 1e9;
+			double rank = q * count;
+			long cumulative = 0;
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] == 0 || cumulative + counts[i] < rank) {
+					cumulative += counts[i];
+					continue;
+				}
+				double lower = i > 0 ? BOUNDS[i - 1] : 0;
+				double upper = i < BOUNDS.length ? Math.min(BOUNDS[i],
+						maxSeconds) : maxSeconds;
+				return lower + (upper - lower) * (rank - cumulative)
+						/ counts[i];
+			}
+			return maxSeconds;
+		}
+	}
+}
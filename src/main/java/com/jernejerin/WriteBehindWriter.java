@@ -0,0 +1,628 @@
+package com.jernejerin;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.util.JSON;
+
+/**
+ * This class represents write-behind stage for the writes of all thread
+ * workers into DB. The inserts and updates are accepted at once and written to
+ * DB by the writer's thread in batches, when the batch is full or the oldest
+ * write waited for the maximum delay. The inserts of all feeds into the same
+ * collection are written with one insert and the updates of the same document
+ * are merged into one update.
+ *
+ * Each accepted write is first appended to the local journal and flushed to
+ * the file, so it survives a crash of the worker. The journal is synced to
+ * disk before the batch is written to DB and deleted after. The
+ * journal that is left after a crash is written to DB on the next start. The
+ * returned futures complete when the write is in DB, so the thread workers
+ * acknowledge the jobs only then. Each worker on the same machine has to use
+ * its own journal directory. The documents are inserted with their _id set
+ * when they are accepted, so the replayed inserts are not saved twice.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class WriteBehindWriter {
+
+	/**
+	 * Write concern for inserting entries that continues with the rest of the
+	 * entries if one of them is a duplicate.
+	 */
+	private static final WriteConcern INSERT_IGNORE = WriteConcern.ACKNOWLEDGED
+			.continueOnErrorForInsert(true);
+
+	/** Time in ms to wait before the failed batch is written again. */
+	private static final long RETRY_DELAY = 5000;
+
+	private static final Pattern JOURNAL_NAME = Pattern
+			.compile("journal-(\\d+)\\.bson");
+
+	// logger for this class
+	private static final Logger LOG = Logger.getLogger(WriteBehindWriter.class);
+
+	private final Map<String, DBCollection> collections = new HashMap<String, DBCollection>();
+	private final File journalDir;
+	private final int batchSize;
+	private final long maxDelay;
+	private final WorkerMetrics metrics;
+
+	private Batch pending = new Batch();
+	private Batch writing = null;
+	private int journalSeq = 0;
+	private File journalFile;
+	private FileOutputStream journalOut;
+	private BufferedOutputStream journal;
+	private boolean closed = false;
+	private volatile Runnable beforeWrite = null;
+	private final Thread flusher;
+
+	/**
+	 * Creates writer for the given collections and writes the journal left
+	 * from the previous run to DB.
+	 *
+	 * @param journalDir
+	 * @param batchSize
+	 *            number of writes after which the batch is written
+	 * @param maxDelay
+	 *            maximum time in ms a write waits for the batch
+	 * @param colls
+	 * @throws IOException
+	 */
+	public WriteBehindWriter(String journalDir, int batchSize, long maxDelay,
+			DBCollection... colls) throws IOException {
+		this(journalDir, batchSize, maxDelay, new WorkerMetrics(), colls);
+	}
+
+	/**
+	 * Creates writer the same way as the constructor above, which records the
+	 * time of writing each batch and the failed writes in the metrics.
+	 *
+	 * @param journalDir
+	 * @param batchSize
+	 * @param maxDelay
+	 * @param metrics
+	 * @param colls
+	 * @throws IOException
+	 */
+	public WriteBehindWriter(String journalDir, int batchSize, long maxDelay,
+			WorkerMetrics metrics, DBCollection... colls) throws IOException {
+		this.metrics = metrics;
+		for (DBCollection coll : colls)
+			collections.put(coll.getName(), coll);
+		this.journalDir = new File(journalDir);
+		if (!this.journalDir.isDirectory() && !this.journalDir.mkdirs())
+			throw new IOException("Cannot create directory " + journalDir);
+		this.batchSize = batchSize;
+		this.maxDelay = maxDelay;
+
+		replay();
+		openJournal();
+		flusher = new Thread(this::flushLoop, "WriteBehindWriter");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Accepts the insert of the document. Duplicates are ignored.
+	 *
+	 * @param coll
+	 * @param doc
+	 * @return future that completes when the document is in DB or
+	 *         exceptionally if DB rejects the document
+	 */
+	public synchronized CompletableFuture<Void> insert(DBCollection coll,
+			DBObject doc) {
+		if (doc.get("_id") == null)
+			doc.put("_id", new ObjectId());
+		BasicDBObject record = new BasicDBObject("c", coll.getName()).append(
+				"i", doc);
+		journal(record);
+		pending.add(record);
+		CompletableFuture<Void> saved = new CompletableFuture<Void>();
+		pending.saved.put(doc, saved);
+		notifyAll();
+		return saved;
+	}
+
+	/**
+	 * Accepts the update of the document matching the query. The update is
+	 * either whole document or $set and $unset of the fields and is merged
+	 * with the other pending updates of the same document.
+	 *
+	 * @param coll
+	 * @param query
+	 * @param update
+	 * @return future that completes when the update is in DB
+	 */
+	public synchronized CompletableFuture<Void> update(DBCollection coll,
+			DBObject query, DBObject update) {
+		BasicDBObject record = new BasicDBObject("c", coll.getName()).append(
+				"q", query).append("u", update);
+		journal(record);
+		pending.add(record);
+		notifyAll();
+		return pending.done;
+	}
+
+	/**
+	 * Returns future that completes when all the writes accepted until now
+	 * are in DB.
+	 *
+	 * @return
+	 */
+	public synchronized CompletableFuture<Void> sync() {
+		if (pending.size() > 0)
+			return pending.done;
+		if (writing != null)
+			return writing.done;
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Returns the values of the field of the documents inserted or set by
+	 * the writes that are not in DB yet, including the writes replayed from
+	 * the journal.
+	 *
+	 * @param field
+	 * @return
+	 */
+	public synchronized Set<Object> getPendingValues(String field) {
+		HashSet<Object> values = new HashSet<Object>();
+		pending.collect(field, values);
+		if (writing != null)
+			writing.collect(field, values);
+		return values;
+	}
+
+	/**
+	 * Sets the task that runs before each batch is written to DB, e.g. the
+	 * sync of the page store, so the writes never refer to data that is not
+	 * on disk.
+	 *
+	 * @param beforeWrite
+	 */
+	public void setBeforeWrite(Runnable beforeWrite) {
+		this.beforeWrite = beforeWrite;
+	}
+
+	/**
+	 * Writes the pending writes to DB and stops the writer's thread.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			LOG.error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the update that has the same effect as the earlier update
+	 * followed by the later one or null if they cannot be merged.
+	 *
+	 * @param earlier
+	 * @param later
+	 * @return
+	 */
+	public static DBObject merge(DBObject earlier, DBObject later) {
+		if (!isOperators(later))
+			return later;
+		if (!isMergeable(later) || isOperators(earlier) && !isMergeable(earlier))
+			return null;
+
+		DBObject set = (DBObject) later.get("$set");
+		DBObject unset = (DBObject) later.get("$unset");
+		if (!isOperators(earlier)) {
+			// apply the fields to the whole document
+			BasicDBObject merged = new BasicDBObject(earlier.toMap());
+			if (set != null)
+				merged.putAll(set);
+			if (unset != null)
+				for (String field : unset.keySet())
+					merged.removeField(field);
+			return merged;
+		}
+
+		BasicDBObject mergedSet = new BasicDBObject();
+		BasicDBObject mergedUnset = new BasicDBObject();
+		if (earlier.get("$set") != null)
+			mergedSet.putAll((DBObject) earlier.get("$set"));
+		if (earlier.get("$unset") != null)
+			mergedUnset.putAll((DBObject) earlier.get("$unset"));
+		if (set != null)
+			for (String field : set.keySet()) {
+				mergedSet.put(field, set.get(field));
+				mergedUnset.removeField(field);
+			}
+		if (unset != null)
+			for (String field : unset.keySet()) {
+				mergedUnset.put(field, unset.get(field));
+				mergedSet.removeField(field);
+			}
+		BasicDBObject merged = new BasicDBObject();
+		if (!mergedSet.isEmpty())
+			merged.put("$set", mergedSet);
+		if (!mergedUnset.isEmpty())
+			merged.put("$unset", mergedUnset);
+		return merged;
+	}
+
+	private static boolean isOperators(DBObject update) {
+		for (String field : update.keySet())
+			return field.startsWith("$");
+		return false;
+	}
+
+	private static boolean isMergeable(DBObject update) {
+		for (String field : update.keySet())
+			if (!field.equals("$set") && !field.equals("$unset"))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Writes the batches to DB until the writer is closed.
+	 */
+	private void flushLoop() {
+		while (true) {
+			Batch batch;
+			boolean last;
+			synchronized (this) {
+				try {
+					while (!closed && !isDue())
+						wait(pending.size() > 0 ? Math.max(1, pending.createdAt
+								+ maxDelay - System.currentTimeMillis())
+								: maxDelay);
+				} catch (InterruptedException e) {
+					return;
+				}
+				last = closed;
+				batch = pending;
+				pending = new Batch();
+				writing = batch;
+				batch.journals.add(journalFile);
+				try {
+					closeJournal();
+					if (!last)
+						openJournal();
+				} catch (IOException e) {
+					LOG.error("Problem with journal: " + e.getMessage());
+				}
+			}
+
+			long start = System.nanoTime();
+			boolean written;
+			try {
+				Runnable task = beforeWrite;
+				if (task != null)
+					task.run();
+				written = write(batch);
+			} catch (RuntimeException e) {
+				// the writer's thread must not die, the batch is written again
+				metrics.error(e);
+				LOG.error("Writing " + batch.size() + " writes failed: "
+						+ e.getMessage());
+				written = false;
+			}
+			metrics.timeSince(WorkerMetrics.MONGO_WRITE, start);
+			synchronized (this) {
+				writing = null;
+				if (!written) {
+					// the failed writes go first in the next batch
+					batch.addAll(pending);
+					pending = batch;
+				}
+			}
+			if (written) {
+				for (File file : batch.journals)
+					if (file != null && !file.delete())
+						LOG.warn("Cannot delete " + file);
+				batch.complete();
+			} else if (!last)
+				sleep(RETRY_DELAY);
+			if (last)
+				return;
+		}
+	}
+
+	private boolean isDue() {
+		return pending.size() >= batchSize
+				|| pending.size() > 0
+				&& System.currentTimeMillis() - pending.createdAt >= maxDelay;
+	}
+
+	/**
+	 * Writes the batch to DB. Returns false if DB is not available, the batch
+	 * is then written again. If DB reports any error for the inserts, they
+	 * are inserted one by one, as it reports only the last error of the
+	 * inserts that continue on error. Only the rejected documents and updates
+	 * are dropped, the futures of the rejected documents complete
+	 * exceptionally.
+	 *
+	 * @param batch
+	 * @return
+	 */
+	private boolean write(Batch batch) {
+		batch.rejected.clear();
+		try {
+			for (Map.Entry<String, List<DBObject>> inserts : batch.inserts
+					.entrySet()) {
+				DBCollection coll = collections.get(inserts.getKey());
+				List<DBObject> docs = inserts.getValue();
+				for (int i = 0; i < docs.size(); i += batchSize) {
+					List<DBObject> chunk = docs.subList(i,
+							Math.min(docs.size(), i + batchSize));
+					try {
+						coll.insert(chunk, INSERT_IGNORE);
+					} catch (MongoException.Network e) {
+						throw e;
+					} catch (RuntimeException e) {
+						// find the documents that are rejected, the duplicates
+						// are already saved, e.g. by the replayed journal
+						for (DBObject doc : chunk)
+							insertOne(coll, doc, batch);
+					}
+				}
+			}
+			for (BasicDBObject update : batch.updates.values()) {
+				try {
+					collections.get(update.getString("c")).update(
+							(DBObject) update.get("q"),
+							(DBObject) update.get("u"));
+				} catch (MongoException.Network e) {
+					throw e;
+				} catch (RuntimeException e) {
+					metrics.error(e);
+					LOG.error("Update " + update + " failed: " + e.getMessage());
+				}
+			}
+			return true;
+		} catch (MongoException.Network e) {
+			metrics.error(e);
+			LOG.error("Writing " + batch.size() + " writes failed: "
+					+ e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Inserts the document of the batch that failed. The document is dropped
+	 * and recorded as rejected in the batch if DB rejects it.
+	 *
+	 * @param coll
+	 * @param doc
+	 * @param batch
+	 */
+	private void insertOne(DBCollection coll, DBObject doc, Batch batch) {
+		try {
+			coll.insert(doc, INSERT_IGNORE);
+		} catch (MongoException.DuplicateKey e) {
+			// already saved
+		} catch (MongoException.Network e) {
+			throw e;
+		} catch (RuntimeException e) {
+			metrics.error(e);
+			LOG.error("Insert " + doc + " failed: " + e.getMessage());
+			batch.rejected.put(doc, e);
+		}
+	}
+
+	/**
+	 * Adds the writes of the journal files left from the previous run to the
+	 * pending batch. The files are deleted when the batch is written.
+	 *
+	 * @throws IOException
+	 */
+	private void replay() throws IOException {
+		ArrayList<Integer> seqs = new ArrayList<Integer>();
+		for (File file : journalDir.listFiles()) {
+			Matcher name = JOURNAL_NAME.matcher(file.getName());
+			if (name.matches())
+				seqs.add(Integer.valueOf(name.group(1)));
+		}
+		Integer[] sorted = seqs.toArray(new Integer[seqs.size()]);
+		Arrays.sort(sorted);
+
+		DefaultDBDecoder decoder = new DefaultDBDecoder();
+		for (Integer seq : sorted) {
+			File file = journalFile(seq);
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				while (true) {
+					// BSON document starts with its length in little endian
+					byte[] length = new byte[4];
+					in.readFully(length);
+					int size = (length[0] & 0xff) | (length[1] & 0xff) << 8
+							| (length[2] & 0xff) << 16 | (length[3] & 0xff) << 24;
+					if (size < 5)
+						break;
+					byte[] bytes = Arrays.copyOf(length, size);
+					in.readFully(bytes, 4, size - 4);
+					BasicDBObject record = (BasicDBObject) decoder.decode(bytes,
+							(DBCollection) null);
+					if (collections.containsKey(record.getString("c")))
+						pending.add(record);
+				}
+			} catch (EOFException e) {
+				// the last write was not completed
+			} finally {
+				in.close();
+			}
+			pending.journals.add(file);
+			journalSeq = seq + 1;
+		}
+		if (pending.size() > 0)
+			LOG.info("Replaying " + pending.size() + " writes from journal.");
+	}
+
+	private void journal(DBObject record) {
+		try {
+			journal.write(new BasicBSONEncoder().encode(record));
+			journal.flush();
+		} catch (IOException e) {
+			LOG.error("Problem with journal: " + e.getMessage());
+		}
+	}
+
+	private void openJournal() throws IOException {
+		journalFile = journalFile(journalSeq++);
+		journalOut = new FileOutputStream(journalFile);
+		journal = new BufferedOutputStream(journalOut, 64 * 1024);
+	}
+
+	/**
+	 * Syncs the journal to disk and closes it.
+	 *
+	 * @throws IOException
+	 */
+	private void closeJournal() throws IOException {
+		journal.flush();
+		journalOut.getFD().sync();
+		journal.close();
+	}
+
+	private File journalFile(int seq) {
+		return new File(journalDir, String.format("journal-%08d.bson", seq));
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes that are written to DB together.
+	 */
+	private static class Batch {
+		private final LinkedHashMap<String, List<DBObject>> inserts = new LinkedHashMap<String, List<DBObject>>();
+		private final LinkedHashMap<String, BasicDBObject> updates = new LinkedHashMap<String, BasicDBObject>();
+		private final ArrayList<File> journals = new ArrayList<File>();
+		private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+		// futures of the inserted documents accepted in this run and the
+		// documents rejected by DB
+		private final IdentityHashMap<DBObject, CompletableFuture<Void>> saved = new IdentityHashMap<DBObject, CompletableFuture<Void>>();
+		private final IdentityHashMap<DBObject, RuntimeException> rejected = new IdentityHashMap<DBObject, RuntimeException>();
+		private final long createdAt = System.currentTimeMillis();
+		private int size = 0;
+		private int unmerged = 0;
+
+		private void add(BasicDBObject record) {
+			size++;
+			String coll = record.getString("c");
+			if (record.get("i") != null) {
+				List<DBObject> docs = inserts.get(coll);
+				if (docs == null) {
+					docs = new ArrayList<DBObject>();
+					inserts.put(coll, docs);
+				}
+				docs.add((DBObject) record.get("i"));
+				return;
+			}
+
+			String key = coll + " " + JSON.serialize(record.get("q"));
+			BasicDBObject earlier = updates.get(key);
+			DBObject merged = earlier == null ? null : merge(
+					(DBObject) earlier.get("u"), (DBObject) record.get("u"));
+			if (merged != null)
+				earlier.put("u", merged);
+			else {
+				// the earlier update is written first and the later one is
+				// merged with the next updates of the same document
+				if (earlier != null)
+					updates.put(key + " " + unmerged++, updates.remove(key));
+				updates.put(key, record);
+			}
+		}
+
+		private void addAll(Batch batch) {
+			for (Map.Entry<String, List<DBObject>> docs : batch.inserts
+					.entrySet())
+				for (DBObject doc : docs.getValue())
+					add(new BasicDBObject("c", docs.getKey()).append("i", doc));
+			for (BasicDBObject update : batch.updates.values())
+				add(update);
+			journals.addAll(batch.journals);
+			saved.putAll(batch.saved);
+			final CompletableFuture<Void> batchDone = batch.done;
+			done.whenComplete((v, e) -> batchDone.complete(null));
+		}
+
+		private int size() {
+			return size;
+		}
+
+		/**
+		 * Completes the futures of the written batch.
+		 */
+		private void complete() {
+			for (Map.Entry<DBObject, CompletableFuture<Void>> doc : saved
+					.entrySet()) {
+				RuntimeException e = rejected.get(doc.getKey());
+				if (e != null)
+					doc.getValue().completeExceptionally(e);
+				else
+					doc.getValue().complete(null);
+			}
+			done.complete(null);
+		}
+
+		/**
+		 * Adds the values of the field of the inserted documents and of the
+		 * updates that set the field.
+		 *
+		 * @param field
+		 * @param values
+		 */
+		private void collect(String field, Set<Object> values) {
+			for (List<DBObject> docs : inserts.values())
+				for (DBObject doc : docs)
+					if (doc.get(field) != null)
+						values.add(doc.get(field));
+			for (BasicDBObject update : updates.values()) {
+				DBObject u = (DBObject) update.get("u");
+				if (u.get("$set") != null)
+					u = (DBObject) u.get("$set");
+				if (u.get(field) != null)
+					values.add(u.get(field));
+			}
+		}
+	}
+}
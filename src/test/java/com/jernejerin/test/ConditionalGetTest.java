@@ -0,0 +1,138 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+import org.apache.http.HttpHeaders;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jernejerin.HttpClientPool;
+import com.jernejerin.NotModifiedException;
+import com.jernejerin.RSSThreadWorker;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.syndication.feed.synd.SyndFeed;
+import com.sun.syndication.io.SyndFeedInput;
+
+/**
+ * Test for the conditional GET of the feed in class RSSThreadWorker with a
+ * local HTTP server, which responds with status 304 when the validators of
+ * the request match the current version of the feed.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class ConditionalGetTest {
+
+	private static final String LAST_MODIFIED = "Tue, 06 May 2014 10:00:00 GMT";
+
+	private HttpServer server;
+	private HttpClientPool httpClientPool;
+	private String url;
+
+	// current version of the feed and the validators of the last request
+	private volatile String etag = "\"v1\"";
+	private volatile String ifNoneMatch;
+	private volatile String ifModifiedSince;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/feed", exchange -> {
+			ifNoneMatch = exchange.getRequestHeaders().getFirst(
+					HttpHeaders.IF_NONE_MATCH);
+			ifModifiedSince = exchange.getRequestHeaders().getFirst(
+					HttpHeaders.IF_MODIFIED_SINCE);
+			exchange.getResponseHeaders().set(HttpHeaders.ETAG, etag);
+			if (etag.equals(ifNoneMatch)) {
+				exchange.sendResponseHeaders(304, -1);
+				exchange.close();
+				return;
+			}
+			if (etag.equals("\"v1\""))
+				exchange.getResponseHeaders().set(HttpHeaders.LAST_MODIFIED,
+						LAST_MODIFIED);
+			byte[] body = ("<?xml version=\"1.0\"?><rss version=\"2.0\"><channel>"
+					+ "<title>Test</title><link>http://localhost/</link>"
+					+ "<description>Test</description><item><title>Entry</title>"
+					+ "<link>http://localhost/entry</link></item></channel></rss>")
+					.getBytes("UTF-8");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		});
+		server.start();
+		httpClientPool = new HttpClientPool(10, 10);
+		url = "http://localhost:" + server.getAddress().getPort() + "/feed";
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		httpClientPool.close();
+	}
+
+	/**
+	 * Test that the validators of the response are saved, sent with the next
+	 * request and that the unchanged feed is not parsed.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testNotModified() throws Exception {
+		DBObject feedDB = new BasicDBObject("feedUrl", url);
+		SyndFeed feed = RSSThreadWorker.readFeed(url, new SyndFeedInput(),
+				httpClientPool.getClient(), feedDB);
+		assertNotNull(feed);
+		assertNull(ifNoneMatch);
+		assertNull(ifModifiedSince);
+		assertEquals("\"v1\"", feedDB.get("etag"));
+		assertEquals(LAST_MODIFIED, feedDB.get("lastModified"));
+
+		Map<String, String> headers = RSSThreadWorker
+				.getConditionalHeaders(feedDB);
+		assertEquals("\"v1\"", headers.get(HttpHeaders.IF_NONE_MATCH));
+		assertEquals(LAST_MODIFIED, headers.get(HttpHeaders.IF_MODIFIED_SINCE));
+
+		try {
+			RSSThreadWorker.readFeed(url, new SyndFeedInput(),
+					httpClientPool.getClient(), feedDB);
+			fail("Unchanged feed should not be parsed!");
+		} catch (NotModifiedException e) {
+			// expected
+		}
+		assertEquals("\"v1\"", ifNoneMatch);
+		assertEquals(LAST_MODIFIED, ifModifiedSince);
+	}
+
+	/**
+	 * Test that the validators of the changed feed replace the saved ones and
+	 * that the validator the server does not send anymore is removed.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testModified() throws Exception {
+		DBObject feedDB = new BasicDBObject("feedUrl", url);
+		RSSThreadWorker.readFeed(url, new SyndFeedInput(),
+				httpClientPool.getClient(), feedDB);
+
+		etag = "\"v2\"";
+		assertNotNull(RSSThreadWorker.readFeed(url, new SyndFeedInput(),
+				httpClientPool.getClient(), feedDB));
+		assertEquals("\"v1\"", ifNoneMatch);
+		assertEquals("\"v2\"", feedDB.get("etag"));
+		assertNull(feedDB.get("lastModified"));
+		assertFalse(RSSThreadWorker.getConditionalHeaders(feedDB).containsKey(
+				HttpHeaders.IF_MODIFIED_SINCE));
+	}
+}
@@ -0,0 +1,66 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.jernejerin.DocumentDiff;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Test for class DocumentDiff.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class DocumentDiffTest {
+
+	/**
+	 * Test that only the changed, added and removed fields are in the update.
+	 */
+	@Test
+	public void testDiff() {
+		BasicDBList authors = new BasicDBList();
+		authors.add(new BasicDBObject("name", "Jernej"));
+		DBObject saved = new BasicDBObject("_id", 1)
+				.append("feedUrl", "http://a.com/rss")
+				.append("accessedAt", new Date(0)).append("authors", authors)
+				.append("etag", "1");
+
+		DBObject feed = DocumentDiff.snapshot(saved);
+		ArrayList<BasicDBObject> sameAuthors = new ArrayList<BasicDBObject>();
+		sameAuthors.add(new BasicDBObject("name", "Jernej"));
+		feed.put("authors", sameAuthors);
+		feed.put("accessedAt", new Date(1000));
+		feed.put("title", "Feed");
+		feed.removeField("etag");
+
+		BasicDBObject update = DocumentDiff.diff(saved, feed);
+		DBObject set = (DBObject) update.get("$set");
+		DBObject unset = (DBObject) update.get("$unset");
+		assertEquals(2, set.keySet().size());
+		assertEquals(new Date(1000), set.get("accessedAt"));
+		assertEquals("Feed", set.get("title"));
+		assertEquals(1, unset.keySet().size());
+		assertTrue(unset.containsField("etag"));
+		assertEquals(new Date(0), saved.get("accessedAt"));
+	}
+
+	/**
+	 * Test that the update of the same document is empty.
+	 */
+	@Test
+	public void testDiffSame() {
+		DBObject saved = new BasicDBObject("_id", 1).append("content",
+				new byte[] { 1, 2 });
+		DBObject feed = new BasicDBObject("content", new byte[] { 1, 2 });
+		feed.put("_id", 2);
+		assertTrue(DocumentDiff.diff(saved, feed).isEmpty());
+	}
+}
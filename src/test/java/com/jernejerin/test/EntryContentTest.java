@@ -0,0 +1,94 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Test;
+
+import com.jernejerin.AsyncFetchEngine;
+import com.jernejerin.EntryContent;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Test for class EntryContent and decompression of the fetched bodies.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class EntryContentTest {
+
+	private static final String PAGE = "<html><body>\u010cevapi \u017eganci "
+			+ "\u010cevapi \u017eganci \u010cevapi \u017eganci</body></html>";
+
+	/**
+	 * Test that the compressed and the string content are read the same.
+	 */
+	@Test
+	public void testFullContent() {
+		BasicDBObject compressed = new BasicDBObject();
+		new EntryContent(true).put(compressed, PAGE);
+		assertTrue(compressed.get("fullContent") instanceof byte[]);
+		assertEquals(PAGE, EntryContent.getFullContent(compressed));
+
+		BasicDBObject plain = new BasicDBObject();
+		new EntryContent(false).put(plain, PAGE);
+		assertEquals(PAGE, plain.get("fullContent"));
+		assertEquals(PAGE, EntryContent.getFullContent(plain));
+
+		BasicDBObject none = new BasicDBObject();
+		new EntryContent(true).put(none, null);
+		assertNull(EntryContent.getFullContent(none));
+	}
+
+	/**
+	 * Test that gzip, zlib and raw deflate bodies are decompressed up to the
+	 * maximum number of bytes and that the body that is not compressed as
+	 * specified fails.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testDecompress() throws IOException {
+		byte[] page = PAGE.getBytes(StandardCharsets.UTF_8);
+		byte[] gzip = EntryContent.gzip(PAGE);
+
+		assertArrayEquals(page, AsyncFetchEngine.decompress(gzip, "gzip",
+				Integer.MAX_VALUE));
+		assertArrayEquals(page, AsyncFetchEngine.decompress(
+				deflate(page, false), "deflate", Integer.MAX_VALUE));
+		assertArrayEquals(page, AsyncFetchEngine.decompress(
+				deflate(page, true), "deflate", Integer.MAX_VALUE));
+		assertArrayEquals(page,
+				AsyncFetchEngine.decompress(page, null, Integer.MAX_VALUE));
+
+		assertArrayEquals(Arrays.copyOf(page, 10),
+				AsyncFetchEngine.decompress(gzip, "gzip", 10));
+		byte[] truncated = AsyncFetchEngine.decompress(
+				Arrays.copyOf(gzip, gzip.length - 8), "gzip",
+				Integer.MAX_VALUE);
+		assertArrayEquals(Arrays.copyOf(page, truncated.length), truncated);
+
+		try {
+			AsyncFetchEngine.decompress(page, "gzip", Integer.MAX_VALUE);
+			fail("Body that is not gzip should fail!");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static byte[] deflate(byte[] data, boolean raw) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DeflaterOutputStream out = new DeflaterOutputStream(bytes,
+				new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+		out.write(data);
+		out.close();
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,87 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jernejerin.EntryDigestIndex;
+
+/**
+ * Test for class EntryDigestIndex.
+ * 
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class EntryDigestIndexTest {
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("entries", ".idx");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Test that added digests are found and others are not.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testAddContains() throws IOException {
+		EntryDigestIndex index = new EntryDigestIndex(file.getPath(), 1024);
+		byte[] feedDigest = DigestUtils.sha1("feed");
+		for (int i = 0; i < 500; i++)
+			assertTrue(index.add(EntryDigestIndex.entryDigest(
+					DigestUtils.sha1("entry" + i), feedDigest)));
+
+		for (int i = 0; i < 500; i++)
+			assertTrue("Added digest must be found!",
+					index.contains(EntryDigestIndex.entryDigest(
+							DigestUtils.sha1("entry" + i), feedDigest)));
+		for (int i = 500; i < 1000; i++)
+			assertFalse("Digest was not added!",
+					index.contains(EntryDigestIndex.entryDigest(
+							DigestUtils.sha1("entry" + i), feedDigest)));
+
+		// the same entry of another feed
+		assertFalse(index.contains(EntryDigestIndex.entryDigest(
+				DigestUtils.sha1("entry0"), DigestUtils.sha1("other feed"))));
+		assertEquals(500, index.size());
+		index.close();
+	}
+
+	/**
+	 * Test that index is full at maximal load and that digests are loaded
+	 * from file when it is opened again.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testFullAndWarmStart() throws IOException {
+		EntryDigestIndex index = new EntryDigestIndex(file.getPath(), 16);
+		for (int i = 0; i < 12; i++)
+			assertTrue(index.add(DigestUtils.sha1("entry" + i)));
+		assertFalse("Index must be full!",
+				index.add(DigestUtils.sha1("entry12")));
+		index.close();
+
+		index = new EntryDigestIndex(file.getPath(), 16);
+		assertEquals(12, index.size());
+		for (int i = 0; i < 12; i++)
+			assertTrue(index.contains(DigestUtils.sha1("entry" + i)));
+		index.close();
+	}
+}
@@ -0,0 +1,102 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.jernejerin.BKTree;
+import com.jernejerin.EntryIdIndex;
+
+/**
+ * Test for classes BKTree and EntryIdIndex.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class EntryIdIndexTest {
+
+	/**
+	 * Test that the tracking parameters, the fragment and the case of the
+	 * host are removed from the ids.
+	 */
+	@Test
+	public void testNormalizeId() {
+		assertEquals("http://example.com/news/1?id=5",
+				EntryIdIndex.normalizeId("HTTP://Example.com/news/1?utm_source=rss&id=5&utm_medium=feed#comments"));
+		assertEquals("http://example.com/news/1",
+				EntryIdIndex.normalizeId("http://example.com/news/1?utm_source=rss"));
+		assertEquals("tag:example.com,2014:1",
+				EntryIdIndex.normalizeId(" tag:example.com,2014:1 "));
+	}
+
+	/**
+	 * Test that the ids with changed query parameters are similar, while the
+	 * entries with distinct slugs, numbers or GUIDs are kept.
+	 */
+	@Test
+	public void testIsSimilar() {
+		assertTrue(EntryIdIndex.isSimilar("http://example.com/posts/cats?ref=a",
+				"http://example.com/posts/cats?ref=b", 2));
+		assertTrue(EntryIdIndex.isSimilar("http://example.com/posts/cats?src=rs",
+				"http://example.com/posts/cats", 10));
+
+		assertFalse(EntryIdIndex.isSimilar("http://example.com/posts/cats",
+				"http://example.com/posts/bats", 2));
+		assertFalse(EntryIdIndex.isSimilar("http://example.com/apple",
+				"http://example.com/apply", 2));
+		assertFalse(EntryIdIndex.isSimilar("http://example.com/?p=123",
+				"http://example.com/?p=124", 2));
+		assertFalse(EntryIdIndex.isSimilar("apple", "apply", 2));
+		assertFalse(EntryIdIndex.isSimilar(
+				"tag:example.com,2014:posts/cats-and-dogs",
+				"tag:example.com,2014:posts/cats-and-dogs/", 2));
+	}
+
+	/**
+	 * Test that the tree finds the same strings as comparing with all the
+	 * strings.
+	 */
+	@Test
+	public void testSearch() {
+		Random random = new Random(1);
+		BKTree tree = new BKTree();
+		ArrayList<String> values = new ArrayList<String>();
+		for (int i = 0; i < 2000; i++) {
+			StringBuilder value = new StringBuilder("http://example.com/");
+			for (int j = 0; j < 8; j++)
+				value.append((char) ('a' + random.nextInt(4)));
+			tree.add(value.toString());
+			if (!values.contains(value.toString()))
+				values.add(value.toString());
+		}
+		assertEquals(values.size(), tree.size());
+
+		String searched = "http://example.com/abcdabcd";
+		List<String> expected = new ArrayList<String>();
+		for (String value : values)
+			if (BKTree.distance(value, searched, 2) <= 2)
+				expected.add(value);
+		List<String> found = tree.search(searched, 2);
+		Collections.sort(expected);
+		Collections.sort(found);
+		assertEquals(expected, found);
+		assertFalse(found.isEmpty());
+	}
+
+	/**
+	 * Test the Levenshtein distance and its limit.
+	 */
+	@Test
+	public void testDistance() {
+		assertEquals(3, BKTree.distance("kitten", "sitting", 10));
+		assertEquals(0, BKTree.distance("same", "same", 0));
+		assertTrue(BKTree.distance("kitten", "sitting", 1) > 1);
+		assertTrue(BKTree.distance("a", "abcdef", 2) > 2);
+	}
+}
@@ -0,0 +1,99 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.Date;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.jernejerin.FeedJob;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Test for class FeedJob.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class FeedJobTest {
+
+	/** Session that only creates the bytes messages. */
+	private static final Session SESSION = (Session) Proxy.newProxyInstance(
+			Session.class.getClassLoader(), new Class<?>[] { Session.class },
+			(proxy, method, args) -> {
+				if (method.getName().equals("createBytesMessage"))
+					return new ActiveMQBytesMessage();
+				throw new UnsupportedOperationException(method.getName());
+			});
+
+	/**
+	 * Test that the job read from the message is the same as the job of the
+	 * feed.
+	 *
+	 * @throws JMSException
+	 */
+	@Test
+	public void testRoundTrip() throws JMSException {
+		ObjectId feedId = new ObjectId();
+		Date queuedAt = new Date(1399370400000L);
+		DBObject feedDB = new BasicDBObject("_id", feedId)
+				.append("feedUrl", "http://example.com/feed")
+				.append("etag", "\"v1\"").append("queuedAt", queuedAt)
+				.append("pollInterval", 300).append("title", "Example");
+
+		FeedJob job = FeedJob.fromMessage(read(FeedJob.fromFeed(feedDB)
+				.toMessage(SESSION)));
+		assertEquals(feedId, job.getFeedId());
+		assertEquals("http://example.com/feed", job.getFeedUrl());
+		assertEquals("\"v1\"", job.getEtag());
+		assertNull(job.getLastModified());
+		assertEquals(queuedAt, job.getQueuedAt());
+		assertEquals(300, job.getPollInterval());
+		assertEquals(new BasicDBObject("_id", feedId)
+				.append("feedUrl", "http://example.com/feed")
+				.append("etag", "\"v1\"").append("queuedAt", queuedAt),
+				job.toFeed());
+
+		// the feeds inserted with string ids
+		job = FeedJob.fromMessage(read(new FeedJob("feed1",
+				"http://example.com/feed", null, "Tue, 06 May 2014 10:00:00 GMT",
+				null, 0).toMessage(SESSION)));
+		assertEquals("feed1", job.getFeedId());
+		assertEquals("Tue, 06 May 2014 10:00:00 GMT", job.getLastModified());
+		assertNull(job.getQueuedAt());
+	}
+
+	/**
+	 * Test that the message of an unknown version is not read.
+	 *
+	 * @throws JMSException
+	 */
+	@Test(expected = JMSException.class)
+	public void testBadVersion() throws JMSException {
+		BytesMessage msg = SESSION.createBytesMessage();
+		msg.writeByte((byte) 2);
+		msg.writeUTF("http://example.com/feed");
+		FeedJob.fromMessage(read(msg));
+	}
+
+	/**
+	 * Returns the message in read only mode, as it is received.
+	 *
+	 * @param msg
+	 * @return
+	 * @throws JMSException
+	 */
+	private static BytesMessage read(BytesMessage msg) throws JMSException {
+		msg.reset();
+		return msg;
+	}
+}
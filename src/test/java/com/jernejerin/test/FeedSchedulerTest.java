@@ -0,0 +1,93 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.jernejerin.FeedScheduler;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Test for class FeedScheduler.
+ * 
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class FeedSchedulerTest {
+
+	private static final int MIN_INTERVAL = 5 * 60;
+	private static final int MAX_INTERVAL = 24 * 60 * 60;
+
+	/**
+	 * Test that feeds are taken in order of the time they are due and that
+	 * rescheduling replaces the previous schedule.
+	 * 
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testTakeInDueOrder() throws InterruptedException {
+		FeedScheduler scheduler = new FeedScheduler(MIN_INTERVAL, MAX_INTERVAL);
+		long now = System.currentTimeMillis();
+		scheduler.schedule("a", now - 1000);
+		scheduler.schedule("b", now - 3000);
+		scheduler.schedule("c", now - 2000);
+
+		// reschedule a into the future
+		scheduler.schedule("a", now + 60 * 1000);
+
+		assertEquals("b", scheduler.take(0));
+		assertEquals("c", scheduler.take(0));
+		assertNull("Feed a is not due yet!", scheduler.take(10));
+		assertEquals(1, scheduler.size());
+	}
+
+	/**
+	 * Test that busy feed is polled more often than a feed with no new
+	 * entries.
+	 */
+	@Test
+	public void testNextPollAdaptsToEntryRate() {
+		FeedScheduler scheduler = new FeedScheduler(MIN_INTERVAL, MAX_INTERVAL);
+		long now = System.currentTimeMillis();
+		Date polledAt = new Date(now - 3600 * 1000);
+
+		BasicDBObject busyFeed = new BasicDBObject("pollInterval", 3600)
+				.append("polledAt", polledAt);
+		BasicDBObject quietFeed = new BasicDBObject("pollInterval", 3600)
+				.append("polledAt", polledAt);
+
+		int busyInterval = (Integer) scheduler.nextPoll(busyFeed, 6, null, now)
+				.get("pollInterval");
+		int quietInterval = (Integer) scheduler.nextPoll(quietFeed, 0, null,
+				now).get("pollInterval");
+
+		assertEquals("Six entries per hour should poll every 10 min!", 600,
+				busyInterval);
+		assertEquals("Quiet feed should back off!", 7200, quietInterval);
+	}
+
+	/**
+	 * Test that ttl of the channel and interval limits are respected.
+	 */
+	@Test
+	public void testNextPollBounds() {
+		FeedScheduler scheduler = new FeedScheduler(MIN_INTERVAL, MAX_INTERVAL);
+		long now = System.currentTimeMillis();
+
+		BasicDBObject feed = new BasicDBObject("pollInterval", MIN_INTERVAL)
+				.append("polledAt", new Date(now - 60 * 1000)).append("ttl", 60);
+		assertEquals(3600,
+				scheduler.nextPoll(feed, 100, null, now).get("pollInterval"));
+
+		feed = new BasicDBObject("pollInterval", MAX_INTERVAL);
+		assertEquals(MAX_INTERVAL,
+				scheduler.nextPoll(feed, 0, new Date(0), now).get("pollInterval"));
+
+		feed = new BasicDBObject();
+		assertEquals(MIN_INTERVAL,
+				scheduler.nextPoll(feed, 1000, null, now).get("pollInterval"));
+	}
+}
@@ -0,0 +1,138 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jernejerin.HostScheduler;
+
+/**
+ * Test for class HostScheduler.
+ * 
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class HostSchedulerTest {
+
+	private HostScheduler scheduler;
+
+	@Before
+	public void setUp() {
+		// 10 requests per second after the burst of 2
+		scheduler = new HostScheduler(1, 10, 2);
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.close();
+	}
+
+	/**
+	 * Test that the requests of the same host are started at the given rate
+	 * and one at a time.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testRateAndConcurrency() throws Exception {
+		final List<Long> started = Collections
+				.synchronizedList(new ArrayList<Long>());
+		final int[] running = new int[2];
+		List<CompletableFuture<Integer>> requests = new ArrayList<CompletableFuture<Integer>>();
+		long start = System.nanoTime();
+		for (int i = 0; i < 6; i++) {
+			final int n = i;
+			requests.add(scheduler.submit("http://www.example.com/" + i, () -> {
+				started.add(System.nanoTime());
+				synchronized (running) {
+					running[1] = Math.max(running[1], ++running[0]);
+				}
+				return CompletableFuture.supplyAsync(() -> {
+					synchronized (running) {
+						running[0]--;
+					}
+					return n;
+				});
+			}));
+		}
+		for (int i = 0; i < 6; i++)
+			assertEquals(i, requests.get(i).get().intValue());
+
+		assertEquals("Only one request of the host at once!", 1, running[1]);
+		// 2 requests at once, the other 4 at 100 ms each
+		long elapsed = (started.get(5) - start) / 1000000;
+		assertTrue("Requests started too fast: " + elapsed, elapsed >= 350);
+	}
+
+	/**
+	 * Test that a throttled host does not hold back the requests of other
+	 * hosts.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadySoonest() throws Exception {
+		final List<String> order = Collections
+				.synchronizedList(new ArrayList<String>());
+		List<CompletableFuture<String>> requests = new ArrayList<CompletableFuture<String>>();
+		for (int i = 0; i < 4; i++)
+			requests.add(submit("http://slow.example.com/" + i, "slow", order));
+		requests.add(submit("http://fast.example.com/", "fast", order));
+		for (CompletableFuture<String> request : requests)
+			request.get();
+
+		assertTrue("Other host should not wait for the throttled one!",
+				order.indexOf("fast") < 3);
+	}
+
+	/**
+	 * Test that the requests that wait for the busy host are counted.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testWaiting() throws Exception {
+		CompletableFuture<String> running = new CompletableFuture<String>();
+		scheduler.submit("http://busy.example.com/0", () -> running);
+		List<CompletableFuture<String>> requests = new ArrayList<CompletableFuture<String>>();
+		for (int i = 1; i < 4; i++)
+			requests.add(submit("http://busy.example.com/" + i, "busy",
+					new ArrayList<String>()));
+		Thread.sleep(100);
+		assertEquals(3, scheduler.getWaiting("http://BUSY.example.com/"));
+		assertEquals(0, scheduler.getWaiting("http://idle.example.com/"));
+
+		running.complete("busy");
+		for (CompletableFuture<String> request : requests)
+			request.get();
+		assertEquals(0, scheduler.getWaiting("http://busy.example.com/"));
+	}
+
+	/**
+	 * Test that the hosts of the same site have the same site.
+	 */
+	@Test
+	public void testSite() {
+		assertEquals("tqn.com", HostScheduler.getSite("http://0.tqn.com/6/g/a/b.xml"));
+		assertEquals("example.com", HostScheduler.getSite("http://News.Example.com/a"));
+		assertEquals("bbc.co.uk", HostScheduler.getSite("http://feeds.bbc.co.uk/news"));
+		assertEquals("example.com", HostScheduler.getSite("https://example.com/"));
+		assertEquals("localhost", HostScheduler.getSite("http://localhost:8080/"));
+	}
+
+	private CompletableFuture<String> submit(String url, final String host,
+			final List<String> order) {
+		return scheduler.submit(url, () -> {
+			order.add(host);
+			return CompletableFuture.completedFuture(host);
+		});
+	}
+}
@@ -0,0 +1,73 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.jernejerin.InsertResources;
+
+/**
+ * Test for reading the feeds in class InsertResources.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class InsertResourcesTest {
+
+	/**
+	 * Test that the same feeds written differently have the same URL.
+	 */
+	@Test
+	public void testNormalizeFeedUrl() {
+		assertEquals("http://example.com/rss?a=1",
+				InsertResources.normalizeFeedUrl(" HTTP://Example.COM:80/rss?a=1#top "));
+		assertEquals("https://example.com/",
+				InsertResources.normalizeFeedUrl("https://example.com:443"));
+		assertEquals("http://example.com:8080/Feed",
+				InsertResources.normalizeFeedUrl("http://example.com:8080/Feed"));
+		assertNull(InsertResources.normalizeFeedUrl("feedUrl"));
+		assertNull(InsertResources.normalizeFeedUrl("ftp://example.com/rss"));
+	}
+
+	/**
+	 * Test that the URLs are read from the first column and the other lines
+	 * are skipped.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadCsv() throws Exception {
+		ArrayList<String> feeds = new ArrayList<String>();
+		InsertResources.readCsv(new BufferedReader(new StringReader(
+				"feedUrl,title\n\"http://a.com/rss\",A\nhttp://b.com/rss\n\n")),
+				feeds::add);
+		assertEquals(Arrays.asList("http://a.com/rss", "http://b.com/rss"),
+				feeds);
+	}
+
+	/**
+	 * Test that the URLs are read from the nested outlines.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadOpml() throws Exception {
+		String opml = "<?xml version=\"1.0\"?><opml version=\"2.0\"><head/><body>"
+				+ "<outline text=\"News\"><outline text=\"A\" type=\"rss\" xmlUrl=\"http://a.com/rss\"/>"
+				+ "<outline text=\"B\" type=\"rss\" xmlUrl=\"http://B.com/atom\"/></outline>"
+				+ "</body></opml>";
+		ArrayList<String> feeds = new ArrayList<String>();
+		InsertResources.readOpml(new ByteArrayInputStream(
+				opml.getBytes(StandardCharsets.UTF_8)), feeds::add);
+		assertEquals(Arrays.asList("http://a.com/rss", "http://b.com/atom"),
+				feeds);
+	}
+}
@@ -13,6 +13,7 @@ import org.apache.log4j.PropertyConfigurator;
 import com.aliasi.spell.JaccardDistance;
 import com.aliasi.tokenizer.IndoEuropeanTokenizerFactory;
 import com.aliasi.tokenizer.TokenizerFactory;
+import com.jernejerin.EntryContent;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
@@ -29,7 +30,6 @@ public class JaccardSimmilarityWebPage {
 	/**
 	 * @param args
 	 */
-	@SuppressWarnings("unchecked")
 	public static void main(String[] args) {
 		Properties props = new Properties();
 		MongoClient mongoClient = null;
@@ -60,7 +60,16 @@ public class JaccardSimmilarityWebPage {
 					DBObject feed = cursor.next();
 					
 					// get all entries for this feed
-					ArrayList<String> idList = (ArrayList<String>) feed.get("entries");
+					ArrayList<String> idList = new ArrayList<String>();
+					DBCursor entriesCursor = entriesColl.find(
+							new BasicDBObject("feedId", feed.get("_id")),
+							new BasicDBObject("idHash", 1));
+					try {
+						while (entriesCursor.hasNext())
+							idList.add((String) entriesCursor.next().get("idHash"));
+					} finally {
+						entriesCursor.close();
+					}
 					
 					// we need list od id's
 					if (idList != null) {
@@ -68,17 +77,19 @@ public class JaccardSimmilarityWebPage {
 						for (int i = 0; i < idList.size(); i++) {
 							for (int j = i + 1; j < idList.size(); j++) {
 								// query for entries with this id
-								queryIdHash = new BasicDBObject("idHash", idList.get(i));
+								queryIdHash = new BasicDBObject("feedId", feed.get("_id"))
+										.append("idHash", idList.get(i));
 								entry1 = entriesColl.findOne(queryIdHash);
 								
-								queryIdHash = new BasicDBObject("idHash", idList.get(j));
+								queryIdHash = new BasicDBObject("feedId", feed.get("_id"))
+										.append("idHash", idList.get(j));
 								entry2 = entriesColl.findOne(queryIdHash);
 	
 								// we need both two entries
 								if (entry1 != null && entry2 != null) {
 									// check if full content is available
-									String fullContent1 = (String) entry1.get("fullContent");
-									String fullContent2 = (String) entry2.get("fullContent");
+									String fullContent1 = EntryContent.getFullContent(entry1);
+									String fullContent2 = EntryContent.getFullContent(entry2);
 									
 									// we need full content of both entries
 									if (fullContent1 != null && fullContent2 != null) {
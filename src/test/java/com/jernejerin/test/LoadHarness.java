@@ -0,0 +1,624 @@
+package com.jernejerin.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+
+import org.apache.activemq.broker.Broker;
+import org.apache.activemq.broker.BrokerFilter;
+import org.apache.activemq.broker.BrokerPlugin;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.ProducerBrokerExchange;
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.Message;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+import com.jernejerin.FeedJob;
+import com.jernejerin.InsertResources;
+import com.jernejerin.RSSDelegateWorker;
+import com.jernejerin.RSSMainWorker;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.util.JSON;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Load test of the whole pipeline on one machine. Synthetic feeds are served
+ * by an embedded HTTP server on the loopback addresses, the jobs are sent
+ * through an embedded broker on vm:// and the RSSDelegateWorker and the given
+ * number of RSSMainWorkers run in this VM against a scratch database of the
+ * local MongoDB, which is dropped at the start. The polled feeds per second,
+ * the saved entries per second, the percentiles of the poll latency, i.e. the
+ * time from sending the job to receiving the report, and the heap and GC of
+ * the VM are reported periodically and at the end.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class LoadHarness {
+
+	// number of synthetic feeds
+	private static int feeds = 5000;
+
+	// number of entries in each feed
+	private static int entries = 20;
+
+	// new entries per feed per minute
+	private static double churn = 1;
+
+	// mean latency of the responses in milliseconds
+	private static int latency = 50;
+
+	// share of the responses with an error
+	private static double errorRate = 0.01;
+
+	// size of the web page of an entry in bytes
+	private static int pageBytes = 8192;
+
+	// number of loopback hosts the feeds are spread over
+	private static int hosts = 250;
+
+	// number of RSSMainWorkers
+	private static int workers = 2;
+
+	// the fixed poll interval of the feeds in seconds
+	private static int pollInterval = 60;
+
+	// duration of the test in seconds
+	private static int duration = 300;
+
+	// interval of the reports in seconds
+	private static int reportInterval = 10;
+
+	// MongoDB with the scratch database
+	private static String hostDB = "localhost";
+	private static int portDB = 27017;
+	private static String dbName = "rssdb_load";
+
+	// additional arguments of the RSSMainWorkers
+	private static String workerArgs = "";
+
+	private static final String SUBJECT = "RSSFEEDSQUEUE";
+	private static final String SUBJECT_DONE = "RSSFEEDSDONEQUEUE";
+
+	// logger for this class
+	private static final Logger LOG = Logger.getLogger(LoadHarness.class);
+
+	// start of the test
+	private static long start;
+
+	// responses of the HTTP server
+	private static final AtomicLong feedsServed = new AtomicLong();
+	private static final AtomicLong notModified = new AtomicLong();
+	private static final AtomicLong errors = new AtomicLong();
+	private static final AtomicLong pagesServed = new AtomicLong();
+	private static final AtomicLong bytesServed = new AtomicLong();
+
+	// polls reported to the delegate and their latencies
+	private static final AtomicLong polls = new AtomicLong();
+	private static final Latencies intervalLatencies = new Latencies();
+	private static final Latencies totalLatencies = new Latencies();
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		// configure logger
+		Properties props = new Properties();
+		props.load(new FileInputStream("log4j.properties"));
+		PropertyConfigurator.configure(props);
+
+		// create Options object
+		Options options = new Options();
+
+		// add options
+		options.addOption("help", false, "help for usage");
+		options.addOption("feeds", true, "number of synthetic feeds");
+		options.addOption("entries", true, "number of entries in each feed");
+		options.addOption("churn", true,
+				"new entries per feed per minute");
+		options.addOption("latency", true,
+				"mean latency of the responses in milliseconds");
+		options.addOption("errorRate", true,
+				"share of the responses with status 500");
+		options.addOption("pageBytes", true,
+				"size of the web page of an entry in bytes");
+		options.addOption("hosts", true,
+				"number of loopback hosts the feeds are spread over");
+		options.addOption("workers", true, "number of RSSMainWorkers");
+		options.addOption("pollInterval", true,
+				"the poll interval of the feeds in seconds");
+		options.addOption("duration", true, "duration of the test in seconds");
+		options.addOption("reportInterval", true,
+				"interval of the reports in seconds");
+		options.addOption("hostDB", true, "database's host address");
+		options.addOption("portDB", true,
+				"port on which the database is running");
+		options.addOption("dbName", true,
+				"the name of the scratch database, dropped at the start");
+		options.addOption("workerArgs", true,
+				"additional arguments of the RSSMainWorkers");
+
+		// parser for command line arguments
+		CommandLineParser parser = new GnuParser();
+		CommandLine cmd = parser.parse(options, args);
+
+		if (cmd.hasOption("help")) {
+			HelpFormatter help = new HelpFormatter();
+			help.printHelp("java com.jernejerin.test.LoadHarness", options);
+			System.exit(-1);
+		}
+		if (cmd.getOptionValue("feeds") != null)
+			feeds = Integer.parseInt(cmd.getOptionValue("feeds"));
+		if (cmd.getOptionValue("entries") != null)
+			entries = Integer.parseInt(cmd.getOptionValue("entries"));
+		if (cmd.getOptionValue("churn") != null)
+			churn = Double.parseDouble(cmd.getOptionValue("churn"));
+		if (cmd.getOptionValue("latency") != null)
+			latency = Integer.parseInt(cmd.getOptionValue("latency"));
+		if (cmd.getOptionValue("errorRate") != null)
+			errorRate = Double.parseDouble(cmd.getOptionValue("errorRate"));
+		if (cmd.getOptionValue("pageBytes") != null)
+			pageBytes = Integer.parseInt(cmd.getOptionValue("pageBytes"));
+		if (cmd.getOptionValue("hosts") != null)
+			hosts = Integer.parseInt(cmd.getOptionValue("hosts"));
+		if (cmd.getOptionValue("workers") != null)
+			workers = Integer.parseInt(cmd.getOptionValue("workers"));
+		if (cmd.getOptionValue("pollInterval") != null)
+			pollInterval = Integer.parseInt(cmd.getOptionValue("pollInterval"));
+		if (cmd.getOptionValue("duration") != null)
+			duration = Integer.parseInt(cmd.getOptionValue("duration"));
+		if (cmd.getOptionValue("reportInterval") != null)
+			reportInterval = Integer.parseInt(cmd
+					.getOptionValue("reportInterval"));
+		if (cmd.getOptionValue("hostDB") != null)
+			hostDB = cmd.getOptionValue("hostDB");
+		if (cmd.getOptionValue("portDB") != null)
+			portDB = Integer.parseInt(cmd.getOptionValue("portDB"));
+		if (cmd.getOptionValue("dbName") != null)
+			dbName = cmd.getOptionValue("dbName");
+		if (cmd.getOptionValue("workerArgs") != null)
+			workerArgs = cmd.getOptionValue("workerArgs");
+
+		File workDir = Files.createTempDirectory("rssLoad").toFile();
+		start = System.currentTimeMillis();
+
+		// feeds and web pages on the loopback addresses 127.0.0.x, so that
+		// every feed of a host is limited by the host scheduler as in
+		// production
+		HttpServer server = HttpServer.create(new InetSocketAddress(0), 1024);
+		server.createContext("/", LoadHarness::serve);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		int port = server.getAddress().getPort();
+		LOG.info("Serving synthetic feeds on port " + port);
+
+		// broker in this VM. The jobs and the reports are tracked by the
+		// plugin for the latency of the polls
+		BrokerService broker = new BrokerService();
+		broker.setBrokerName("load");
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.setUseShutdownHook(false);
+		broker.setPlugins(new BrokerPlugin[] { PollTracker::new });
+		broker.start();
+		broker.waitUntilStarted();
+		String hostBroker = "vm://load?create=false";
+
+		// fresh scratch database with the synthetic feeds
+		MongoClient mongoClient = new MongoClient(hostDB, portDB);
+		mongoClient.dropDatabase(dbName);
+		File feedsFile = new File(workDir, "feeds.csv");
+		PrintWriter pw = new PrintWriter(feedsFile, "UTF-8");
+		try {
+			for (int i = 0; i < feeds; i++)
+				pw.println("http://127.0.0." + (1 + i % hosts) + ":" + port
+						+ "/feed/" + i);
+		} finally {
+			pw.close();
+		}
+		InsertResources.main(new String[] { "-host", hostDB, "-port",
+				String.valueOf(portDB), "-dbName", dbName, "-filePath",
+				feedsFile.getPath() });
+		DBCollection entriesColl = mongoClient.getDB(dbName).getCollection(
+				"entries");
+
+		// the workers are started one after another, as their configuration
+		// is static. The configuration is read by the time the worker
+		// creates its journal
+		for (int i = 0; i < workers; i++) {
+			File journalDir = new File(workDir, "journal" + i);
+			final String[] mainArgs = (workerArgs(i) + " -hostBroker "
+					+ hostBroker + " -hostDB " + hostDB + " -portDB " + portDB
+					+ " -dbName " + dbName + " -digestIndexFile "
+					+ new File(workDir, "entries" + i + ".idx") + " -journalDir "
+					+ journalDir).trim().split("\\s+");
+			Thread worker = new Thread(() -> {
+				try {
+					RSSMainWorker.main(mainArgs);
+				} catch (JMSException e) {
+					LOG.fatal("Problem with JMS: " + e.getMessage());
+				}
+			}, "RSSMainWorker-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			while (!journalDir.isDirectory()) {
+				if (!worker.isAlive())
+					throw new IllegalStateException("Worker " + i
+							+ " did not start.");
+				Thread.sleep(100);
+			}
+		}
+
+		// the delegate polls every feed at the fixed interval
+		final String[] delegateArgs = { "-hostBroker", hostBroker, "-hostDB",
+				hostDB, "-portDB", String.valueOf(portDB), "-dbName", dbName,
+				"-minInterval", String.valueOf(pollInterval), "-maxInterval",
+				String.valueOf(pollInterval) };
+		Thread delegate = new Thread(() -> {
+			try {
+				RSSDelegateWorker.main(delegateArgs);
+			} catch (JMSException e) {
+				LOG.fatal("Problem with JMS: " + e.getMessage());
+			}
+		}, "RSSDelegateWorker");
+		delegate.setDaemon(true);
+		delegate.start();
+		System.out.println("Running " + feeds + " feeds on " + workers
+				+ " workers for " + duration + " s.");
+
+		// report the interval until the end of the test
+		long started = System.currentTimeMillis();
+		long entriesStart = entriesColl.count();
+		long lastReport = started;
+		long lastPolls = 0;
+		long lastEntries = entriesStart;
+		long lastGcCount = gcCount();
+		long lastGcTime = gcTime();
+		long end = started + duration * 1000L;
+		while (System.currentTimeMillis() < end) {
+			Thread.sleep(Math.min(reportInterval * 1000L,
+					end - System.currentTimeMillis()));
+			long now = System.currentTimeMillis();
+			double seconds = (now - lastReport) / 1000.0;
+			long pollsNow = polls.get();
+			long entriesNow = entriesColl.count();
+			long[] sorted = intervalLatencies.drain();
+			System.out.println(String.format(Locale.US,
+					"%5ds feeds/s %8.1f entries/s %8.1f p50 %6d ms p99 %6d ms"
+							+ " | 304 %d errors %d pages %d MB %d | heap %d MB"
+							+ " gc %d (%d ms)", (now - started) / 1000,
+					(pollsNow - lastPolls) / seconds,
+					(entriesNow - lastEntries) / seconds,
+					percentile(sorted, 0.5), percentile(sorted, 0.99),
+					notModified.get(), errors.get(), pagesServed.get(),
+					bytesServed.get() >> 20, heapUsed() >> 20, gcCount()
+							- lastGcCount, gcTime() - lastGcTime));
+			lastReport = now;
+			lastPolls = pollsNow;
+			lastEntries = entriesNow;
+			lastGcCount = gcCount();
+			lastGcTime = gcTime();
+		}
+
+		// summary of the whole test
+		double seconds = (System.currentTimeMillis() - started) / 1000.0;
+		long[] sorted = totalLatencies.drain();
+		System.out.println(String.format(Locale.US,
+				"Total: %d polls, feeds/s %.1f, entries/s %.1f, p50 %d ms,"
+						+ " p99 %d ms, max %d ms, feeds served %d, 304 %d,"
+						+ " errors %d, gc %d (%d ms)", polls.get(), polls.get()
+						/ seconds, (entriesColl.count() - entriesStart)
+						/ seconds, percentile(sorted, 0.5),
+				percentile(sorted, 0.99), sorted.length > 0 ? sorted[sorted.length - 1]
+						: 0, feedsServed.get(), notModified.get(),
+				errors.get(), gcCount(), gcTime()));
+		System.out.println("Journals and digest indexes are in " + workDir);
+
+		// the workers and the delegate run until the VM exits
+		server.stop(0);
+		mongoClient.close();
+		System.exit(0);
+	}
+
+	/**
+	 * Serves the feed /feed/{feed} or the web page /page/{feed}/{entry}. The
+	 * newest entry of a feed grows with the churn, each feed at its own
+	 * phase, and the ETag of the feed is its newest entry.
+	 *
+	 * @param exchange
+	 * @throws IOException
+	 */
+	private static void serve(HttpExchange exchange) throws IOException {
+		try {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (latency > 0)
+				Thread.sleep(latency / 2 + random.nextInt(latency + 1));
+			if (random.nextDouble() < errorRate) {
+				errors.incrementAndGet();
+				exchange.sendResponseHeaders(500, -1);
+				return;
+			}
+
+			String[] path = exchange.getRequestURI().getPath().split("/");
+			String host = exchange.getRequestHeaders().getFirst("Host");
+			byte[] body;
+			if (path.length == 3 && path[1].equals("feed")) {
+				int feed = Integer.parseInt(path[2]);
+				long newest = newestEntry(feed);
+				String etag = "\"" + feed + "-" + newest + "\"";
+				exchange.getResponseHeaders().set("ETag", etag);
+				if (etag.equals(exchange.getRequestHeaders().getFirst(
+						"If-None-Match"))) {
+					notModified.incrementAndGet();
+					exchange.sendResponseHeaders(304, -1);
+					return;
+				}
+				feedsServed.incrementAndGet();
+				body = rss(host, feed, newest).getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type",
+						"application/rss+xml; charset=UTF-8");
+			} else if (path.length == 4 && path[1].equals("page")) {
+				pagesServed.incrementAndGet();
+				body = page(Integer.parseInt(path[2]), Long.parseLong(path[3]))
+						.getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type",
+						"text/html; charset=UTF-8");
+			} else {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			bytesServed.addAndGet(body.length);
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream os = exchange.getResponseBody();
+			os.write(body);
+			os.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (NumberFormatException e) {
+			exchange.sendResponseHeaders(404, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Returns the additional arguments of the i-th worker. The workers in the
+	 * same VM cannot share the page store or the metrics port, so the worker
+	 * gets the subdirectory worker{i} of pageStoreDir and the port
+	 * metricsPort + i.
+	 *
+	 * @param i
+	 * @return
+	 */
+	private static String workerArgs(int i) {
+		String[] args = workerArgs.trim().split("\\s+");
+		for (int j = 0; j < args.length - 1; j++) {
+			if (args[j].equals("-pageStoreDir"))
+				args[j + 1] = new File(args[j + 1], "worker" + i).getPath();
+			else if (args[j].equals("-metricsPort")
+					&& Integer.parseInt(args[j + 1]) > 0)
+				args[j + 1] = String.valueOf(Integer.parseInt(args[j + 1]) + i);
+		}
+		return String.join(" ", args);
+	}
+
+	/**
+	 * Returns the number of the newest entry of the feed at this moment.
+	 *
+	 * @param feed
+	 * @return
+	 */
+	private static long newestEntry(int feed) {
+		if (churn <= 0)
+			return entries;
+		long period = (long) (60000 / churn);
+		long phase = (feed * 7919L) % period;
+		return entries + (System.currentTimeMillis() - start + phase) / period;
+	}
+
+	/**
+	 * Returns RSS 2.0 feed with the latest entries of the feed, the newest
+	 * first.
+	 *
+	 * @param host
+	 * @param feed
+	 * @param newest
+	 * @return
+	 */
+	private static String rss(String host, int feed, long newest) {
+		SimpleDateFormat rfc822 = new SimpleDateFormat(
+				"EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+		rfc822.setTimeZone(TimeZone.getTimeZone("UTC"));
+		long period = churn > 0 ? (long) (60000 / churn) : 60000;
+		long phase = churn > 0 ? (feed * 7919L) % period : 0;
+
+		StringBuilder rss = new StringBuilder(entries * 400 + 512);
+		rss.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		rss.append("<rss version=\"2.0\"><channel>\n");
+		rss.append("<title>Feed ").append(feed).append("</title>");
+		rss.append("<link>http://").append(host).append("/</link>");
+		rss.append("<description>Synthetic feed</description>\n");
+		for (long i = newest; i > newest - entries && i > 0; i--) {
+			String link = "http://" + host + "/page/" + feed + "/" + i;
+			rss.append("<item><title>Story ").append(i).append(" of feed ")
+					.append(feed).append("</title>");
+			rss.append("<link>").append(link).append("</link>");
+			rss.append("<guid>").append(link).append("</guid>");
+			rss.append("<description>").append(words(feed, i, 200))
+					.append("</description>");
+			rss.append("<pubDate>")
+					.append(rfc822.format(new Date(start - phase + (i - entries)
+							* period))).append("</pubDate></item>\n");
+		}
+		rss.append("</channel></rss>\n");
+		return rss.toString();
+	}
+
+	/**
+	 * Returns the web page of the entry of the feed.
+	 *
+	 * @param feed
+	 * @param entry
+	 * @return
+	 */
+	private static String page(int feed, long entry) {
+		return "<html><head><title>Story " + entry + " of feed " + feed
+				+ "</title></head><body><p>" + words(feed, entry, pageBytes)
+				+ "</p></body></html>";
+	}
+
+	/**
+	 * Returns the text of the entry of the feed with about the given number
+	 * of characters. The text is different for every entry, so no entry is a
+	 * near duplicate of another.
+	 *
+	 * @param feed
+	 * @param entry
+	 * @param length
+	 * @return
+	 */
+	private static String words(int feed, long entry, int length) {
+		Random random = new Random(feed * 1000003L + entry);
+		StringBuilder text = new StringBuilder(length + 16);
+		while (text.length() < length)
+			text.append(Integer.toString(random.nextInt(100000), 36)).append(
+					' ');
+		return text.toString();
+	}
+
+	private static long heapUsed() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+				.getUsed();
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			count += Math.max(gc.getCollectionCount(), 0);
+		return count;
+	}
+
+	private static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			time += Math.max(gc.getCollectionTime(), 0);
+		return time;
+	}
+
+	/**
+	 * Returns the percentile of the sorted latencies.
+	 *
+	 * @param sorted
+	 * @param p
+	 * @return
+	 */
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		return sorted[Math.max((int) Math.ceil(p * sorted.length) - 1, 0)];
+	}
+
+	/**
+	 * This class represents the recorded latencies of the polls.
+	 */
+	private static class Latencies {
+		private long[] latencies = new long[1024];
+		private int size;
+
+		synchronized void add(long latency) {
+			if (size == latencies.length)
+				latencies = Arrays.copyOf(latencies, size * 2);
+			latencies[size++] = latency;
+		}
+
+		/**
+		 * Returns the sorted latencies recorded so far and starts anew.
+		 *
+		 * @return
+		 */
+		synchronized long[] drain() {
+			long[] sorted = Arrays.copyOf(latencies, size);
+			Arrays.sort(sorted);
+			size = 0;
+			return sorted;
+		}
+	}
+
+	/**
+	 * This class represents the broker plugin, which records the time each
+	 * job is sent to the workers and the latency of the poll when its report
+	 * is sent to the delegate.
+	 */
+	private static class PollTracker extends BrokerFilter {
+		private final ConcurrentHashMap<Object, Long> sentAt = new ConcurrentHashMap<Object, Long>();
+
+		PollTracker(Broker next) {
+			super(next);
+		}
+
+		@Override
+		public void send(ProducerBrokerExchange producerExchange,
+				Message messageSend) throws Exception {
+			String destination = messageSend.getDestination()
+					.getPhysicalName();
+			try {
+				if (destination.equals(SUBJECT)
+						&& messageSend instanceof ActiveMQBytesMessage) {
+					ActiveMQBytesMessage job = (ActiveMQBytesMessage) messageSend
+							.copy();
+					job.setReadOnlyBody(true);
+					sentAt.put(FeedJob.fromMessage(job).getFeedId(),
+							System.currentTimeMillis());
+				} else if (destination.equals(SUBJECT_DONE)
+						&& messageSend instanceof ActiveMQTextMessage) {
+					DBObject pollDB = (DBObject) JSON
+							.parse(((ActiveMQTextMessage) messageSend.copy())
+									.getText());
+					Long sent = sentAt.remove(pollDB.get("_id"));
+					polls.incrementAndGet();
+					if (sent != null) {
+						long latency = System.currentTimeMillis() - sent;
+						intervalLatencies.add(latency);
+						totalLatencies.add(latency);
+					}
+				}
+			} catch (JMSException e) {
+				LOG.error("Problem with JMS: " + e.getMessage());
+			}
+			super.send(producerExchange, messageSend);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jernejerin.MinHash;
+import com.jernejerin.PageText;
+
+/**
+ * Test for classes PageText and MinHash.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class MinHashTest {
+
+	private static final String ARTICLE = "The city council approved the new budget on Monday after a long "
+			+ "debate about the funding of public transport, schools and the renovation of the old "
+			+ "library. The mayor said the budget is balanced and that the taxes will not be raised "
+			+ "next year. The opposition criticised the cuts in the culture department and announced "
+			+ "that it will propose changes when the budget is revised in autumn. ";
+
+	/**
+	 * Test that the text is extracted without the markup, scripts and styles.
+	 */
+	@Test
+	public void testExtract() {
+		PageText text = PageText.extract("<html><head><style>p { color: red }</style>"
+				+ "<script>var a = '<p>';</script></head><body><!-- menu -->"
+				+ "<p>Hello&nbsp;<b>World</b>!</p><SCRIPT>x()</SCRIPT>2014</body></html>");
+		assertEquals(Arrays.asList("hello", "world", "2014"), text.getWords());
+	}
+
+	/**
+	 * Test that the same article with different markup has nearly the same
+	 * signature and a common bucket, and that a different article does not.
+	 */
+	@Test
+	public void testNearDuplicates() {
+		MinHash minHash = new MinHash(16, 8);
+		int[] page = minHash.signature(PageText.extract(
+				"<html><body><div class=\"article\">" + ARTICLE
+						+ "</div><div>Share this</div></body></html>")
+				.getShingles());
+		int[] copy = minHash.signature(PageText.extract(
+				"<html><head><script>track()</script></head><body><p>"
+						+ ARTICLE + "</p><p>Comments</p></body></html>")
+				.getShingles());
+		int[] other = minHash.signature(PageText.extract(
+				"<p>The football club signed a new coach from Spain, who will lead the team "
+						+ "in the next three seasons and hopes to win the national championship.</p>")
+				.getShingles());
+
+		assertTrue(MinHash.similarity(page, copy) > 0.8);
+		assertTrue(MinHash.similarity(page, other) < 0.2);
+
+		List<Long> buckets = minHash.buckets(page);
+		assertEquals(16, buckets.size());
+		assertFalse(Collections.disjoint(buckets,
+				minHash.buckets(copy)));
+		assertTrue(Collections.disjoint(buckets,
+				minHash.buckets(other)));
+		assertArrayEquals(page, MinHash.fromBytes(MinHash.toBytes(page)));
+	}
+}
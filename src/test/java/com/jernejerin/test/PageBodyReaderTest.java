@@ -0,0 +1,69 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.jernejerin.PageBodyReader;
+
+/**
+ * Test for class PageBodyReader.
+ * 
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class PageBodyReaderTest {
+
+	/**
+	 * Test that the page is read verbatim in the charset from the header, the
+	 * meta element or UTF-8.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testCharset() throws IOException {
+		PageBodyReader reader = new PageBodyReader(1024 * 1024);
+		String page = "<html>\r\n<body>\u010cevapi \u017eganci</body>\n</html>";
+
+		assertEquals(page, reader.read(new ByteArrayInputStream(page
+				.getBytes(StandardCharsets.UTF_8)), null));
+		assertEquals(page, reader.read(new ByteArrayInputStream(page
+				.getBytes("windows-1250")), "text/html; charset=windows-1250"));
+
+		String meta = "<html><head><meta http-equiv=\"Content-Type\" "
+				+ "content=\"text/html; charset=iso-8859-2\"></head>" + page;
+		assertEquals(meta, reader.read(
+				new ByteArrayInputStream(meta.getBytes("ISO-8859-2")),
+				"text/html"));
+		assertEquals(meta, reader.decode(meta.getBytes("ISO-8859-2"), null));
+	}
+
+	/**
+	 * Test that the page of many chunks is decoded correctly and truncated to
+	 * the maximum number of bytes.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testChunksAndLimit() throws IOException {
+		StringBuilder page = new StringBuilder();
+		while (page.length() < 3 * PageBodyReader.BUFFER_SIZE)
+			page.append("a\u017e\u20ac\n");
+		byte[] body = page.toString().getBytes(StandardCharsets.UTF_8);
+
+		PageBodyReader reader = new PageBodyReader(body.length);
+		assertEquals(page.toString(),
+				reader.read(new ByteArrayInputStream(body), null));
+
+		// each line is 7 bytes
+		reader = new PageBodyReader(7 * 10000);
+		String truncated = reader.read(new ByteArrayInputStream(body),
+				"text/html; charset=UTF-8");
+		assertEquals(page.substring(0, 4 * 10000), truncated);
+	}
+}
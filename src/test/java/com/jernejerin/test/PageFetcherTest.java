@@ -0,0 +1,102 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jernejerin.HostScheduler;
+import com.jernejerin.HttpClientPool;
+import com.jernejerin.PageBodyReader;
+import com.jernejerin.PageFetcher;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test for class PageFetcher with a local HTTP server.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class PageFetcherTest {
+
+	private HttpServer server;
+	private HttpClientPool httpClientPool;
+	private HostScheduler hostScheduler;
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger maxRunning = new AtomicInteger();
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+			}
+			running.decrementAndGet();
+			byte[] body = exchange.getRequestURI().getPath().getBytes();
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		httpClientPool = new HttpClientPool(100, 100);
+		hostScheduler = new HostScheduler(2, 1000, 10);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		httpClientPool.close();
+		hostScheduler.close();
+	}
+
+	/**
+	 * Test that all pages are fetched and at most the maximum number of pages
+	 * from the same host at once.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFetchPerHostLimit() throws Exception {
+		PageFetcher pageFetcher = new PageFetcher(httpClientPool.getClient(),
+				10, hostScheduler, 1000, new PageBodyReader(1024));
+		List<CompletableFuture<String>> webPages = new ArrayList<CompletableFuture<String>>();
+		for (int i = 0; i < 8; i++)
+			webPages.add(pageFetcher.fetch("http://localhost:"
+					+ server.getAddress().getPort() + "/page" + i));
+
+		for (int i = 0; i < 8; i++)
+			assertEquals("/page" + i, webPages.get(i).get());
+		assertTrue("Too many fetches from the same host!",
+				maxRunning.get() <= 2);
+		pageFetcher.close();
+	}
+
+	/**
+	 * Test that the page of invalid link is null.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFetchInvalidLink() throws Exception {
+		PageFetcher pageFetcher = new PageFetcher(httpClientPool.getClient(),
+				1, hostScheduler, 1000, new PageBodyReader(1024));
+		assertNull(pageFetcher.fetch("not a link").get());
+		pageFetcher.close();
+	}
+}
@@ -0,0 +1,243 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jernejerin.EntryContent;
+import com.jernejerin.PageStore;
+import com.jernejerin.WriteBehindWriter;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+
+/**
+ * Test for class PageStore.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class PageStoreTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("pages").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Test that the same page is stored once and that the pages are read
+	 * after the store is opened again.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testPutAndReopen() throws IOException {
+		PageStore store = new PageStore(dir.getPath(), 1024);
+		String first = store.put(bytes("<html>first</html>"));
+		assertEquals(first, store.put(bytes("<html>first</html>")));
+		String second = store.put(bytes("<html>second</html>"));
+		assertNull(store.put(new byte[1024]));
+		assertEquals(2, store.size());
+		store.close();
+
+		store = new PageStore(dir.getPath(), 1024);
+		assertEquals(2, store.size());
+		assertEquals("<html>first</html>", string(store.get(first)));
+		assertEquals("<html>second</html>", string(store.get(second)));
+		assertNull(store.get("0000000000000000000000000000000000000000"));
+		store.close();
+	}
+
+	/**
+	 * Test that the segments with unreferenced pages are deleted and the
+	 * referenced pages are kept.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCompact() throws Exception {
+		final PageStore store = new PageStore(dir.getPath(), 1024);
+		final HashSet<String> live = new HashSet<String>();
+		String[] hashes = new String[40];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = store.put(bytes("<html>page " + i + "</html>"));
+			if (i % 10 == 0)
+				live.add(hashes[i]);
+		}
+		int segments = dir.listFiles().length;
+		assertTrue(segments > 1);
+
+		// the page put while the live pages are collected is kept as well
+		final String[] touched = new String[1];
+		int deleted = store.compact(new Callable<Set<String>>() {
+			public Set<String> call() {
+				touched[0] = store.put(bytes("<html>page 1</html>"));
+				return live;
+			}
+		});
+		// only the active segment is not compacted
+		assertEquals(segments - 1, deleted);
+		assertNull(store.get(hashes[2]));
+		for (String hash : live)
+			assertNotNull(store.get(hash));
+		assertNotNull(store.get(touched[0]));
+		int size = store.size();
+		store.close();
+
+		PageStore reopened = new PageStore(dir.getPath(), 1024);
+		assertEquals(size, reopened.size());
+		assertEquals(0, reopened.compact(new Callable<Set<String>>() {
+			public Set<String> call() {
+				return Collections.emptySet();
+			}
+		}));
+		reopened.close();
+	}
+
+	/**
+	 * Test that the entry keeps only the hash of the page in the store.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testEntryContent() throws IOException {
+		PageStore store = new PageStore(dir.getPath(), 1024);
+		for (boolean compress : new boolean[] { false, true }) {
+			BasicDBObject entryDB = new BasicDBObject();
+			new EntryContent(compress, store).put(entryDB, "<html>\u017e</html>");
+			assertNull(entryDB.get("fullContent"));
+			assertNotNull(entryDB.get("pageHash"));
+			assertEquals("<html>\u017e</html>",
+					EntryContent.getFullContent(entryDB, store));
+		}
+		store.close();
+	}
+
+	/**
+	 * Test that the page is read from the store of the entry if it is open
+	 * and that it is not read from another store.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testOwningStore() throws IOException {
+		File otherDir = Files.createTempDirectory("pages").toFile();
+		PageStore store = new PageStore(dir.getPath(), 1024);
+		PageStore other = new PageStore(otherDir.getPath(), 1024);
+		try {
+			BasicDBObject entryDB = new BasicDBObject();
+			new EntryContent(false, store).put(entryDB, "<html>page</html>");
+			assertEquals(store.getId(), entryDB.get("pageStore"));
+			assertEquals(store, PageStore.getOpen(store.getId()));
+			assertEquals("<html>page</html>",
+					EntryContent.getFullContent(entryDB, other));
+
+			// the page of the closed store cannot be read
+			store.close();
+			assertNull(PageStore.getOpen(store.getId()));
+			assertNull(EntryContent.getFullContent(entryDB, other));
+		} finally {
+			other.close();
+			for (File file : otherDir.listFiles())
+				file.delete();
+			otherDir.delete();
+		}
+	}
+
+	/**
+	 * Test that only the entries with the page in the entry or in the same
+	 * store are readable, as only these can be canonical entries.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testReadable() throws IOException {
+		PageStore store = new PageStore(dir.getPath(), 1024);
+		EntryContent stored = new EntryContent(false, store);
+		EntryContent inline = new EntryContent(false);
+
+		BasicDBObject storedDB = new BasicDBObject();
+		stored.put(storedDB, "<html>stored</html>");
+		BasicDBObject inlineDB = new BasicDBObject();
+		inline.put(inlineDB, "<html>inline</html>");
+		BasicDBObject otherDB = new BasicDBObject("pageHash", storedDB
+				.get("pageHash")).append("pageStore", "other:/pages");
+
+		assertTrue(stored.isReadable(storedDB));
+		assertTrue(stored.isReadable(inlineDB));
+		assertFalse(stored.isReadable(otherDB));
+		assertTrue(inline.isReadable(inlineDB));
+		assertFalse(inline.isReadable(storedDB));
+		store.close();
+	}
+
+	/**
+	 * Test that the page new in the store is also written to the pages
+	 * collection once.
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testPagesInDB() throws IOException {
+		File journalDir = Files.createTempDirectory("journal").toFile();
+		ServerSocket free = new ServerSocket(0);
+		int port = free.getLocalPort();
+		free.close();
+		// DB is not available, so the writes stay pending
+		MongoClient down = new MongoClient("localhost", port);
+		PageStore store = new PageStore(dir.getPath(), 1024);
+		try {
+			DBCollection pagesColl = down.getDB("rssdbtest").getCollection(
+					EntryContent.PAGES_COLLECTION);
+			WriteBehindWriter writer = new WriteBehindWriter(
+					journalDir.getPath(), 10, 60000, pagesColl);
+			EntryContent content = new EntryContent(false, store, writer,
+					pagesColl);
+			BasicDBObject entryDB = new BasicDBObject();
+			content.put(entryDB, "<html>page</html>");
+			content.put(new BasicDBObject(), "<html>page</html>");
+			assertEquals(Collections.singleton(entryDB.get("pageHash")),
+					writer.getPendingValues("_id"));
+			assertTrue(content.isReadable(new BasicDBObject("pageHash", "a")
+					.append("pageStore", "other:/pages")));
+			writer.close();
+		} finally {
+			store.close();
+			down.close();
+			for (File file : journalDir.listFiles())
+				file.delete();
+			journalDir.delete();
+		}
+	}
+
+	private static byte[] bytes(String page) {
+		return page.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String string(ByteBuffer page) {
+		return StandardCharsets.UTF_8.decode(page).toString();
+	}
+}
@@ -10,6 +10,7 @@ import java.net.UnknownHostException;
 import java.util.Date;
 import java.util.Properties;
 
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
@@ -18,7 +19,6 @@ import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
-import javax.jms.TextMessage;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.log4j.Logger;
@@ -28,14 +28,16 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.jernejerin.FeedJob;
+import com.jernejerin.FeedScheduler;
 import com.jernejerin.RSSDelegateWorker;
+import com.jernejerin.StaleFeedSweeper;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
-import com.mongodb.util.JSON;
 
 /**
  * Test for class RSSDelegate.
@@ -52,7 +54,6 @@ public class RSSDelegateTest {
 	static MongoClient mongoClient = null;
 	static Connection conn = null;
 	static DBCollection rssColl;
-	static BasicDBObject queryLastAccessed = null;
 	static Session sess;
 	static MessageProducer msgProd;
 	static MessageConsumer msgCons;
@@ -125,36 +126,50 @@ public class RSSDelegateTest {
 
 	/**
 	 * Test method for
-	 * {@link com.jernejerin.RSSDelegateWorker#checkFeeds(com.mongodb.BasicDBObject, com.mongodb.BasicDBObject, com.mongodb.DBCollection, javax.jms.MessageProducer, javax.jms.Session)}
+	 * {@link com.jernejerin.StaleFeedSweeper#sweep()} and
+	 * {@link com.jernejerin.RSSDelegateWorker#sendDueFeeds(com.jernejerin.FeedScheduler, com.mongodb.DBCollection, javax.jms.MessageProducer, javax.jms.Session, long)}
 	 * .
 	 * 
 	 * @throws JMSException
+	 * @throws InterruptedException
 	 */
 	@Test
-	public void testCheckFeeds() throws JMSException {
+	public void testSweepStaleFeeds() throws JMSException, InterruptedException {
 		// purge DB
 		rssColl.remove(new BasicDBObject());
 
-		// add test data
+		// stalled feeds are the ones queued more than 300s ago
+		RSSDelegateWorker.checkInterval = 300;
+
+		// add test data, feed that is not in the queue
 		BasicDBObject rssFeed = new BasicDBObject("feedUrl",
 				"http://0.tqn.com/6/g/sbinfocanada/b/rss2.xml");
 		rssColl.insert(rssFeed);
 
-		// for testing that enough time has passed to trigger second query
+		// for testing that enough time has passed since it was queued
 		rssFeed = new BasicDBObject("feedUrl",
-				"http://100meterijs.wordpress.com/feed/").append("accessedAt",
+				"http://100meterijs.wordpress.com/feed/").append("queuedAt",
 				new Date(System.currentTimeMillis() - 500 * 1000));
 		rssColl.insert(rssFeed);
 
 		// for testing that not enough time has passed
 		rssFeed = new BasicDBObject("feedUrl",
-				"http://100meterijs.wordpress.com/feed/").append("accessedAt",
+				"http://100meterijs.wordpress.com/feed/").append("queuedAt",
 				new Date(System.currentTimeMillis() - 200 * 1000));
 		rssColl.insert(rssFeed);
 
+		FeedScheduler scheduler = new FeedScheduler(
+				RSSDelegateWorker.minInterval, RSSDelegateWorker.maxInterval);
+		StaleFeedSweeper sweeper = new StaleFeedSweeper(rssColl, scheduler,
+				RSSDelegateWorker.checkInterval);
 		for (int i = 0; i < 3; i++) {
-			RSSDelegateWorker.checkFeeds(queryLastAccessed,
-					rssColl, msgProd, sess);
+			long sleep = sweeper.sweep();
+			RSSDelegateWorker.sendDueFeeds(scheduler, rssColl, msgProd, sess,
+					0);
+
+			// the next feed stalls when the one queued 200s ago does
+			assertTrue("Next sweep should be in less than 100s!",
+					sleep <= 100 * 1000);
 		}
 
 		int msgCount = 0;
@@ -162,8 +177,8 @@ public class RSSDelegateTest {
 		while (msgCons.receiveNoWait() != null)
 			msgCount++;
 
-		// there should be only 2 messages in queue
-		assertEquals("Only two messages should be in queue!", 2, msgCount);
+		// there should be only the stalled feed in queue
+		assertEquals("Only one message should be in queue!", 1, msgCount);
 	}
 
 	/**
@@ -192,37 +207,34 @@ public class RSSDelegateTest {
 
 			// get the values of attributes that presumably method
 			// send message should set
-			int used = Integer.parseInt(feed.get("used").toString());
-			DateTime accessedAt = new DateTime(feed.get("accessedAt"));
+			DateTime queuedAt = new DateTime(feed.get("queuedAt"));
 
 			// get the changed feed (i.e. update version in DB)
 			BasicDBObject query = new BasicDBObject("_id", feed.get("_id"));
 			DBObject feedDB = rssColl.findOne(query);
-			int usedDB = Integer.parseInt(feedDB.get("used").toString());
-			DateTime accessedAtDB = new DateTime(feedDB.get("accessedAt"));
+			DateTime queuedAtDB = new DateTime(feedDB.get("queuedAt"));
 
-			// test for equality of values used and accessed date time
-			assertEquals("Used must be set to 1", used, usedDB);
+			// test for equality of queued date time
 			assertEquals("Date time value does not match",
-					accessedAt.getMillis(), accessedAtDB.getMillis());
+					queuedAt.getMillis(), queuedAtDB.getMillis());
 
 			// check that content of message in queue is the same
 			Message msg = msgCons.receive();
 
-			if (msg instanceof TextMessage) {
-				TextMessage txtMsg = (TextMessage) msg;
-
-				// parse it from JSON to DBObject
-				DBObject feedQE = (DBObject) JSON.parse(txtMsg.getText());
-				int usedQE = Integer.parseInt(feedQE.get("used").toString());
-				DateTime accessedAtQE = new DateTime(feedQE.get("accessedAt"));
+			if (msg instanceof BytesMessage) {
+				// read the job of the feed
+				FeedJob job = FeedJob.fromMessage((BytesMessage) msg);
+				DateTime queuedAtQE = new DateTime(job.getQueuedAt());
 
-				// test for equality of values used and accessed date time
-				assertEquals("Used must be set to 1", used, usedQE);
+				// test for equality of feed and queued date time
+				assertEquals("Feed does not match", feed.get("_id"),
+						job.getFeedId());
+				assertEquals("Feed does not match", feed.get("feedUrl"),
+						job.getFeedUrl());
 				assertEquals("Date time value does not match",
-						accessedAt.getMillis(), accessedAtQE.getMillis());
+						queuedAt.getMillis(), queuedAtQE.getMillis());
 			} else {
-				fail("Message must be of type Text!");
+				fail("Message must be of type Bytes!");
 			}
 		} else {
 			fail("There should be atleast one message in DB!");
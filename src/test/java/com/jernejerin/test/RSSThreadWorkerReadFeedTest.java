@@ -15,7 +15,9 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import com.jernejerin.HttpClientPool;
 import com.jernejerin.RSSThreadWorker;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -39,6 +41,7 @@ public class RSSThreadWorkerReadFeedTest {
 
 	static MongoClient mongoClient = null;
 	static DBCollection rssColl;
+	static HttpClientPool httpClientPool = new HttpClientPool(100, 4);
 
 	private String url;
 	private SyndFeedInput input;
@@ -119,14 +122,15 @@ public class RSSThreadWorkerReadFeedTest {
 
 	/**
 	 * Test method for read feed. Checks if we get back the feed object.
-	 * {@link com.jernejerin.RSSThreadWorker#readFeed(java.lang.String, com.sun.syndication.io.SyndFeedInput)}
+	 * {@link com.jernejerin.RSSThreadWorker#readFeed(java.lang.String, com.sun.syndication.io.SyndFeedInput, org.apache.http.impl.client.CloseableHttpClient, com.mongodb.DBObject)}
 	 * 
 	 * @throws Exception
 	 */
 	@Test
 	public void testReadFeed() throws Exception {
 		try {
-			SyndFeed feed = RSSThreadWorker.readFeed(this.url, this.input);
+			SyndFeed feed = RSSThreadWorker.readFeed(this.url, this.input,
+					httpClientPool.getClient(), new BasicDBObject());
 			if (feed == null)
 				logger.info("The value should not be null! URL: " + this.url);
 			assertNotNull("The value should not be null! URL: " + this.url,
@@ -0,0 +1,63 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jernejerin.PageText;
+import com.jernejerin.SimHash;
+
+/**
+ * Test for class SimHash.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class SimHashTest {
+
+	private static final String STORY = "Heavy rain caused floods in several towns along the river on Tuesday, "
+			+ "forcing hundreds of people to leave their homes. Rescue teams used boats to reach the "
+			+ "villages that were cut off and the army helped to build barriers of sand bags. The "
+			+ "weather service warned that more rain is expected during the week and that the river "
+			+ "could rise further. Schools in the region will remain closed until Friday and the "
+			+ "government promised help to the families whose houses were damaged by the water. "
+			+ "Experts said that the floods were the worst in the last twenty years.";
+
+	/**
+	 * Test that the same story on two sites has nearly the same fingerprint
+	 * and a common block, and that another story does not.
+	 */
+	@Test
+	public void testFingerprint() {
+		long story = SimHash.fingerprint(PageText.extract(
+				"<html><body><h1>Floods</h1><p>" + STORY + "</p></body></html>")
+				.getShingles());
+		long copy = SimHash.fingerprint(PageText.extract(
+				"<div class=\"story\">" + STORY + " (Reuters)</div>")
+				.getShingles());
+		long other = SimHash.fingerprint(PageText.extract(
+				"<p>" + STORY.replace("rain", "snow").replace("floods",
+						"avalanches").replace("river", "mountain") + "</p>")
+				.getShingles());
+
+		assertTrue(SimHash.distance(story, copy) <= SimHash.MAX_DISTANCE);
+		assertTrue(SimHash.distance(story, other) > SimHash.MAX_DISTANCE);
+		List<Integer> blocks = SimHash.blocks(story);
+		assertEquals(4, blocks.size());
+		assertFalse(Collections.disjoint(blocks, SimHash.blocks(copy)));
+	}
+
+	/**
+	 * Test that the blocks of different positions have different keys.
+	 */
+	@Test
+	public void testBlocks() {
+		assertEquals(0, (int) SimHash.blocks(0L).get(0));
+		assertEquals(1 << 16, (int) SimHash.blocks(0L).get(1));
+		assertEquals(3 << 16 | 0xffff, (int) SimHash.blocks(-1L).get(3));
+	}
+}
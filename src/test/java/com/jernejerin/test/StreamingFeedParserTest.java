@@ -0,0 +1,219 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jernejerin.RSSThreadWorker;
+import com.jernejerin.StreamingFeedParser;
+import com.sun.syndication.feed.rss.Channel;
+import com.sun.syndication.feed.synd.SyndCategory;
+import com.sun.syndication.feed.synd.SyndEntry;
+import com.sun.syndication.feed.synd.SyndFeed;
+import com.sun.syndication.io.SyndFeedInput;
+
+/**
+ * Test for class StreamingFeedParser. The parsed feeds are compared with the
+ * feeds parsed with Rome library.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class StreamingFeedParserTest {
+
+	private static final String RSS = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<rss version=\"2.0\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\" "
+			+ "xmlns:content=\"http://purl.org/rss/1.0/modules/content/\">\n"
+			+ "<channel>\n"
+			+ "<title>Test &amp; feed</title>\n"
+			+ "<link>http://www.example.com/</link>\n"
+			+ "<description>Test feed</description>\n"
+			+ "<language>en</language>\n"
+			+ "<pubDate>Tue, 06 May 2014 10:00:00 GMT</pubDate>\n"
+			+ "<ttl>60</ttl>\n"
+			+ "<category domain=\"http://www.example.com/c\">news</category>\n"
+			+ "<image><url>http://www.example.com/i.png</url><title>Test</title>"
+			+ "<link>http://www.example.com/</link></image>\n"
+			+ "<item><title>First</title><link>http://www.example.com/1</link>"
+			+ "<guid isPermaLink=\"false\">id-1</guid>"
+			+ "<description><![CDATA[<p>First &nbsp;entry</p>]]></description>"
+			+ "<dc:creator>John</dc:creator><category>a</category>"
+			+ "<enclosure url=\"http://www.example.com/1.mp3\" length=\"100\" type=\"audio/mpeg\"/>"
+			+ "<pubDate>Tue, 06 May 2014 09:00:00 GMT</pubDate></item>\n"
+			+ "<item><title>Second</title><link>http://www.example.com/2</link>"
+			+ "<content:encoded>&lt;p&gt;Second&lt;/p&gt;</content:encoded>"
+			+ "<dc:date>2014-05-06T08:00:00Z</dc:date></item>\n"
+			+ "<item><guid>http://www.example.com/3</guid>"
+			+ "<description>Third</description><title>Third</title>"
+			+ "<pubDate>Tue, 06 May 2014 07:00:00 GMT</pubDate></item>\n"
+			+ "<item><description>Fourth</description>"
+			+ "<pubDate>Tue, 06 May 2014 06:00:00 GMT</pubDate></item>\n"
+			+ "<item><title>Fifth</title><unknown><title>x</title></unknown>"
+			+ "<author>mary@example.com</author>"
+			+ "<pubDate>Tue, 06 May 2014 05:00:00 GMT</pubDate></item>\n"
+			+ "</channel>\n" + "</rss>";
+
+	private static final String ATOM = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<feed xmlns=\"http://www.w3.org/2005/Atom\" xml:lang=\"en\">\n"
+			+ "<title>Atom feed</title>\n"
+			+ "<subtitle type=\"html\">Test &lt;b&gt;feed&lt;/b&gt;</subtitle>\n"
+			+ "<link href=\"http://www.example.org/\"/>\n"
+			+ "<link rel=\"self\" href=\"http://www.example.org/feed\"/>\n"
+			+ "<id>urn:uuid:feed</id>\n"
+			+ "<updated>2014-05-06T10:00:00Z</updated>\n"
+			+ "<author><name>John</name><uri>http://www.example.org/john</uri></author>\n"
+			+ "<entry><title>First</title><link href=\"http://www.example.org/1\"/>"
+			+ "<link rel=\"enclosure\" href=\"http://www.example.org/1.mp3\" length=\"100\" type=\"audio/mpeg\"/>"
+			+ "<id>urn:uuid:1</id><updated>2014-05-06T09:00:00Z</updated>"
+			+ "<published>2014-05-06T08:30:00Z</published>"
+			+ "<summary>First entry</summary>"
+			+ "<category term=\"a\" scheme=\"http://www.example.org/c\"/></entry>\n"
+			+ "<entry><title type=\"html\">Second &amp;lt;b&amp;gt;</title>"
+			+ "<link rel=\"alternate\" href=\"http://www.example.org/2\"/>"
+			+ "<id>urn:uuid:2</id><updated>2014-05-06T08:00:00Z</updated>"
+			+ "<content type=\"html\">&lt;p&gt;Second&lt;/p&gt;</content>"
+			+ "<author><name>Mary</name></author></entry>\n" + "</feed>";
+
+	/**
+	 * Test that RSS 2.0 feed is parsed the same as with Rome library.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testParseRss() throws Exception {
+		SyndFeed expected = createInput().build(new StringReader(RSS));
+		SyndFeed feed = StreamingFeedParser.parse(new StringReader(RSS),
+				createInput(), null);
+
+		assertFeedEquals(expected, feed);
+		assertEquals(60, ((Channel) feed.originalWireFeed()).getTtl());
+	}
+
+	/**
+	 * Test that Atom 1.0 feed is parsed the same as with Rome library.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testParseAtom() throws Exception {
+		SyndFeed expected = createInput().build(new StringReader(ATOM));
+		SyndFeed feed = StreamingFeedParser.parse(new StringReader(ATOM),
+				createInput(), null);
+
+		assertFeedEquals(expected, feed);
+	}
+
+	/**
+	 * Test that other formats are parsed with Rome library.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testParseOther() throws Exception {
+		String rdf = "<?xml version=\"1.0\"?>\n"
+				+ "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" "
+				+ "xmlns=\"http://purl.org/rss/1.0/\">"
+				+ "<channel rdf:about=\"http://www.example.com/\"><title>RDF</title>"
+				+ "<link>http://www.example.com/</link><description>RDF</description></channel>"
+				+ "<item rdf:about=\"http://www.example.com/1\"><title>First</title>"
+				+ "<link>http://www.example.com/1</link></item></rdf:RDF>";
+		SyndFeed feed = StreamingFeedParser.parse(new StringReader(rdf),
+				createInput(), null);
+
+		assertEquals("rss_1.0", feed.getFeedType());
+		assertEquals(1, feed.getEntries().size());
+	}
+
+	/**
+	 * Test that only accepted entries are kept and that the parsing stops
+	 * after a run of rejected entries.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testFilter() throws Exception {
+		StringBuilder rss = new StringBuilder(
+				"<rss version=\"2.0\"><channel><title>Test</title>");
+		for (int i = 0; i < 20; i++)
+			rss.append("<item><guid>id-").append(i)
+					.append("</guid><pubDate>Tue, 06 May 2014 ")
+					.append(String.format("%02d", 20 - i))
+					.append(":00:00 GMT</pubDate></item>");
+		rss.append("</channel></rss>");
+
+		final HashSet<String> seen = new HashSet<String>();
+		SyndFeed feed = StreamingFeedParser.parse(
+				new StringReader(rss.toString()), createInput(),
+				new StreamingFeedParser.EntryFilter() {
+					public boolean accept(SyndEntry entry) {
+						seen.add(entry.getUri());
+						// the first three entries are new
+						return entry.getUri().compareTo("id-3") < 0
+								&& entry.getUri().length() == 4;
+					}
+				});
+
+		assertEquals(3, feed.getEntries().size());
+		assertEquals("Parsing should stop after known entries!",
+				3 + StreamingFeedParser.KNOWN_RUN, seen.size());
+	}
+
+	private static SyndFeedInput createInput() {
+		SyndFeedInput input = new SyndFeedInput();
+		input.setPreserveWireFeed(true);
+		return input;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void assertFeedEquals(SyndFeed expected, SyndFeed feed) {
+		assertEquals(expected.getFeedType(), feed.getFeedType());
+		assertEquals(expected.getTitle(), feed.getTitle());
+		assertEquals(expected.getLink(), feed.getLink());
+		assertEquals(expected.getDescription(), feed.getDescription());
+		assertEquals(expected.getLanguage(), feed.getLanguage());
+		assertEquals(expected.getPublishedDate(), feed.getPublishedDate());
+		assertEquals(expected.getAuthors().size(), feed.getAuthors().size());
+		assertEquals(String.valueOf(expected.getImage()),
+				String.valueOf(feed.getImage()));
+		assertCategoriesEquals(expected.getCategories(), feed.getCategories());
+
+		List<SyndEntry> expectedEntries = expected.getEntries();
+		List<SyndEntry> entries = feed.getEntries();
+		assertEquals(expectedEntries.size(), entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			SyndEntry expectedEntry = expectedEntries.get(i);
+			SyndEntry entry = entries.get(i);
+			assertEquals(RSSThreadWorker.getEntryId(expectedEntry),
+					RSSThreadWorker.getEntryId(entry));
+			assertEquals(expectedEntry.getUri(), entry.getUri());
+			assertEquals(expectedEntry.getTitle(), entry.getTitle());
+			assertEquals(expectedEntry.getLink(), entry.getLink());
+			assertEquals(String.valueOf(expectedEntry.getDescription()),
+					String.valueOf(entry.getDescription()));
+			assertEquals(expectedEntry.getPublishedDate(),
+					entry.getPublishedDate());
+			assertEquals(String.valueOf(expectedEntry.getAuthors()),
+					String.valueOf(entry.getAuthors()));
+			assertEquals(String.valueOf(expectedEntry.getEnclosures()),
+					String.valueOf(entry.getEnclosures()));
+			assertCategoriesEquals(expectedEntry.getCategories(),
+					entry.getCategories());
+		}
+	}
+
+	private static void assertCategoriesEquals(List<SyndCategory> expected,
+			List<SyndCategory> categories) {
+		assertEquals(expected.size(), categories.size());
+		for (int i = 0; i < categories.size(); i++) {
+			assertEquals(expected.get(i).getName(), categories.get(i)
+					.getName());
+			assertEquals(expected.get(i).getTaxonomyUri(), categories.get(i)
+					.getTaxonomyUri());
+		}
+	}
+}
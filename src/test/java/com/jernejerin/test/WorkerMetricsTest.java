@@ -0,0 +1,117 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.junit.Test;
+
+import com.jernejerin.MeteredInputStream;
+import com.jernejerin.WorkerMetrics;
+
+/**
+ * Test for class WorkerMetrics.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class WorkerMetricsTest {
+
+	/**
+	 * Test that the percentiles are estimated within the buckets of the
+	 * recorded times.
+	 */
+	@Test
+	public void testQuantile() {
+		WorkerMetrics metrics = new WorkerMetrics();
+		for (int i = 0; i < 99; i++)
+			metrics.time(WorkerMetrics.PARSE, TimeUnit.MICROSECONDS.toNanos(800));
+		metrics.time(WorkerMetrics.PARSE, TimeUnit.SECONDS.toNanos(3));
+
+		assertEquals(100, metrics.getCount(WorkerMetrics.PARSE));
+		double p50 = metrics.getQuantile(WorkerMetrics.PARSE, 0.5);
+		assertTrue(p50 > 0.0005 && p50 <= 0.001);
+		assertEquals(3.0, metrics.getQuantile(WorkerMetrics.PARSE, 1), 1e-9);
+		assertEquals(0, metrics.getQuantile(WorkerMetrics.BODY, 0.5), 0);
+	}
+
+	/**
+	 * Test the counters, the errors by class and the text format.
+	 */
+	@Test
+	public void testPrometheus() {
+		WorkerMetrics metrics = new WorkerMetrics();
+		metrics.time(WorkerMetrics.WEB_PAGE, TimeUnit.MILLISECONDS.toNanos(20));
+		metrics.increment(WorkerMetrics.NEW_ENTRIES, 3);
+		metrics.error(new CompletionException(new IOException("reset")));
+		metrics.error(new IOException("timeout"));
+		metrics.gauge("executorQueue", () -> 7);
+
+		assertEquals(3, metrics.getCounter(WorkerMetrics.NEW_ENTRIES));
+		assertEquals(2, metrics.getErrors("IOException"));
+		String text = metrics.toPrometheus();
+		assertTrue(text.contains("rss_worker_stage_seconds_bucket{stage=\"webPage\",le=\"0.01\"} 0\n"));
+		assertTrue(text.contains("rss_worker_stage_seconds_bucket{stage=\"webPage\",le=\"0.025\"} 1\n"));
+		assertTrue(text.contains("rss_worker_stage_seconds_count{stage=\"webPage\"} 1\n"));
+		assertTrue(text.contains("rss_worker_new_entries_total 3\n"));
+		assertTrue(text.contains("rss_worker_errors_total{class=\"IOException\"} 2\n"));
+		assertTrue(text.contains("rss_worker_executor_queue 7\n"));
+	}
+
+	/**
+	 * Test that the registered MBean exposes the metrics as attributes and no
+	 * operations.
+	 */
+	@Test
+	public void testMBean() throws Exception {
+		WorkerMetrics metrics = new WorkerMetrics();
+		metrics.register();
+		try {
+			metrics.time(WorkerMetrics.FEED_UPDATE,
+					TimeUnit.MILLISECONDS.toNanos(2));
+			metrics.increment(WorkerMetrics.NOT_MODIFIED, 1);
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = mbs.queryNames(
+					new ObjectName("com.jernejerin:type=WorkerMetrics,*"), null)
+					.iterator().next();
+			assertEquals(1L, mbs.getAttribute(name, "feedUpdateCount"));
+			assertEquals(2.0, (Double) mbs.getAttribute(name,
+					"feedUpdateMaxMs"), 1e-9);
+			assertEquals(1L, mbs.getAttribute(name, "notModified"));
+			try {
+				mbs.invoke(name, "reset", null, null);
+				fail("Metrics have no operations!");
+			} catch (ReflectionException e) {
+				assertTrue(e.getCause() instanceof NoSuchMethodException);
+			}
+		} finally {
+			metrics.close();
+		}
+	}
+
+	/**
+	 * Test that the metered stream counts the bytes read.
+	 */
+	@Test
+	public void testMeteredInputStream() throws IOException {
+		MeteredInputStream in = new MeteredInputStream(
+				new ByteArrayInputStream(new byte[100]));
+		in.read();
+		in.read(new byte[60]);
+		in.skip(10);
+		in.read(new byte[60]);
+		assertEquals(100, in.getBytes());
+		assertEquals(-1, in.read());
+		assertEquals(100, in.getBytes());
+		in.close();
+	}
+}
@@ -0,0 +1,300 @@
+package com.jernejerin.test;
+
+import static org.junit.Assert.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.jernejerin.WorkerMetrics;
+import com.jernejerin.WriteBehindWriter;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+
+/**
+ * Test for merging of the pending updates in class WriteBehindWriter and for
+ * writing the journal and the failed batches to the test database on the
+ * local MongoDB.
+ *
+ * @author Jernej Jerin
+ * @version 1.0
+ * @since 2014-05-06
+ */
+public class WriteBehindWriterTest {
+
+	/**
+	 * Test that the later $set and $unset override the earlier ones.
+	 */
+	@Test
+	public void testMergeOperators() {
+		DBObject earlier = new BasicDBObject("$set", new BasicDBObject("a", 1)
+				.append("b", 1)).append("$unset", new BasicDBObject("c", ""));
+		DBObject later = new BasicDBObject("$set", new BasicDBObject("c", 2))
+				.append("$unset", new BasicDBObject("a", ""));
+
+		DBObject merged = WriteBehindWriter.merge(earlier, later);
+		DBObject set = (DBObject) merged.get("$set");
+		DBObject unset = (DBObject) merged.get("$unset");
+		assertEquals(1, set.get("b"));
+		assertEquals(2, set.get("c"));
+		assertFalse(set.containsField("a"));
+		assertTrue(unset.containsField("a"));
+		assertFalse(unset.containsField("c"));
+	}
+
+	/**
+	 * Test that the operators are applied to the earlier whole document and
+	 * that a later whole document replaces everything before it.
+	 */
+	@Test
+	public void testMergeDocument() {
+		DBObject document = new BasicDBObject("feedUrl", "http://a.com/rss")
+				.append("etag", "1").append("lastModified", "Mon");
+		DBObject update = new BasicDBObject("$set", new BasicDBObject("etag",
+				"2")).append("$unset", new BasicDBObject("lastModified", ""));
+
+		DBObject merged = WriteBehindWriter.merge(document, update);
+		assertEquals("http://a.com/rss", merged.get("feedUrl"));
+		assertEquals("2", merged.get("etag"));
+		assertFalse(merged.containsField("lastModified"));
+		assertEquals("1", document.get("etag"));
+
+		assertSame(document, WriteBehindWriter.merge(update, document));
+	}
+
+	/**
+	 * Test that other operators are not merged.
+	 */
+	@Test
+	public void testMergeOtherOperators() {
+		DBObject inc = new BasicDBObject("$inc", new BasicDBObject("n", 1));
+		DBObject set = new BasicDBObject("$set", new BasicDBObject("a", 1));
+		assertNull(WriteBehindWriter.merge(inc, set));
+		assertNull(WriteBehindWriter.merge(set, inc));
+	}
+
+	/**
+	 * Test that the writes that could not be written before the writer was
+	 * closed are written from the journal by the next writer.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReplay() throws Exception {
+		File journalDir = Files.createTempDirectory("journal").toFile();
+		DBObject doc = new BasicDBObject("_id", new ObjectId()).append(
+				"feedUrl", "http://example.com/rss");
+
+		// DB is not available, so the insert stays in the journal
+		MongoClient down = new MongoClient("localhost", freePort());
+		try {
+			DBCollection coll = down.getDB("rssdbtest").getCollection("writer");
+			WriteBehindWriter writer = new WriteBehindWriter(
+					journalDir.getPath(), 10, 10000, coll);
+			CompletableFuture<Void> written = writer.insert(coll, doc);
+			writer.close();
+			assertFalse(written.isDone());
+			assertTrue(journalDir.list().length > 0);
+		} finally {
+			down.close();
+		}
+
+		MongoClient mongoClient = new MongoClient("localhost", 27017);
+		try {
+			DBCollection coll = mongoClient.getDB("rssdbtest").getCollection(
+					"writer");
+			coll.remove(new BasicDBObject());
+			WriteBehindWriter writer = new WriteBehindWriter(
+					journalDir.getPath(), 10, 100, coll);
+			writer.sync().get(10, TimeUnit.SECONDS);
+			writer.close();
+			assertEquals(doc, coll.findOne(new BasicDBObject("_id",
+					doc.get("_id"))));
+			assertEquals(0, journalDir.list().length);
+		} finally {
+			mongoClient.close();
+			journalDir.delete();
+		}
+	}
+
+	/**
+	 * Test that the batch is written again when DB is available after a
+	 * network failure.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRetryAfterNetworkFailure() throws Exception {
+		File journalDir = Files.createTempDirectory("journal").toFile();
+		int port = freePort();
+		WorkerMetrics metrics = new WorkerMetrics();
+		MongoClient mongoClient = new MongoClient("localhost", port);
+		Proxy proxy = null;
+		try {
+			DBCollection coll = mongoClient.getDB("rssdbtest").getCollection(
+					"writer");
+			WriteBehindWriter writer = new WriteBehindWriter(
+					journalDir.getPath(), 10, 100, metrics, coll);
+			DBObject doc = new BasicDBObject("_id", new ObjectId());
+			CompletableFuture<Void> written = writer.insert(coll, doc);
+			long deadline = System.currentTimeMillis() + 10000;
+			while (metrics.getErrors("Network") == 0
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(50);
+			assertTrue(metrics.getErrors("Network") > 0);
+			assertFalse(written.isDone());
+
+			// DB is available at the same address before the retry
+			proxy = new Proxy(port, 27017);
+			written.get(20, TimeUnit.SECONDS);
+			writer.close();
+			assertEquals(doc, coll.findOne(new BasicDBObject("_id",
+					doc.get("_id"))));
+			coll.remove(new BasicDBObject("_id", doc.get("_id")));
+		} finally {
+			if (proxy != null)
+				proxy.close();
+			mongoClient.close();
+			for (File file : journalDir.listFiles())
+				file.delete();
+			journalDir.delete();
+		}
+	}
+
+	/**
+	 * Test that the values of the field are collected from the inserts and
+	 * the updates that are not written yet.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testPendingValues() throws Exception {
+		File journalDir = Files.createTempDirectory("journal").toFile();
+		MongoClient down = new MongoClient("localhost", freePort());
+		try {
+			DBCollection coll = down.getDB("rssdbtest").getCollection("writer");
+			WriteBehindWriter writer = new WriteBehindWriter(
+					journalDir.getPath(), 10, 60000, coll);
+			writer.insert(coll, new BasicDBObject("pageHash", "a"));
+			writer.insert(coll, new BasicDBObject("fullContent", "page"));
+			writer.update(coll, new BasicDBObject("idHash", "1"),
+					new BasicDBObject("$set", new BasicDBObject("pageHash",
+							"b")));
+			assertEquals(new HashSet<Object>(Arrays.asList("a", "b")),
+					writer.getPendingValues("pageHash"));
+			writer.close();
+		} finally {
+			down.close();
+			for (File file : journalDir.listFiles())
+				file.delete();
+			journalDir.delete();
+		}
+	}
+
+	/**
+	 * Test that the future of the document rejected by DB completes
+	 * exceptionally, while the batch is written.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRejectedInsert() throws Exception {
+		File journalDir = Files.createTempDirectory("journal").toFile();
+		MongoClient mongoClient = new MongoClient("localhost", 27017);
+		try {
+			DBCollection coll = mongoClient.getDB("rssdbtest").getCollection(
+					"writer");
+			WriteBehindWriter writer = new WriteBehindWriter(
+					journalDir.getPath(), 10, 100, coll);
+			DBObject doc = new BasicDBObject("_id", new ObjectId());
+			CompletableFuture<Void> rejected = writer.insert(coll,
+					new BasicDBObject("$invalid", 1));
+			CompletableFuture<Void> written = writer.insert(coll, doc);
+			writer.sync().get(10, TimeUnit.SECONDS);
+			writer.close();
+			assertTrue(rejected.isCompletedExceptionally());
+			written.get(1, TimeUnit.SECONDS);
+			assertEquals(doc, coll.findOne(new BasicDBObject("_id",
+					doc.get("_id"))));
+			coll.remove(new BasicDBObject("_id", doc.get("_id")));
+		} finally {
+			mongoClient.close();
+			for (File file : journalDir.listFiles())
+				file.delete();
+			journalDir.delete();
+		}
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * TCP proxy from the local port to the port of MongoDB.
+	 */
+	private static class Proxy implements Closeable {
+		private final ServerSocket server;
+
+		private Proxy(int port, final int targetPort) throws IOException {
+			server = new ServerSocket();
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress("localhost", port));
+			Thread acceptor = new Thread(() -> {
+				try {
+					while (true) {
+						Socket client = server.accept();
+						Socket target = new Socket("localhost", targetPort);
+						pipe(client.getInputStream(), target.getOutputStream());
+						pipe(target.getInputStream(), client.getOutputStream());
+					}
+				} catch (IOException e) {
+					// the proxy is closed
+				}
+			});
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		private static void pipe(final InputStream in, final OutputStream out) {
+			Thread pipe = new Thread(() -> {
+				byte[] buffer = new byte[8192];
+				try {
+					int n;
+					while ((n = in.read(buffer)) != -1) {
+						out.write(buffer, 0, n);
+						out.flush();
+					}
+				} catch (IOException e) {
+					// the connection is closed
+				}
+			});
+			pipe.setDaemon(true);
+			pipe.start();
+		}
+
+		@Override
+		public void close() throws IOException {
+			server.close();
+		}
+	}
+}